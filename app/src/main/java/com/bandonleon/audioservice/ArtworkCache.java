@@ -0,0 +1,30 @@
+package com.bandonleon.audioservice;
+
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+
+/**
+ * Cover art already scaled to the size it is shown at, keyed by track and size and bounded
+ * by the bitmaps' size in bytes.
+ */
+public class ArtworkCache extends LruCache<String, Bitmap> implements MemoryGovernor.Component {
+
+    public ArtworkCache(int maxBytes) {
+        super(maxBytes);
+    }
+
+    @Override
+    protected int sizeOf(String key, Bitmap artwork) {
+        return artwork.getByteCount();
+    }
+
+    @Override
+    public long getMemoryBytes() {
+        return size();
+    }
+
+    @Override
+    public void trimMemory(long maxBytes) {
+        trimToSize((int) Math.min(maxBytes, Integer.MAX_VALUE));
+    }
+}
@@ -0,0 +1,381 @@
+package com.bandonleon.audioservice;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaMetadataRetriever;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Loads cover art for a track at the exact size it is shown at.
+ *
+ * Art comes from the picture embedded in the track or, failing that, a sidecar resource named
+ * after the track with an "_art" suffix (res/drawable or res/raw). Source images are decoded
+ * with inSampleSize, so a full-size image is never held in memory, then cropped and scaled to
+ * the target size. Results are kept in an {@link ArtworkCache} and as JPEGs under the cache
+ * dir, so a track's art is only decoded from its source once per size.
+ *
+ * Everything but memory cache hits happens on a background thread. Listeners are called on
+ * the main thread. One instance is shared by the service and the UI.
+ */
+public class ArtworkLoader {
+    private static final int MEMORY_CACHE_MAX_BYTES = 8 * 1024 * 1024;
+    private static final long DISK_CACHE_MAX_BYTES = 4 * 1024 * 1024;
+    private static final String DISK_CACHE_DIR = "artwork";
+    private static final String SIDECAR_SUFFIX = "_art";
+    private static final int JPEG_QUALITY = 90;
+
+    public interface ArtworkListener {
+        /**
+         * @param artwork The track's art at the requested size, or null if it has none.
+         */
+        void onArtworkLoaded(int audioResId, Bitmap artwork);
+    }
+
+    private static ArtworkLoader sInstance;
+
+    private final Resources mResources;
+    private final String mPackageName;
+    private final File mDiskCacheDir;
+    private final ArtworkCache mCache = new ArtworkCache(MEMORY_CACHE_MAX_BYTES);
+    private final Set<String> mNoArtwork = Collections.synchronizedSet(new HashSet<String>());
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Handler mLoaderHandler;
+    private volatile MemoryGovernor mMemoryGovernor;
+
+    // Main thread only
+    private final List<Request> mPending = new ArrayList<>();
+
+    public static synchronized ArtworkLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ArtworkLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ArtworkLoader(Context context) {
+        mResources = context.getResources();
+        mPackageName = context.getPackageName();
+        mDiskCacheDir = new File(context.getCacheDir(), DISK_CACHE_DIR);
+
+        HandlerThread loaderThread = new HandlerThread("ArtworkLoader", Process.THREAD_PRIORITY_BACKGROUND);
+        loaderThread.start();
+        mLoaderHandler = new Handler(loaderThread.getLooper());
+    }
+
+    private final class Request implements Runnable {
+        final int mAudioResId;
+        final int mWidth;
+        final int mHeight;
+        final ArtworkListener mListener;
+
+        Request(int audioResId, int width, int height, ArtworkListener listener) {
+            mAudioResId = audioResId;
+            mWidth = width;
+            mHeight = height;
+            mListener = listener;
+        }
+
+        @Override
+        public void run() {
+            final Bitmap artwork = load(mAudioResId, mWidth, mHeight);
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Dropped if cancelled in the meantime
+                    if (mPending.remove(Request.this)) {
+                        mListener.onArtworkLoaded(mAudioResId, artwork);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Loads the art for {@code audioResId} scaled and cropped to {@code width} x {@code height}
+     * pixels. Must be called on the main thread. Cached art is delivered before this returns.
+     */
+    public void load(int audioResId, int width, int height, ArtworkListener listener) {
+        String key = getKey(audioResId, width, height);
+        Bitmap artwork = mCache.get(key);
+        if (artwork != null || mNoArtwork.contains(key)) {
+            listener.onArtworkLoaded(audioResId, artwork);
+            return;
+        }
+
+        Request request = new Request(audioResId, width, height, listener);
+        mPending.add(request);
+        mLoaderHandler.post(request);
+    }
+
+    /**
+     * Counts the memory cache against {@code memoryGovernor}'s budget, or stops counting it
+     * against the current one if null.
+     */
+    public synchronized void setMemoryGovernor(MemoryGovernor memoryGovernor) {
+        if (mMemoryGovernor != null) {
+            mMemoryGovernor.unregister(mCache);
+        }
+        mMemoryGovernor = memoryGovernor;
+        if (memoryGovernor != null) {
+            memoryGovernor.register("artwork", MemoryGovernor.PRIORITY_ARTWORK, mCache);
+        }
+    }
+
+    /**
+     * Drops every pending delivery to {@code listener}. Must be called on the main thread.
+     */
+    public void cancel(ArtworkListener listener) {
+        for (int i = mPending.size() - 1; i >= 0; --i) {
+            Request request = mPending.get(i);
+            if (request.mListener == listener) {
+                mLoaderHandler.removeCallbacks(request);
+                mPending.remove(i);
+            }
+        }
+    }
+
+    /***************************************************************************************
+     *                                   Loader thread
+     ***************************************************************************************/
+    private Bitmap load(int audioResId, int width, int height) {
+        String key = getKey(audioResId, width, height);
+        Bitmap artwork = mCache.get(key);
+        if (artwork != null || mNoArtwork.contains(key)) {
+            return artwork;
+        }
+
+        File cacheFile = getCacheFile(audioResId, width, height);
+        if (cacheFile != null && cacheFile.exists()) {
+            artwork = BitmapFactory.decodeFile(cacheFile.getPath());
+            if (artwork != null) {
+                cacheFile.setLastModified(System.currentTimeMillis());
+            }
+        }
+
+        if (artwork == null) {
+            byte[] source = getEmbeddedArtwork(audioResId);
+            if (source == null) {
+                source = getSidecarArtwork(audioResId);
+            }
+            artwork = source != null ? decodeToSize(source, width, height) : null;
+            if (artwork != null && cacheFile != null) {
+                writeCacheFile(artwork, cacheFile);
+            }
+        }
+
+        if (artwork != null) {
+            mCache.put(key, artwork);
+            MemoryGovernor memoryGovernor = mMemoryGovernor;
+            if (memoryGovernor != null) {
+                memoryGovernor.enforceBudget();
+            }
+        } else {
+            mNoArtwork.add(key);
+        }
+        return artwork;
+    }
+
+    private byte[] getEmbeddedArtwork(int audioResId) {
+        AssetFileDescriptor assetFD = null;
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            assetFD = mResources.openRawResourceFd(audioResId);
+            retriever.setDataSource(assetFD.getFileDescriptor(), assetFD.getStartOffset(), assetFD.getLength());
+            return retriever.getEmbeddedPicture();
+        } catch (RuntimeException ex) {
+            // Not a file we can read metadata from, e.g. a compressed resource
+            return null;
+        } finally {
+            retriever.release();
+            if (assetFD != null) {
+                try {
+                    assetFD.close();
+                } catch (IOException ex) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    private byte[] getSidecarArtwork(int audioResId) {
+        String sidecarName = getEntryName(audioResId) + SIDECAR_SUFFIX;
+        int sidecarResId = mResources.getIdentifier(sidecarName, "drawable", mPackageName);
+        if (sidecarResId == 0) {
+            sidecarResId = mResources.getIdentifier(sidecarName, "raw", mPackageName);
+        }
+        if (sidecarResId == 0) {
+            return null;
+        }
+
+        InputStream input = null;
+        try {
+            input = mResources.openRawResource(sidecarResId);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16 * 1024];
+            int count;
+            while ((count = input.read(buffer)) > 0) {
+                output.write(buffer, 0, count);
+            }
+            return output.toByteArray();
+        } catch (IOException | Resources.NotFoundException ex) {
+            // @TODO: Log error
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException ex) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes {@code source} at the largest power of two reduction that still covers the
+     * target, then center-crops and scales it to exactly {@code width} x {@code height}.
+     */
+    static Bitmap decodeToSize(byte[] source, int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(source, 0, source.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, width, height);
+        options.inJustDecodeBounds = false;
+        Bitmap sampled = BitmapFactory.decodeByteArray(source, 0, source.length, options);
+        if (sampled == null) {
+            return null;
+        }
+
+        int sampledWidth = sampled.getWidth();
+        int sampledHeight = sampled.getHeight();
+        if (sampledWidth == width && sampledHeight == height) {
+            return sampled;
+        }
+
+        // Crop the sampled image to the target's aspect ratio, then scale the crop
+        float scale = Math.max((float) width / sampledWidth, (float) height / sampledHeight);
+        int cropWidth = Math.min(sampledWidth, Math.round(width / scale));
+        int cropHeight = Math.min(sampledHeight, Math.round(height / scale));
+        Bitmap cropped = Bitmap.createBitmap(sampled, (sampledWidth - cropWidth) / 2,
+                (sampledHeight - cropHeight) / 2, cropWidth, cropHeight);
+        Bitmap artwork = Bitmap.createScaledBitmap(cropped, width, height, true);
+        if (cropped != sampled) {
+            sampled.recycle();
+        }
+        if (artwork != cropped) {
+            cropped.recycle();
+        }
+        return artwork;
+    }
+
+    static int calculateInSampleSize(int sourceWidth, int sourceHeight, int width, int height) {
+        int inSampleSize = 1;
+        while (sourceWidth / (inSampleSize * 2) >= width && sourceHeight / (inSampleSize * 2) >= height) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /***************************************************************************************
+     *                                    Disk cache
+     ***************************************************************************************/
+    private File getCacheFile(int audioResId, int width, int height) {
+        if (!mDiskCacheDir.isDirectory() && !mDiskCacheDir.mkdirs()) {
+            return null;
+        }
+        // Named by resource entry rather than id, ids aren't stable across builds
+        return new File(mDiskCacheDir, getEntryName(audioResId) + "_" + width + "x" + height + ".jpg");
+    }
+
+    private void writeCacheFile(Bitmap artwork, File cacheFile) {
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        FileOutputStream output = null;
+        boolean written = false;
+        try {
+            output = new FileOutputStream(tempFile);
+            written = artwork.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, output);
+        } catch (IOException ex) {
+            // @TODO: Log error
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException ex) {
+                    written = false;
+                }
+            }
+        }
+
+        if (written && tempFile.renameTo(cacheFile)) {
+            trimDiskCache();
+        } else {
+            tempFile.delete();
+        }
+    }
+
+    private void trimDiskCache() {
+        File[] files = mDiskCacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+        if (totalBytes <= DISK_CACHE_MAX_BYTES) {
+            return;
+        }
+
+        // Least recently used first, hits touch the file's modification time
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && totalBytes > DISK_CACHE_MAX_BYTES; ++i) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                totalBytes -= length;
+            }
+        }
+    }
+
+    private String getEntryName(int audioResId) {
+        try {
+            return mResources.getResourceEntryName(audioResId);
+        } catch (Resources.NotFoundException ex) {
+            return Integer.toString(audioResId);
+        }
+    }
+
+    private static String getKey(int audioResId, int width, int height) {
+        return audioResId + ":" + width + "x" + height;
+    }
+}
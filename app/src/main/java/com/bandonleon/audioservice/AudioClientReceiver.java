@@ -4,9 +4,12 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.EnumSet;
 
 public class AudioClientReceiver extends BroadcastReceiver {
 
@@ -17,11 +20,19 @@ public class AudioClientReceiver extends BroadcastReceiver {
     private static final String AUDIO_RESUMED = "com.bandonleon.clientreceiver.action.AUDIO_RESUMED";
     private static final String AUDIO_GET_STATUS = "com.bandonleon.clientreceiver.action.GET_STATUS";
     private static final String AUDIO_POSITION_UPDATE = "com.bandonleon.clientreceiver.action.PROGRESS_UPDATE";
+    private static final String AUDIO_PIN_FINISHED = "com.bandonleon.clientreceiver.action.PIN_FINISHED";
 
+    private static final String EXTRA_SESSION = "com.bandonleon.clientreceiver.extra.SESSION";
+    private static final String EXTRA_SESSIONS = "com.bandonleon.clientreceiver.extra.SESSIONS";
+    private static final String EXTRA_POSITIONS = "com.bandonleon.clientreceiver.extra.POSITIONS";
+    private static final String EXTRA_RATES = "com.bandonleon.clientreceiver.extra.RATES";
     private static final String EXTRA_DURATION = "com.bandonleon.clientreceiver.extra.DURATION";
     private static final String EXTRA_POSITION = "com.bandonleon.clientreceiver.extra.POSITION";
     private static final String EXTRA_IS_LOADED = "com.bandonleon.clientreceiver.extra.IS_LOADED";
     private static final String EXTRA_IS_PLAYING = "com.bandonleon.clientreceiver.extra.IS_PLAYING";
+    private static final String EXTRA_RATE = "com.bandonleon.clientreceiver.extra.RATE";
+    private static final String EXTRA_AUDIO_ID = "com.bandonleon.clientreceiver.extra.AUDIO_ID";
+    private static final String EXTRA_PINNED = "com.bandonleon.clientreceiver.extra.PINNED";
 
     public static IntentFilter getAudioReceiverFilter() {
         IntentFilter filter = new IntentFilter();
@@ -32,44 +43,81 @@ public class AudioClientReceiver extends BroadcastReceiver {
         filter.addAction(AUDIO_RESUMED);
         filter.addAction(AUDIO_GET_STATUS);
         filter.addAction(AUDIO_POSITION_UPDATE);
+        filter.addAction(AUDIO_PIN_FINISHED);
         return filter;
     }
 
-    public static Intent getPositionUpdateIntent(int positionMsec) {
+    /**
+     * @param playbackRate How fast the position is moving, so clients can extrapolate it
+     *                     between updates.
+     */
+    public static Intent getPositionUpdateIntent(int session, int positionMsec, float playbackRate) {
+        return getPositionUpdateIntent(new int[] { session }, new int[] { positionMsec },
+                new float[] { playbackRate }, 1);
+    }
+
+    /**
+     * One tick's worth of position updates, for the first {@code count} sessions in
+     * {@code sessions}. The arrays are copied, so the caller can reuse them.
+     */
+    public static Intent getPositionUpdateIntent(int[] sessions, int[] positionsMsec, float[] playbackRates,
+                                                 int count) {
         Intent intent = new Intent(AUDIO_POSITION_UPDATE);
-        intent.putExtra(EXTRA_POSITION, positionMsec);
+        intent.putExtra(EXTRA_SESSIONS, Arrays.copyOf(sessions, count));
+        intent.putExtra(EXTRA_POSITIONS, Arrays.copyOf(positionsMsec, count));
+        intent.putExtra(EXTRA_RATES, Arrays.copyOf(playbackRates, count));
         return intent;
     }
 
-    public static Intent getAudioLoadedIntent(int durationMsec) {
+    public static Intent getAudioLoadedIntent(int session, int durationMsec) {
         Intent intent = new Intent(AUDIO_LOADED);
+        intent.putExtra(EXTRA_SESSION, session);
         intent.putExtra(EXTRA_DURATION, durationMsec);
         return intent;
     }
 
-    public static Intent getAudioStartedIntent(int durationMsec) {
+    public static Intent getAudioStartedIntent(int session, int durationMsec) {
         Intent intent = new Intent(AUDIO_STARTED);
+        intent.putExtra(EXTRA_SESSION, session);
         intent.putExtra(EXTRA_DURATION, durationMsec);
         return intent;
     }
 
-    public static Intent getAudioResumeIntent(int positionMsec) {
+    public static Intent getAudioResumeIntent(int session, int positionMsec) {
         Intent intent = new Intent(AUDIO_RESUMED);
+        intent.putExtra(EXTRA_SESSION, session);
         intent.putExtra(EXTRA_POSITION, positionMsec);
         return intent;
     }
 
-    public static Intent getGetStatusIntent(boolean isLoaded, boolean isPlaying, int durationMsec, int positionMsec) {
+    public static Intent getGetStatusIntent(int session, boolean isLoaded, boolean isPlaying, int durationMsec,
+                                            int positionMsec, float playbackRate) {
         Intent getStatusIntent = new Intent(AUDIO_GET_STATUS);
+        getStatusIntent.putExtra(EXTRA_SESSION, session);
         getStatusIntent.putExtra(EXTRA_IS_LOADED, isLoaded);
         getStatusIntent.putExtra(EXTRA_IS_PLAYING, isPlaying);
         getStatusIntent.putExtra(EXTRA_DURATION, durationMsec);
         getStatusIntent.putExtra(EXTRA_POSITION, positionMsec);
+        getStatusIntent.putExtra(EXTRA_RATE, playbackRate);
         return getStatusIntent;
     }
 
-    public static Intent getActionIntent(Action action) {
-        return new Intent(action.getActionName());
+    /**
+     * Pins aren't tied to a session, so each listener that wants this hears it once.
+     *
+     * @param pinned false if the download failed, it is tried again the next time it is pinned.
+     */
+    public static Intent getPinFinishedIntent(int audioId, boolean pinned) {
+        Intent intent = new Intent(AUDIO_PIN_FINISHED);
+        intent.putExtra(EXTRA_AUDIO_ID, audioId);
+        intent.putExtra(EXTRA_PINNED, pinned);
+        return intent;
+    }
+
+    public static Intent getActionIntent(int session, Action action) {
+        Intent intent = new Intent(action.getActionName());
+        intent.putExtra(EXTRA_SESSION, session);
+        return intent;
     }
 
     public enum Action {
@@ -88,59 +136,202 @@ public class AudioClientReceiver extends BroadcastReceiver {
     }
 
     public interface AudioListener {
-        void onAudioLoaded(int durationMsec);
-        void onAudioStarted(int durationMsec);
-        void onAudioCompleted();
-        void onAudioPaused();
-        void onAudioResumed(int positionMsec);
-        void onPositionUpdate(int positionMsec);
-        void onStatusUpdate(boolean isLoaded, boolean isPlaying, int durationMsec, int positionMsec);
+        void onAudioLoaded(int session, int durationMsec);
+        void onAudioStarted(int session, int durationMsec);
+        void onAudioCompleted(int session);
+        void onAudioPaused(int session);
+        void onAudioResumed(int session, int positionMsec);
+        void onPositionUpdate(int session, int positionMsec, float playbackRate);
+        void onStatusUpdate(int session, boolean isLoaded, boolean isPlaying, int durationMsec, int positionMsec,
+                            float playbackRate);
+        void onPinFinished(int audioId, boolean pinned);
+    }
+
+    /**
+     * Event types a listener can subscribe to.
+     */
+    public enum Event {
+        LOADED,
+        STARTED,
+        COMPLETED,
+        PAUSED,
+        RESUMED,
+        POSITION,
+        STATUS,
+        PIN_FINISHED
     }
 
-    private Set<AudioListener> mListeners = new HashSet<>();
+    public static final int UNLIMITED_RATE = 0;
+
+    private static final Subscription[] NO_SUBSCRIPTIONS = new Subscription[0];
+
+    /**
+     * One listener's choice of events and position update rate for one session. Position updates that arrive
+     * faster than the listener asked for are coalesced: only the latest one is kept, and it is
+     * delivered once the listener is due again. The interval counts from when the listener's
+     * callback returns, so a listener that is slow to handle updates gets fewer of them instead
+     * of falling behind.
+     *
+     * Only the main thread, which receives the broadcasts and runs the flushes, touches the
+     * pending position. {@link #cancel} can come from any thread, so it just raises a flag that
+     * the main thread checks.
+     */
+    private final class Subscription implements Runnable {
+        final AudioListener mListener;
+        final int mSession;
+        final int mEventMask;
+        final long mMinIntervalMsec;
+        long mNextPositionUptimeMsec;
+        int mPendingPositionMsec;
+        float mPendingPlaybackRate;
+        boolean mHasPendingPosition;
+        boolean mFlushScheduled;
+        volatile boolean mCancelled;
+
+        Subscription(AudioListener listener, int session, EnumSet<Event> events, int maxPositionUpdateHz) {
+            int eventMask = 0;
+            for (Event event : events) {
+                eventMask |= 1 << event.ordinal();
+            }
+            mListener = listener;
+            mSession = session;
+            mEventMask = eventMask;
+            mMinIntervalMsec = maxPositionUpdateHz > 0 ? 1000 / maxPositionUpdateHz : 0;
+        }
+
+        /**
+         * @return true if the listener wants {@code event}, after delivering any position update
+         * it is still owed so that events arrive in order.
+         */
+        boolean accepts(Event event) {
+            if (!wants(event)) {
+                return false;
+            }
+            flushPosition();
+            return true;
+        }
+
+        boolean wants(Event event) {
+            return !mCancelled && (mEventMask & (1 << event.ordinal())) != 0;
+        }
+
+        void onPosition(int positionMsec, float playbackRate, long nowMsec) {
+            if (mCancelled || (mEventMask & (1 << Event.POSITION.ordinal())) == 0) {
+                return;
+            }
+            if (mMinIntervalMsec == 0 || nowMsec >= mNextPositionUptimeMsec) {
+                deliverPosition(positionMsec, playbackRate);
+                return;
+            }
+
+            mPendingPositionMsec = positionMsec;
+            mPendingPlaybackRate = playbackRate;
+            mHasPendingPosition = true;
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mHandler.postAtTime(this, mNextPositionUptimeMsec);
+            }
+        }
+
+        void flushPosition() {
+            if (mHasPendingPosition) {
+                deliverPosition(mPendingPositionMsec, mPendingPlaybackRate);
+            }
+        }
+
+        void cancel() {
+            mCancelled = true;
+            mHandler.removeCallbacks(this);
+        }
+
+        @Override
+        public void run() {
+            mFlushScheduled = false;
+            if (!mCancelled) {
+                flushPosition();
+            }
+        }
+
+        private void deliverPosition(int positionMsec, float playbackRate) {
+            mHasPendingPosition = false;
+            mListener.onPositionUpdate(mSession, positionMsec, playbackRate);
+            if (mMinIntervalMsec > 0) {
+                mNextPositionUptimeMsec = SystemClock.uptimeMillis() + mMinIntervalMsec;
+            }
+        }
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Copy-on-write, so onReceive() can iterate without locking or allocating while
+    // listeners subscribe and unsubscribe, even from inside a callback. Sorted by session, so
+    // an event only visits the subscriptions for its own session.
+    private volatile Subscription[] mSubscriptions = NO_SUBSCRIPTIONS;
 
     @Override
     public void onReceive(Context context, Intent intent) {
+        Subscription[] subscriptions = mSubscriptions;
+        int session = intent.getIntExtra(EXTRA_SESSION, AudioController.DEFAULT_SESSION);
         int durationMsec = 0;
         int positionMsec = 0;
+        float playbackRate = 1.0f;
         switch (intent.getAction()) {
             case AUDIO_LOADED:
                 durationMsec = intent.getIntExtra(EXTRA_DURATION, 0);
-                for (AudioListener listener : mListeners) {
-                    listener.onAudioLoaded(durationMsec);
+                for (int i = firstIndexOf(subscriptions, session); isSession(subscriptions, i, session); ++i) {
+                    if (subscriptions[i].accepts(Event.LOADED)) {
+                        subscriptions[i].mListener.onAudioLoaded(session, durationMsec);
+                    }
                 }
                 break;
 
             case AUDIO_STARTED:
                 durationMsec = intent.getIntExtra(EXTRA_DURATION, 0);
-                for (AudioListener listener : mListeners) {
-                    listener.onAudioStarted(durationMsec);
+                for (int i = firstIndexOf(subscriptions, session); isSession(subscriptions, i, session); ++i) {
+                    if (subscriptions[i].accepts(Event.STARTED)) {
+                        subscriptions[i].mListener.onAudioStarted(session, durationMsec);
+                    }
                 }
                 break;
 
             case AUDIO_COMPLETED:
-                for (AudioListener listener : mListeners) {
-                    listener.onAudioCompleted();
+                for (int i = firstIndexOf(subscriptions, session); isSession(subscriptions, i, session); ++i) {
+                    if (subscriptions[i].accepts(Event.COMPLETED)) {
+                        subscriptions[i].mListener.onAudioCompleted(session);
+                    }
                 }
                 break;
 
             case AUDIO_PAUSED:
-                for (AudioListener listener : mListeners) {
-                    listener.onAudioPaused();
+                for (int i = firstIndexOf(subscriptions, session); isSession(subscriptions, i, session); ++i) {
+                    if (subscriptions[i].accepts(Event.PAUSED)) {
+                        subscriptions[i].mListener.onAudioPaused(session);
+                    }
                 }
                 break;
 
             case AUDIO_RESUMED:
                 positionMsec = intent.getIntExtra(EXTRA_POSITION, 0);
-                for (AudioListener listener : mListeners) {
-                    listener.onAudioResumed(positionMsec);
+                for (int i = firstIndexOf(subscriptions, session); isSession(subscriptions, i, session); ++i) {
+                    if (subscriptions[i].accepts(Event.RESUMED)) {
+                        subscriptions[i].mListener.onAudioResumed(session, positionMsec);
+                    }
                 }
                 break;
 
             case AUDIO_POSITION_UPDATE:
-                positionMsec = intent.getIntExtra(EXTRA_POSITION, 0);
-                for (AudioListener listener : mListeners) {
-                    listener.onPositionUpdate(positionMsec);
+                int[] sessions = intent.getIntArrayExtra(EXTRA_SESSIONS);
+                int[] positionsMsec = intent.getIntArrayExtra(EXTRA_POSITIONS);
+                float[] playbackRates = intent.getFloatArrayExtra(EXTRA_RATES);
+                if (sessions == null || positionsMsec == null || playbackRates == null) {
+                    break;
+                }
+                long nowMsec = SystemClock.uptimeMillis();
+                for (int s = 0; s < sessions.length; ++s) {
+                    session = sessions[s];
+                    for (int i = firstIndexOf(subscriptions, session); isSession(subscriptions, i, session); ++i) {
+                        subscriptions[i].onPosition(positionsMsec[s], playbackRates[s], nowMsec);
+                    }
                 }
                 break;
 
@@ -149,8 +340,23 @@ public class AudioClientReceiver extends BroadcastReceiver {
                 boolean isPlaying = intent.getBooleanExtra(EXTRA_IS_PLAYING, false);
                 durationMsec = intent.getIntExtra(EXTRA_DURATION, 0);
                 positionMsec = intent.getIntExtra(EXTRA_POSITION, 0);
-                for (AudioListener listener : mListeners) {
-                    listener.onStatusUpdate(isLoaded, isPlaying, durationMsec, positionMsec);
+                playbackRate = intent.getFloatExtra(EXTRA_RATE, 1.0f);
+                for (int i = firstIndexOf(subscriptions, session); isSession(subscriptions, i, session); ++i) {
+                    if (subscriptions[i].accepts(Event.STATUS)) {
+                        subscriptions[i].mListener.onStatusUpdate(session, isLoaded, isPlaying, durationMsec,
+                                positionMsec, playbackRate);
+                    }
+                }
+                break;
+
+            case AUDIO_PIN_FINISHED:
+                int audioId = intent.getIntExtra(EXTRA_AUDIO_ID, 0);
+                boolean pinned = intent.getBooleanExtra(EXTRA_PINNED, false);
+                for (int i = 0; i < subscriptions.length; ++i) {
+                    if (isFirstWanting(subscriptions, i, Event.PIN_FINISHED)
+                            && subscriptions[i].accepts(Event.PIN_FINISHED)) {
+                        subscriptions[i].mListener.onPinFinished(audioId, pinned);
+                    }
                 }
                 break;
 
@@ -159,11 +365,125 @@ public class AudioClientReceiver extends BroadcastReceiver {
         }
     }
 
-    public void addAudioListener(AudioListener listener) {
-        mListeners.add(listener);
+    /**
+     * Subscribes {@code listener} to {@code events} of {@code session}, replacing any earlier
+     * subscription it had to that session. Callbacks are made on the main thread.
+     *
+     * @param maxPositionUpdateHz Highest rate at which to receive position updates,
+     *                            or {@link #UNLIMITED_RATE} for every update the service sends.
+     */
+    public synchronized void subscribe(AudioListener listener, int session, EnumSet<Event> events,
+                                       int maxPositionUpdateHz) {
+        Subscription[] current = mSubscriptions;
+        int index = indexOf(current, listener, session);
+        Subscription subscription = new Subscription(listener, session, events, maxPositionUpdateHz);
+        Subscription[] updated;
+        if (index >= 0) {
+            current[index].cancel();
+            updated = Arrays.copyOf(current, current.length);
+            updated[index] = subscription;
+        } else {
+            // After the session's other subscriptions, so they keep being called in order
+            index = firstIndexOf(current, session + 1);
+            updated = new Subscription[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            updated[index] = subscription;
+            System.arraycopy(current, index, updated, index + 1, current.length - index);
+        }
+        mSubscriptions = updated;
+    }
+
+    public synchronized void unsubscribe(AudioListener listener, int session) {
+        Subscription[] current = mSubscriptions;
+        int index = indexOf(current, listener, session);
+        if (index < 0) {
+            return;
+        }
+
+        current[index].cancel();
+        Subscription[] updated = new Subscription[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        mSubscriptions = updated;
+    }
+
+    /**
+     * Unsubscribes {@code listener} from every session.
+     */
+    public synchronized void unsubscribe(AudioListener listener) {
+        Subscription[] current = mSubscriptions;
+        int kept = 0;
+        Subscription[] updated = new Subscription[current.length];
+        for (Subscription subscription : current) {
+            if (subscription.mListener == listener) {
+                subscription.cancel();
+            } else {
+                updated[kept++] = subscription;
+            }
+        }
+        if (kept < current.length) {
+            mSubscriptions = Arrays.copyOf(updated, kept);
+        }
+    }
+
+    /**
+     * Subscribes {@code listener} to every event of {@code session} at the full update rate.
+     */
+    public void addAudioListener(AudioListener listener, int session) {
+        subscribe(listener, session, EnumSet.allOf(Event.class), UNLIMITED_RATE);
     }
 
     public void removeAudioListener(AudioListener listener) {
-        mListeners.remove(listener);
+        unsubscribe(listener);
+    }
+
+    int getAudioListenerCount() {
+        return mSubscriptions.length;
+    }
+
+    /**
+     * @return true if the subscription at {@code index} wants {@code event} and no earlier
+     * subscription of the same listener does, for events that aren't about one session.
+     */
+    private static boolean isFirstWanting(Subscription[] subscriptions, int index, Event event) {
+        if (!subscriptions[index].wants(event)) {
+            return false;
+        }
+        for (int i = 0; i < index; ++i) {
+            if (subscriptions[i].mListener == subscriptions[index].mListener && subscriptions[i].wants(event)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Index of the first subscription to {@code session} or a later one.
+     */
+    private static int firstIndexOf(Subscription[] subscriptions, int session) {
+        int low = 0;
+        int high = subscriptions.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (subscriptions[mid].mSession < session) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static boolean isSession(Subscription[] subscriptions, int index, int session) {
+        return index < subscriptions.length && subscriptions[index].mSession == session;
+    }
+
+    private static int indexOf(Subscription[] subscriptions, AudioListener listener, int session) {
+        for (int i = firstIndexOf(subscriptions, session); isSession(subscriptions, i, session); ++i) {
+            if (subscriptions[i].mListener == listener) {
+                return i;
+            }
+        }
+        return -1;
     }
 }
@@ -1,15 +1,43 @@
 package com.bandonleon.audioservice;
 
 /**
+ * Playback is organized in sessions, each with its own player and state, all playing at once.
+ * {@link #DEFAULT_SESSION} always exists, others come from {@link #openSession()}. Calls with a
+ * session that isn't open are ignored. Pins and clips are shared by every session.
+ *
  * Created by dom on 12/7/15.
  */
 public interface AudioController {
-    void loadAudio(int audioResId);
-    void playAudio(int audioResId);
-    void resumeAudio();
-    void pauseAudio();
-    void seekAudio(int msec);
-    void rewindAudioFull();
-    void rewindAudio15Sec();
-    void requestStatus();
+    int DEFAULT_SESSION = 1;
+
+    /**
+     * @return Handle of a new session, stopped with nothing loaded.
+     */
+    int openSession();
+
+    /**
+     * Stops and releases {@code session}. The default session can't be closed.
+     */
+    void closeSession(int session);
+
+    void loadAudio(int session, int audioResId);
+    void playAudio(int session, int audioResId);
+    void applyTransaction(int session, AudioTransaction transaction);
+    /**
+     * Downloads {@code url} for offline playback of {@code audioId}. Clients hear how it went
+     * from {@link AudioClientReceiver.AudioListener#onPinFinished}.
+     */
+    void pinAudio(int audioId, String url, String sha256Hex);
+    void unpinAudio(int audioId);
+    void queueNextAudio(int session, int audioResId);
+    void setCrossfadeDuration(int session, int msec);
+    void setPlaybackRate(int session, float rate);
+    void preloadClip(int clipResId);
+    void playClip(int clipResId);
+    void resumeAudio(int session);
+    void pauseAudio(int session);
+    void seekAudio(int session, int msec);
+    void rewindAudioFull(int session);
+    void rewindAudio15Sec(int session);
+    void requestStatus(int session);
 }
@@ -0,0 +1,1260 @@
+package com.bandonleon.audioservice;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaPlayer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import java.io.IOException;
+
+/**
+ * Decodes tracks in-process and writes the PCM to an AudioTrack. The public surface
+ * mirrors the subset of MediaPlayer that AudioService used, plus support for queueing the
+ * next track so that it can be crossfaded (or played gaplessly) into.
+ *
+ * Decoding and writing happen on a dedicated playback thread. Tracks are opened on a
+ * loader thread, so a queued track is already decoding by the time the crossfade starts.
+ * All listener callbacks are delivered on the main looper.
+ *
+ * The playback thread owns the decoders and the DSP state and renders each block without
+ * holding the engine's lock. Control calls only record what they want (a track to take over,
+ * a position to seek to) under the lock, and the playback thread applies it before its next
+ * block. So neither they nor position queries ever wait on the codec.
+ *
+ * Normally the AudioTrack holds one block plus one period of the output, rounded to whole
+ * periods, and the playback thread keeps it topped up a block at a time, so pauses, seeks,
+ * rate changes and track changes are heard promptly. In
+ * deep buffer mode the track holds {@code DEEP_BUFFER_MSEC} of audio, which the thread lets
+ * play down to {@code DEEP_BUFFER_LOW_WATER_MSEC} and then refills in one burst, so the CPU can
+ * sleep for most of a second at a time. Switching modes changes how the thread refills right
+ * away, but the track keeps its size until it is empty or paused anyway: at a seek, a rate
+ * change, a new track or a resume. So nothing already queued is dropped. Queued tracks play on
+ * through the same track, at the native rate they are no such point.
+ * The deep track counts against the {@link MemoryGovernor}'s budget, which can take deep
+ * buffering back when memory runs short.
+ *
+ * At playback rates other than 1 the decoded (and crossfaded) audio goes through a
+ * {@link TimeStretcher} before it is written, so speed changes without changing pitch.
+ *
+ * The track runs at the device's native output rate. Tracks decoded at another rate are
+ * converted by a {@link Resampler} on the playback thread, so the system mixer never has to
+ * resample them. Tracks already at the native rate are written as they are. A queued track at
+ * another rate than the current one is resampled to the current one's rate to be crossfaded in.
+ */
+public class AudioEngine implements AudioPlayer, MemoryGovernor.Component {
+    public static final int ERROR_UNKNOWN = MediaPlayer.MEDIA_ERROR_UNKNOWN;
+    public static final int ERROR_IO = MediaPlayer.MEDIA_ERROR_IO;
+
+    private static final int CHANNELS = PcmDecoder.OUTPUT_CHANNELS;
+    private static final int BUFFER_FRAMES = 1024;
+    private static final int DEFAULT_FRAMES_PER_BUFFER = 256;
+    private static final int DEEP_BUFFER_MSEC = 1000;
+    private static final int DEEP_BUFFER_LOW_WATER_MSEC = 200;
+    private static final int DRAIN_POLL_MSEC = 10;
+    private static final int DRAIN_MAX_STALLED_POLLS = 20;
+
+    private static final int RENDER_END_OF_STREAM = -1;
+    private static final int RENDER_RATE_CHANGE = -2;
+
+    private final Object mLock = new Object();
+    private final Handler mCallbackHandler;
+    private final HandlerThread mLoaderThread;
+    private final Handler mLoaderHandler;
+    private final Thread mPlaybackThread;
+
+    private final PlaybackStats mStats;
+    private final MemoryGovernor mMemoryGovernor;
+    private final Crossfader mCrossfader = new Crossfader(CHANNELS);
+    private final short[] mMixBuffer = new short[BUFFER_FRAMES * CHANNELS];
+    private final short[] mFadeBuffer = new short[BUFFER_FRAMES * CHANNELS];
+    private final short[] mSourceBuffer = new short[BUFFER_FRAMES * CHANNELS];
+    private final short[] mResampleBuffer = new short[BUFFER_FRAMES * CHANNELS];
+    private final short[] mOverlapBuffer = new short[BUFFER_FRAMES * CHANNELS];
+    private final TimeStretcher mStretcher = new TimeStretcher(CHANNELS, BUFFER_FRAMES);
+    private final Resampler mResampler = new Resampler(CHANNELS, BUFFER_FRAMES);
+    private final int mNativeSampleRate;
+    private final int mFramesPerBuffer;
+    private volatile long mMemoryBytes;     // Republished whenever the track or the DSP is resized
+
+    // Only touched by the playback thread, or once it has exited
+    private PcmDecoder mCurrent;
+    private PcmDecoder mOutgoing;
+    private PcmDecoder mNext;
+    private int mSourceSampleRate;      // Rate the stretcher and resampler are set up for
+    private boolean mResampling;
+    private Resampler mCurrentResampler = new Resampler(CHANNELS, BUFFER_FRAMES);
+    private Resampler mOutgoingResampler = new Resampler(CHANNELS, BUFFER_FRAMES);
+    private boolean mCurrentResampled;  // Read at mSourceSampleRate through mCurrentResampler
+    private boolean mOutgoingResampled;
+    private int mStretchEndResult;
+    private int mResampleEndResult;
+    private float mRenderRate = 1.0f;   // mPlaybackRate and mCrossfadeMsec as of this block
+    private int mRenderCrossfadeMsec;
+    private boolean mSwitched;          // This block switched to the next track
+    private long mSwitchSourceFrame;    // Frame of the new mCurrent at the switch
+    private long mSwitchDelayFrames;    // Frames of the block, and queued in the DSP, ahead of it
+
+    // Everything below is guarded by mLock
+    private AssetFileDescriptor mDataSource;
+    private PcmDecoder mInstalled;      // Prepared, for the playback thread to take over as mCurrent
+    private PcmDecoder mQueued;         // Likewise for mNext, valid while mQueuedChanged
+    private boolean mQueuedChanged;
+    private AudioTrack mTrack;
+    private int mTrackSampleRate;
+    private long mTrackCapacityFrames;
+    private boolean mTrackDeep;         // Sized for deep buffer mode
+    private long mFramesWritten;
+    private long mSegmentWrittenFrame;  // Written frame index at which mSegmentSourceFrame plays
+    private long mSegmentSourceFrame;   // Frame of mCurrent playing there, then onward at mPlaybackRate
+    private long mSeekFrames = -1;      // Where the pending flush moves mCurrent to, -1 to leave it
+    private long mSourcePositionFrames; // Position of mCurrent as of the last flush
+    private int mSampleRate;            // Of mCurrent, 0 until a track is prepared
+    private long mDurationFrames;       // Of mCurrent, 0 if the track doesn't say
+    private int mDurationMsec;
+    private float mPlaybackRate = 1.0f;
+    private int mCrossfadeMsec;
+    private int mLoadGeneration;
+    private int mNextGeneration;
+    private int mFlushGeneration;
+    private boolean mPlaying;
+    private boolean mCompleted;
+    private boolean mFlushPending;
+    private boolean mDeepBuffer;
+    private boolean mRefilling;
+    private boolean mReleased;
+
+    private OnPreparedListener mPreparedListener;
+    private OnCompletionListener mCompletionListener;
+    private OnErrorListener mErrorListener;
+    private OnTrackChangedListener mTrackChangedListener;
+
+    /**
+     * @param framesPerBuffer The output's period, from {@link #getNativeFramesPerBuffer}.
+     */
+    public AudioEngine(PlaybackStats stats, int framesPerBuffer, MemoryGovernor memoryGovernor) {
+        mStats = stats;
+        mMemoryGovernor = memoryGovernor;
+        mCallbackHandler = new Handler(Looper.getMainLooper());
+        mNativeSampleRate = AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+        mFramesPerBuffer = framesPerBuffer;
+        publishMemoryBytes();
+
+        mLoaderThread = new HandlerThread("AudioEngineLoader", Process.THREAD_PRIORITY_BACKGROUND);
+        mLoaderThread.start();
+        mLoaderHandler = new Handler(mLoaderThread.getLooper());
+
+        mPlaybackThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+                runPlayback();
+            }
+        }, "AudioEngine");
+        mPlaybackThread.start();
+        mMemoryGovernor.register("playback", MemoryGovernor.PRIORITY_PLAYBACK, this);
+    }
+
+    @Override
+    public void setOnPreparedListener(OnPreparedListener listener) {
+        mPreparedListener = listener;
+    }
+
+    @Override
+    public void setOnCompletionListener(OnCompletionListener listener) {
+        mCompletionListener = listener;
+    }
+
+    @Override
+    public void setOnErrorListener(OnErrorListener listener) {
+        mErrorListener = listener;
+    }
+
+    @Override
+    public void setOnTrackChangedListener(OnTrackChangedListener listener) {
+        mTrackChangedListener = listener;
+    }
+
+    /**
+     * The engine takes ownership of {@code assetFD} and closes it once the track is opened.
+     */
+    @Override
+    public void setDataSource(AssetFileDescriptor assetFD) {
+        synchronized (mLock) {
+            closeQuietly(mDataSource);
+            mDataSource = assetFD;
+        }
+    }
+
+    /**
+     * Opens the data source on the loader thread, positioned at {@code startPositionMsec}. With
+     * {@code startWhenPrepared} the engine is already playing by the time onPrepared() is called,
+     * so the track is set up in one step and the first audio written is from the start position.
+     */
+    @Override
+    public void prepareAsync(final int startPositionMsec, final boolean startWhenPrepared) {
+        final AssetFileDescriptor assetFD;
+        final int generation;
+        synchronized (mLock) {
+            assetFD = mDataSource;
+            mDataSource = null;
+            generation = ++mLoadGeneration;
+        }
+        if (assetFD == null) {
+            return;
+        }
+
+        mLoaderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                PcmDecoder decoder = openDecoder(assetFD);
+                if (decoder == null) {
+                    return;
+                }
+                if (startPositionMsec > 0) {
+                    decoder.seekTo((long) startPositionMsec * decoder.getSampleRate() / 1000L);
+                }
+                if (startWhenPrepared) {
+                    decoder.prime();
+                }
+                installDecoder(decoder, generation, startWhenPrepared);
+            }
+        });
+    }
+
+    /**
+     * Queues the track that follows the current one. It is opened and primed right away so
+     * that no decoding startup cost lands on the playback thread at the crossfade point.
+     * The engine takes ownership of {@code assetFD}.
+     */
+    @Override
+    public void setNextDataSource(final AssetFileDescriptor assetFD) {
+        final int generation;
+        PcmDecoder dropped;
+        synchronized (mLock) {
+            generation = ++mNextGeneration;
+            dropped = mQueued;
+            mQueued = null;
+            mQueuedChanged = true;
+        }
+        if (dropped != null) {
+            dropped.release();
+        }
+        if (assetFD == null) {
+            return;
+        }
+
+        mLoaderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                PcmDecoder decoder = openDecoder(assetFD);
+                if (decoder == null) {
+                    return;
+                }
+                decoder.prime();
+                synchronized (mLock) {
+                    if (!mReleased && generation == mNextGeneration) {
+                        mQueued = decoder;
+                        mQueuedChanged = true;
+                        return;
+                    }
+                }
+                decoder.release();
+            }
+        });
+    }
+
+    /**
+     * @param msec Length of the equal-power crossfade into the next track, 0 for gapless.
+     */
+    @Override
+    public void setCrossfadeDuration(int msec) {
+        synchronized (mLock) {
+            mCrossfadeMsec = Math.max(msec, 0);
+        }
+    }
+
+    /**
+     * @param deepBuffer true to refill the track rarely and in bursts, for when nobody is
+     *                   watching the position and latency to new audio doesn't matter. Only
+     *                   the refill policy changes now, the track is resized for the mode the
+     *                   next time it is empty or paused.
+     */
+    @Override
+    public void setDeepBuffer(boolean deepBuffer) {
+        synchronized (mLock) {
+            mDeepBuffer = deepBuffer;
+            mRefilling = false;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Changes speed without changing pitch. Audio already queued in the track was rendered at
+     * the old rate, so it is dropped and playback continues from the current position, like a
+     * seek. That also ends a crossfade in progress.
+     *
+     * @param rate Clamped to {@link TimeStretcher#MIN_RATE} - {@link TimeStretcher#MAX_RATE}.
+     */
+    @Override
+    public void setPlaybackRate(float rate) {
+        rate = Math.max(TimeStretcher.MIN_RATE, Math.min(rate, TimeStretcher.MAX_RATE));
+        synchronized (mLock) {
+            if (rate == mPlaybackRate) {
+                return;
+            }
+            long positionFrames = mSampleRate > 0 && !mCompleted ? getPositionFramesLocked() : 0;
+            mPlaybackRate = rate;
+            if (mSampleRate > 0 && !mCompleted) {
+                seekLocked(positionFrames);
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public float getPlaybackRate() {
+        synchronized (mLock) {
+            return mPlaybackRate;
+        }
+    }
+
+    @Override
+    public void start() {
+        synchronized (mLock) {
+            if (mSampleRate == 0 || mPlaying) {
+                return;
+            }
+            if (mCompleted) {
+                seekLocked(0);
+            } else if (mTrack != null && mTrackDeep != mDeepBuffer) {
+                // Nothing is playing yet, so the track can be resized for the buffer mode
+                // without being heard
+                seekLocked(getPositionFramesLocked());
+            }
+            mPlaying = true;
+            if (mTrack != null) {
+                mTrack.play();
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void pause() {
+        synchronized (mLock) {
+            mPlaying = false;
+            if (mTrack != null) {
+                mTrack.pause();
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void stop() {
+        synchronized (mLock) {
+            mPlaying = false;
+            if (mTrack != null) {
+                mTrack.pause();
+            }
+            if (mSampleRate > 0) {
+                seekLocked(0);
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void seekTo(int msec) {
+        synchronized (mLock) {
+            if (mSampleRate > 0) {
+                seekLocked((long) msec * mSampleRate / 1000L);
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public boolean isPlaying() {
+        synchronized (mLock) {
+            return mPlaying;
+        }
+    }
+
+    @Override
+    public int getDuration() {
+        synchronized (mLock) {
+            return mDurationMsec;
+        }
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        synchronized (mLock) {
+            if (mSampleRate == 0) {
+                return 0;
+            }
+            if (mCompleted && mDurationMsec > 0) {
+                return mDurationMsec;
+            }
+            return (int) (getPositionFramesLocked() * 1000L / mSampleRate);
+        }
+    }
+
+    /**
+     * @return Bytes in the track's buffer and the playback thread's buffers. Decoder buffers
+     * are the codec's own and aren't counted. Doesn't take the engine's lock, so the
+     * {@link MemoryGovernor} can ask while holding its own.
+     */
+    @Override
+    public long getMemoryBytes() {
+        return mMemoryBytes;
+    }
+
+    /**
+     * Gives up deep buffering, which is all the engine can spare: playback falls back to the
+     * normal buffer until deep buffering is asked for again. A deep track that is still
+     * playing is replaced right away, which is heard like a seek, so it only happens when
+     * nothing cheaper to rebuild is left to trim.
+     */
+    @Override
+    public void trimMemory(long maxBytes) {
+        synchronized (mLock) {
+            if (mMemoryBytes <= maxBytes || !(mDeepBuffer || mTrackDeep)) {
+                return;
+            }
+            mDeepBuffer = false;
+            mRefilling = false;
+            if (mTrackDeep && mSampleRate > 0 && !mCompleted) {
+                // The flush drops the deep track, the next block creates a normal one
+                seekLocked(getPositionFramesLocked());
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void release() {
+        mMemoryGovernor.unregister(this);
+        synchronized (mLock) {
+            mReleased = true;
+            if (mTrack != null) {
+                // Unblocks a pending write
+                mTrack.stop();
+            }
+            mLock.notifyAll();
+        }
+
+        try {
+            mPlaybackThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        mLoaderThread.quit();
+
+        synchronized (mLock) {
+            closeQuietly(mDataSource);
+            mDataSource = null;
+            // The playback thread is gone, so its decoders can be released from here
+            releaseDecodersLocked();
+            if (mTrack != null) {
+                mTrack.release();
+                mTrack = null;
+            }
+        }
+        mMemoryBytes = 0;
+
+        // Nothing more reaches the listeners, including callbacks already posted but not yet run
+        // and any the loader thread posts while it winds down
+        mPreparedListener = null;
+        mCompletionListener = null;
+        mErrorListener = null;
+        mTrackChangedListener = null;
+        mCallbackHandler.removeCallbacksAndMessages(null);
+    }
+
+    /***************************************************************************************
+     *                                   Loader thread
+     ***************************************************************************************/
+    private PcmDecoder openDecoder(AssetFileDescriptor assetFD) {
+        try {
+            return new PcmDecoder(assetFD);
+        } catch (IOException | RuntimeException ex) {
+            postError(ERROR_IO);
+            return null;
+        } finally {
+            closeQuietly(assetFD);
+        }
+    }
+
+    private void installDecoder(PcmDecoder decoder, int generation, boolean playing) {
+        boolean stale;
+        PcmDecoder superseded = null;
+        synchronized (mLock) {
+            stale = mReleased || generation != mLoadGeneration;
+            if (!stale) {
+                // The playback thread takes it over with the flush, and releases the old track
+                superseded = mInstalled;
+                mInstalled = decoder;
+                publishTrackLocked(decoder);
+                mSourcePositionFrames = decoder.getPositionFrames();
+                mSeekFrames = -1;
+                mPlaying = playing;
+                mCompleted = false;
+                requestFlushLocked();
+                mLock.notifyAll();
+            }
+        }
+        if (superseded != null) {
+            // Prepared and replaced before the playback thread got to it
+            superseded.release();
+        }
+        if (stale) {
+            decoder.release();
+            return;
+        }
+
+        mCallbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mPreparedListener != null) {
+                    mPreparedListener.onPrepared(AudioEngine.this);
+                }
+            }
+        });
+    }
+
+    /***************************************************************************************
+     *                                  Playback thread
+     ***************************************************************************************/
+    private void runPlayback() {
+        long budgetedBytes = mMemoryBytes;
+        while (true) {
+            // The track or the DSP grew, bring everything back under budget. Outside the lock,
+            // the governor may call back into trimMemory.
+            if (mMemoryBytes > budgetedBytes) {
+                mMemoryGovernor.enforceBudget();
+            }
+            budgetedBytes = mMemoryBytes;
+
+            PcmDecoder installed;
+            PcmDecoder queued = null;
+            boolean queuedChanged;
+            boolean flush;
+            long seekFrames;
+            int flushGeneration;
+            synchronized (mLock) {
+                try {
+                    while (!mReleased && !mFlushPending && !(mPlaying && mCurrent != null)) {
+                        mLock.wait();
+                        ++mStats.mPlaybackWakeups;
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                if (mReleased) {
+                    return;
+                }
+                installed = mInstalled;
+                mInstalled = null;
+                queuedChanged = mQueuedChanged;
+                if (queuedChanged) {
+                    queued = mQueued;
+                    mQueued = null;
+                    mQueuedChanged = false;
+                }
+                flush = mFlushPending;
+                seekFrames = mSeekFrames;
+                flushGeneration = mFlushGeneration;
+                mRenderRate = mPlaybackRate;
+            }
+
+            // Apply what the control calls asked for. Seeking touches the codec, so this
+            // happens outside the lock too.
+            if (installed != null) {
+                releaseOutgoing();
+                if (mCurrent != null) {
+                    mCurrent.release();
+                }
+                mCurrent = installed;
+                mCurrentResampled = false;
+            }
+            if (queuedChanged) {
+                if (mNext != null) {
+                    mNext.release();
+                }
+                mNext = queued;
+            }
+            if (flush) {
+                if (seekFrames >= 0 && mCurrent != null) {
+                    releaseOutgoing();
+                    mCurrent.seekTo(seekFrames);
+                }
+                mStretcher.setRate(mRenderRate);
+                mStretcher.reset();
+                mResampler.reset();
+                // Back to mCurrent's own rate, the track is empty
+                mCurrentResampled = false;
+            }
+
+            int renderGeneration;
+            boolean topUp;
+            synchronized (mLock) {
+                if (mReleased) {
+                    return;
+                }
+                if (flush) {
+                    if (flushGeneration != mFlushGeneration) {
+                        // Asked to flush again meanwhile, apply that first
+                        continue;
+                    }
+                    flushLocked();
+                }
+                if (!mPlaying || mCurrent == null) {
+                    continue;
+                }
+
+                ensureTrackLocked(mCurrentResampled ? mSourceSampleRate : mCurrent.getSampleRate());
+                topUp = !mDeepBuffer;
+                try {
+                    if (!(topUp ? waitForRoomLocked() : waitForRefillLocked())) {
+                        continue;
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                }
+
+                if (mFramesWritten > 0 && getHeadFramesLocked() >= mFramesWritten) {
+                    ++mStats.mUnderruns;
+                    if (mOutgoing != null) {
+                        ++mStats.mCrossfadeUnderruns;
+                    }
+                }
+                renderGeneration = mFlushGeneration;
+                mRenderRate = mPlaybackRate;
+                mRenderCrossfadeMsec = mCrossfadeMsec;
+            }
+
+            boolean wasFading = mOutgoing != null;
+            if (mStretcher.getRate() != mRenderRate) {
+                mStretcher.setRate(mRenderRate);
+            }
+            mSwitched = false;
+            long startNanos = System.nanoTime();
+            int result = mResampling ? renderResampled() : renderAtRate(mMixBuffer);
+            long elapsedNanos = System.nanoTime() - startNanos;
+            if (result > 0) {
+                if (wasFading || mOutgoing != null) {
+                    mStats.mCrossfadeRenderNanos += elapsedNanos;
+                    mStats.mCrossfadeFrames += result;
+                } else {
+                    mStats.mRenderNanos += elapsedNanos;
+                    mStats.mRenderedFrames += result;
+                }
+            }
+
+            AudioTrack track;
+            synchronized (mLock) {
+                if (mReleased) {
+                    return;
+                }
+                if (mSwitched) {
+                    publishSwitchLocked();
+                }
+                if (renderGeneration != mFlushGeneration) {
+                    // Sought while rendering, so the block is stale
+                    continue;
+                }
+                track = mTrack;
+            }
+
+            if (result > 0) {
+                writeFully(track, result);
+                if (topUp) {
+                    // The write blocked until the track had room for this block
+                    ++mStats.mPlaybackWakeups;
+                }
+            } else if (result == RENDER_RATE_CHANGE) {
+                // At the native rate the track stays as it is and the next track just gets
+                // resampled differently, otherwise the track has to play out to be replaced
+                if (mNativeSampleRate > 0 || drain()) {
+                    synchronized (mLock) {
+                        // Unless sought or released since the end was rendered
+                        if (mFlushPending || mReleased) {
+                            continue;
+                        }
+                    }
+                    if (mNext != null) {
+                        switchToNext();
+                        synchronized (mLock) {
+                            if (mReleased) {
+                                return;
+                            }
+                            publishSwitchLocked();
+                        }
+                    }
+                }
+            } else if (result == RENDER_END_OF_STREAM) {
+                if (drain()) {
+                    complete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Normal mode: the blocking write paces the playback thread, unless the track is still sized
+     * for deep buffering. Then what it has queued plays down to what a normal track holds before
+     * the next block, so latency to new audio drops back without replacing the track.
+     *
+     * @return true to render the next block, false after sleeping, to re-check state first.
+     */
+    private boolean waitForRoomLocked() throws InterruptedException {
+        if (!mTrackDeep) {
+            return true;
+        }
+        long excessFrames = mFramesWritten - getHeadFramesLocked() + BUFFER_FRAMES - getNormalBufferFrames();
+        if (excessFrames <= 0) {
+            return true;
+        }
+        mLock.wait(Math.max(1, excessFrames * 1000L / mTrackSampleRate));
+        ++mStats.mPlaybackWakeups;
+        return false;
+    }
+
+    /**
+     * Deep buffer mode: sleeps until the track has played down to its low water mark, then
+     * lets the playback thread render block after block until the track is full again. A track
+     * still sized for normal mode has its low water mark at the same share of what it holds.
+     *
+     * @return true to render the next block, false after sleeping, to re-check state first.
+     */
+    private boolean waitForRefillLocked() throws InterruptedException {
+        long queuedFrames = mFramesWritten - getHeadFramesLocked();
+        if (mRefilling) {
+            if (queuedFrames + BUFFER_FRAMES <= mTrackCapacityFrames) {
+                return true;
+            }
+            mRefilling = false;
+        }
+
+        long lowWaterFrames = Math.min((long) DEEP_BUFFER_LOW_WATER_MSEC * mTrackSampleRate / 1000L,
+                mTrackCapacityFrames * DEEP_BUFFER_LOW_WATER_MSEC / DEEP_BUFFER_MSEC);
+        if (queuedFrames <= lowWaterFrames) {
+            mRefilling = true;
+            return true;
+        }
+        mLock.wait(Math.max(1, (queuedFrames - lowWaterFrames) * 1000L / mTrackSampleRate));
+        ++mStats.mPlaybackWakeups;
+        return false;
+    }
+
+    /**
+     * Renders a block of mCurrent (crossfaded into mNext when due) into {@code dst}, at 1x and
+     * at mSourceSampleRate. A track that doesn't know its duration can't be faded out ahead of
+     * its end, so it is followed gaplessly instead.
+     *
+     * A next track decoded at another rate is resampled to this one for the crossfade, and
+     * stays resampled here until the next seek or track change lets the stretcher and
+     * resampler after this be set up for its own rate without a gap.
+     *
+     * @return Frames rendered, or a RENDER_ code.
+     */
+    private int render(short[] dst) {
+        int sampleRate = mSourceSampleRate;
+        long durationFrames = mCurrent.getDurationFrames();
+        if (mOutgoing == null && mNext != null && mRenderCrossfadeMsec > 0 && durationFrames > 0) {
+            long remainingFrames = (durationFrames - mCurrent.getPositionFrames()) * sampleRate
+                    / mCurrent.getSampleRate();
+            long fadeFrames = (long) mRenderCrossfadeMsec * sampleRate / 1000L;
+            if (remainingFrames <= fadeFrames) {
+                mOutgoing = mCurrent;
+                // The outgoing track keeps its resampler state
+                Resampler resampler = mOutgoingResampler;
+                mOutgoingResampler = mCurrentResampler;
+                mCurrentResampler = resampler;
+                mOutgoingResampled = mCurrentResampled;
+                mCrossfader.start(remainingFrames);
+                ++mStats.mCrossfades;
+                switchToNext();
+                if (mCurrent.getSampleRate() != sampleRate) {
+                    mCurrentResampler.configure(mCurrent.getSampleRate(), sampleRate);
+                    mCurrentResampled = true;
+                }
+            }
+        }
+
+        int frames = read(mCurrent, mCurrentResampler, mCurrentResampled, dst);
+        if (mOutgoing != null) {
+            zeroFill(dst, Math.max(frames, 0));
+            zeroFill(mFadeBuffer, Math.max(read(mOutgoing, mOutgoingResampler, mOutgoingResampled, mFadeBuffer), 0));
+            mCrossfader.mix(mFadeBuffer, dst, dst, BUFFER_FRAMES);
+            if (!mCrossfader.isActive()) {
+                mOutgoing.release();
+                mOutgoing = null;
+                mOutgoingResampled = false;
+            }
+            return BUFFER_FRAMES;
+        }
+
+        if (frames >= 0) {
+            return frames;
+        }
+        if (mNext == null) {
+            return RENDER_END_OF_STREAM;
+        }
+        if (mNext.getSampleRate() != sampleRate) {
+            return RENDER_RATE_CHANGE;
+        }
+
+        // Gapless transition
+        switchToNext();
+        return Math.max(mCurrent.read(dst, 0, BUFFER_FRAMES), 0);
+    }
+
+    /**
+     * Reads a block of {@code decoder} at mSourceSampleRate, through {@code resampler} if
+     * {@code resampled}.
+     *
+     * @return Frames read, or -1 once the end of the track has come out.
+     */
+    private int read(PcmDecoder decoder, Resampler resampler, boolean resampled, short[] dst) {
+        if (!resampled) {
+            return decoder.read(dst, 0, BUFFER_FRAMES);
+        }
+        int frames = 0;
+        while (true) {
+            frames += resampler.read(dst, frames * CHANNELS, BUFFER_FRAMES - frames);
+            if (frames == BUFFER_FRAMES) {
+                return frames;
+            }
+            if (resampler.isEnded()) {
+                return frames > 0 ? frames : -1;
+            }
+
+            int read = decoder.read(mOverlapBuffer, 0, BUFFER_FRAMES);
+            if (read < 0) {
+                resampler.endOfInput();
+            } else if (read > 0) {
+                resampler.write(mOverlapBuffer, 0, read);
+            } else {
+                return frames;
+            }
+        }
+    }
+
+    private int renderAtRate(short[] dst) {
+        return mRenderRate != 1.0f ? renderStretched(dst) : render(dst);
+    }
+
+    /**
+     * Renders a block at mRenderRate into {@code dst}, pulling as many 1x blocks through the
+     * stretcher as that takes. At the end of the source the stretcher's tail is played out
+     * before the end is passed on.
+     */
+    private int renderStretched(short[] dst) {
+        int frames = 0;
+        while (true) {
+            frames += mStretcher.read(dst, frames * CHANNELS, BUFFER_FRAMES - frames);
+            if (frames == BUFFER_FRAMES) {
+                return frames;
+            }
+            if (mStretcher.isEnded()) {
+                return frames > 0 ? frames : mStretchEndResult;
+            }
+
+            boolean switched = mSwitched;
+            int stretcherLatencyFrames = mStretcher.getLatencyFrames();
+            int result = render(mSourceBuffer);
+            if (mSwitched && !switched) {
+                // The new track starts this source block, after the stretched audio ahead of it
+                mSwitchDelayFrames = frames + stretcherLatencyFrames;
+            }
+            if (result < 0) {
+                mStretchEndResult = result;
+                mStretcher.endOfInput();
+            } else if (result > 0) {
+                mStretcher.write(mSourceBuffer, 0, result);
+            } else {
+                return frames;
+            }
+        }
+    }
+
+    /**
+     * Renders a block at the track's rate into mMixBuffer, the same way
+     * {@link #renderStretched} does through the stretcher.
+     */
+    private int renderResampled() {
+        int frames = 0;
+        while (true) {
+            frames += mResampler.read(mMixBuffer, frames * CHANNELS, BUFFER_FRAMES - frames);
+            if (frames == BUFFER_FRAMES) {
+                return frames;
+            }
+            if (mResampler.isEnded()) {
+                return frames > 0 ? frames : mResampleEndResult;
+            }
+
+            boolean switched = mSwitched;
+            int resamplerLatencyFrames = mResampler.getLatencyFrames();
+            int result = renderAtRate(mResampleBuffer);
+            if (mSwitched && !switched) {
+                mSwitchDelayFrames = frames + resamplerLatencyFrames
+                        + mSwitchDelayFrames * mResampler.getOutputRate() / mResampler.getInputRate();
+            }
+            if (result < 0) {
+                mResampleEndResult = result;
+                mResampler.endOfInput();
+            } else if (result > 0) {
+                mResampler.write(mResampleBuffer, 0, result);
+            } else {
+                return frames;
+            }
+        }
+    }
+
+    private void switchToNext() {
+        if (mCurrent != null && mCurrent != mOutgoing) {
+            mCurrent.release();
+        }
+        mCurrent = mNext;
+        mNext = null;
+        mCurrentResampled = false;
+        mSwitched = true;
+        mSwitchSourceFrame = mCurrent.getPositionFrames();
+        mSwitchDelayFrames = 0;
+    }
+
+    /**
+     * Positions are reported for the new track from where its first frame lands in the output,
+     * past what of the old track is still in the block being written and in the stretcher and
+     * resampler. Listeners hear about the change once the track plays that far.
+     */
+    private void publishSwitchLocked() {
+        publishMemoryBytes();
+        mSegmentWrittenFrame = mFramesWritten + mSwitchDelayFrames;
+        mSegmentSourceFrame = mSwitchSourceFrame;
+        publishTrackLocked(mCurrent);
+
+        long queuedFrames = mTrack != null ? Math.max(0, mSegmentWrittenFrame - getHeadFramesLocked()) : 0;
+        long delayMsec = queuedFrames > 0 ? queuedFrames * 1000L / mTrackSampleRate : 0;
+        mCallbackHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (mTrackChangedListener != null) {
+                    mTrackChangedListener.onTrackChanged(AudioEngine.this);
+                }
+            }
+        }, delayMsec);
+    }
+
+    private void complete() {
+        synchronized (mLock) {
+            if (mReleased) {
+                return;
+            }
+            mPlaying = false;
+            mCompleted = true;
+            mTrack.pause();
+        }
+
+        mCallbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCompletionListener != null) {
+                    mCompletionListener.onCompletion(AudioEngine.this);
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for everything written so far to play out.
+     *
+     * @return false if playback was paused, sought or released in the meantime.
+     */
+    private boolean drain() {
+        long lastHeadFrames = -1;
+        int stalledPolls = 0;
+        while (true) {
+            long sleepMsec = DRAIN_POLL_MSEC;
+            synchronized (mLock) {
+                if (mReleased || mFlushPending || !mPlaying) {
+                    return false;
+                }
+                long headFrames = getHeadFramesLocked();
+                if (headFrames >= mFramesWritten) {
+                    return true;
+                }
+                // Some devices hold back the final partial period, don't wait on it forever
+                stalledPolls = headFrames == lastHeadFrames ? stalledPolls + 1 : 0;
+                if (stalledPolls >= DRAIN_MAX_STALLED_POLLS) {
+                    return true;
+                }
+                lastHeadFrames = headFrames;
+                if (mDeepBuffer) {
+                    // Sleep through what's left rather than polling through a full deep buffer
+                    sleepMsec = Math.max(sleepMsec, (mFramesWritten - headFrames) * 1000L / mTrackSampleRate);
+                }
+            }
+            SystemClock.sleep(sleepMsec);
+            ++mStats.mPlaybackWakeups;
+        }
+    }
+
+    private void writeFully(AudioTrack track, int frames) {
+        int offset = 0;
+        int remaining = frames * CHANNELS;
+        while (remaining > 0) {
+            int written = track.write(mMixBuffer, offset, remaining);
+            if (written <= 0) {
+                // Stopped for release, or the track is in a bad state
+                return;
+            }
+            offset += written;
+            remaining -= written;
+        }
+        synchronized (mLock) {
+            mFramesWritten += frames;
+        }
+    }
+
+    /**
+     * Sets up the track, at the native rate if the device reports one and sized for the buffer
+     * mode, and the stretcher and resampler for audio decoded at {@code sourceRate}. A new
+     * track starts empty, so it is only resized for the mode while nothing has been written
+     * to it yet. {@link #flushLocked} drops one of the wrong size.
+     */
+    private void ensureTrackLocked(int sourceRate) {
+        int sampleRate = mNativeSampleRate > 0 ? mNativeSampleRate : sourceRate;
+        if (mTrack == null || mTrackSampleRate != sampleRate || (mTrackDeep != mDeepBuffer && mFramesWritten == 0)) {
+            createTrackLocked(sampleRate);
+        } else if (mSourceSampleRate == sourceRate) {
+            return;
+        }
+
+        mSourceSampleRate = sourceRate;
+        mStretcher.configure(sourceRate);
+        mResampler.configure(sourceRate, sampleRate);
+        mResampling = sourceRate != sampleRate;
+        mStats.mResampling = mResampling;
+        publishMemoryBytes();
+    }
+
+    private void createTrackLocked(int sampleRate) {
+        if (mTrack != null) {
+            mTrack.release();
+        }
+
+        int minBufferBytes = AudioTrack.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_OUT_STEREO,
+                AudioFormat.ENCODING_PCM_16BIT);
+        int bufferFrames = mDeepBuffer ? sampleRate * DEEP_BUFFER_MSEC / 1000 : getNormalBufferFrames();
+        int bufferBytes = Math.max(minBufferBytes, bufferFrames * CHANNELS * 2);
+        mTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, AudioFormat.CHANNEL_OUT_STEREO,
+                AudioFormat.ENCODING_PCM_16BIT, bufferBytes, AudioTrack.MODE_STREAM);
+        mTrackSampleRate = sampleRate;
+        mTrackDeep = mDeepBuffer;
+        mTrackCapacityFrames = bufferBytes / (CHANNELS * 2);
+        mStats.mSampleRate = sampleRate;
+        mFramesWritten = 0;
+        mRefilling = false;
+        mSegmentWrittenFrame = 0;
+        mSegmentSourceFrame = mCurrent.getPositionFrames();
+        if (mPlaying) {
+            mTrack.play();
+        }
+    }
+
+    /**
+     * Playback thread, or before it starts. The stretcher and resampler belong to it.
+     */
+    private void publishMemoryBytes() {
+        long trackBytes = mTrack != null ? mTrackCapacityFrames * CHANNELS * 2 : 0;
+        long blockBytes = (mMixBuffer.length + mFadeBuffer.length + mSourceBuffer.length + mResampleBuffer.length
+                + mOverlapBuffer.length) * 2;
+        mMemoryBytes = trackBytes + blockBytes + mStretcher.getMemoryBytes() + mResampler.getMemoryBytes()
+                + mCurrentResampler.getMemoryBytes() + mOutgoingResampler.getMemoryBytes();
+    }
+
+    /**
+     * @return Room for a block while the previous period plays, in whole periods of the output
+     * so that the mixer pulls full periods from the track.
+     */
+    private int getNormalBufferFrames() {
+        int periods = (BUFFER_FRAMES + mFramesPerBuffer - 1) / mFramesPerBuffer + 1;
+        return periods * mFramesPerBuffer;
+    }
+
+    /**
+     * The playback thread seeks mCurrent, ending any crossfade, before its next block.
+     */
+    private void seekLocked(long positionFrames) {
+        mSeekFrames = positionFrames;
+        mCompleted = false;
+        requestFlushLocked();
+    }
+
+    private void requestFlushLocked() {
+        mFlushPending = true;
+        ++mFlushGeneration;
+        if (mTrack != null) {
+            // Drop stale audio right away, this also unblocks the playback thread if it is stuck
+            // writing into a full paused track. The playback thread flushes again once its
+            // in-flight write is done.
+            mTrack.pause();
+            mTrack.flush();
+            if (mPlaying) {
+                mTrack.play();
+            }
+        }
+    }
+
+    /**
+     * Playback thread, once it has applied the flush to the decoders.
+     */
+    private void flushLocked() {
+        mFlushPending = false;
+        mSeekFrames = -1;
+        mRefilling = false;
+        if (mCurrent != null) {
+            mSourcePositionFrames = mCurrent.getPositionFrames();
+            publishTrackLocked(mCurrent);
+        }
+        if (mTrack == null) {
+            return;
+        }
+        if (mTrackDeep != mDeepBuffer) {
+            // Empty from here on, so it can be resized for the buffer mode without being heard.
+            // The next block creates the new one.
+            mTrack.release();
+            mTrack = null;
+            publishMemoryBytes();
+            return;
+        }
+        mTrack.pause();
+        mTrack.flush();
+        mFramesWritten = 0;
+        mSegmentWrittenFrame = 0;
+        mSegmentSourceFrame = mSourcePositionFrames;
+        if (mPlaying) {
+            mTrack.play();
+        }
+    }
+
+    private long getPositionFramesLocked() {
+        if (mFlushPending || mTrack == null) {
+            return mSeekFrames >= 0 ? mSeekFrames : mSourcePositionFrames;
+        }
+        // Played frames are at the track's rate, the position is in frames of mCurrent
+        long playedFrames = getHeadFramesLocked() - mSegmentWrittenFrame;
+        double sourceFramesPerTrackFrame = (double) mPlaybackRate * mSampleRate / mTrackSampleRate;
+        long positionFrames = Math.max(0, mSegmentSourceFrame + (long) (playedFrames * sourceFramesPerTrackFrame));
+        // Without a known duration there's nothing to clamp to
+        return mDurationFrames > 0 ? Math.min(positionFrames, mDurationFrames) : positionFrames;
+    }
+
+    private long getHeadFramesLocked() {
+        // The head position is an unsigned 32-bit frame counter
+        return mTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Copies what position queries need to know about {@code decoder}, the track being played.
+     */
+    private void publishTrackLocked(PcmDecoder decoder) {
+        mSampleRate = decoder.getSampleRate();
+        mDurationFrames = decoder.getDurationFrames();
+        mDurationMsec = decoder.getDurationMsec();
+    }
+
+    private void releaseOutgoing() {
+        if (mOutgoing != null) {
+            mOutgoing.release();
+            mOutgoing = null;
+        }
+        mOutgoingResampled = false;
+        mCrossfader.cancel();
+    }
+
+    private void releaseDecodersLocked() {
+        if (mInstalled != null) {
+            mInstalled.release();
+            mInstalled = null;
+        }
+        if (mQueued != null) {
+            mQueued.release();
+            mQueued = null;
+        }
+        if (mCurrent != null) {
+            mCurrent.release();
+            mCurrent = null;
+        }
+        if (mOutgoing != null) {
+            mOutgoing.release();
+            mOutgoing = null;
+        }
+        if (mNext != null) {
+            mNext.release();
+            mNext = null;
+        }
+    }
+
+    private void postError(final int what) {
+        mCallbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mErrorListener != null) {
+                    mErrorListener.onError(AudioEngine.this, what, 0);
+                }
+            }
+        });
+    }
+
+    private static void zeroFill(short[] buffer, int fromFrame) {
+        for (int i = fromFrame * CHANNELS; i < buffer.length; ++i) {
+            buffer[i] = 0;
+        }
+    }
+
+    /**
+     * @return Frames in one period of the device's output, or a typical value where the
+     * platform doesn't say.
+     */
+    static int getNativeFramesPerBuffer(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+            String framesPerBuffer = audioManager.getProperty(AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER);
+            if (!TextUtils.isEmpty(framesPerBuffer)) {
+                try {
+                    int frames = Integer.parseInt(framesPerBuffer);
+                    if (frames > 0) {
+                        return frames;
+                    }
+                } catch (NumberFormatException ex) {
+                    // Fall through to the default
+                }
+            }
+        }
+        return DEFAULT_FRAMES_PER_BUFFER;
+    }
+
+    private static void closeQuietly(AssetFileDescriptor assetFD) {
+        if (assetFD != null) {
+            try {
+                assetFD.close();
+            } catch (IOException ex) {
+                // Nothing to do
+            }
+        }
+    }
+}
@@ -4,7 +4,17 @@ package com.bandonleon.audioservice;
  * Created by dom on 12/6/15.
  */
 public interface AudioLocalController extends AudioController {
+    /**
+     * @return true if any session is playing.
+     */
     boolean isAudioPlaying();
+
+    /**
+     * The default session's stats also carry the service's and the clip player's counters.
+     */
+    PlaybackStats getPlaybackStats(int session);
+
+    MemoryGovernor getMemoryGovernor();
     void startForegroundService(String notificationContent);
     void stopForegroundService(boolean dismissNotification);
 }
@@ -5,61 +5,143 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
+import android.text.TextUtils;
 import android.view.View;
 import android.widget.RemoteViews;
 
 import com.bandonleon.audioservice.AudioServiceReceiver.Action;
 
 /**
+ * The service's one notification, which shows and controls the default session.
+ *
  * Created by dom on 12/6/15.
  */
 public class AudioNotificationManager {
     private static final int SERVICE_NOTIFICATION_ID = 1234;
+    private static final int MAX_VIEW_UPDATES = 64;
 
     private NotificationManager mNotificationManager;
     private Notification.Builder mNotificationBuilder;
-    private RemoteViews mNotificationView;
+    private String mPackageName;
+    private CharSequence mTitle;
+    private PendingIntent mResumeIntent;
+    private PendingIntent mPauseIntent;
+
+    // What the view shows. It is built again, with the artwork attached, only when the content
+    // or artwork changes. Play state and progress are set on the view as they change, but
+    // RemoteViews only ever appends actions, so after MAX_VIEW_UPDATES of them it is rebuilt
+    // from these rather than left to grow.
+    private RemoteViews mView;
+    private int mViewUpdates;
+    private String mContent;
+    private Bitmap mArtwork;
+    private boolean mHasPlayState;
+    private boolean mIsPlaying;
+    private boolean mHasProgress;
+    private int mProgressMax;
+    private int mProgress;
 
     public AudioNotificationManager(Context context) {
         mNotificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
 
-        mNotificationView = new RemoteViews(context.getPackageName(), R.layout.audio_notification);
-        mNotificationView.setTextViewText(R.id.title, context.getText(R.string.notification_title));
-        PendingIntent resumeIntent = PendingIntent.getBroadcast(context, 0, AudioServiceReceiver.getActionIntent(Action.RESUME), 0);
-        mNotificationView.setOnClickPendingIntent(R.id.play_btn, resumeIntent);
-        PendingIntent pauseIntent = PendingIntent.getBroadcast(context, 0, AudioServiceReceiver.getActionIntent(Action.PAUSE), 0);
-        mNotificationView.setOnClickPendingIntent(R.id.pause_btn, pauseIntent);
-        PendingIntent dismissIntent = PendingIntent.getBroadcast(context, 0, AudioServiceReceiver.getActionIntent(Action.DISMISS), 0);
+        mPackageName = context.getPackageName();
+        mTitle = context.getText(R.string.notification_title);
+        int session = AudioController.DEFAULT_SESSION;
+        mResumeIntent = PendingIntent.getBroadcast(context, 0, AudioServiceReceiver.getActionIntent(session, Action.RESUME), 0);
+        mPauseIntent = PendingIntent.getBroadcast(context, 0, AudioServiceReceiver.getActionIntent(session, Action.PAUSE), 0);
+        PendingIntent dismissIntent = PendingIntent.getBroadcast(context, 0, AudioServiceReceiver.getActionIntent(session, Action.DISMISS), 0);
 
         Intent notificationIntent = new Intent(context, MainActivity.class);
         PendingIntent pendingIntent = PendingIntent.getActivity(context, 0, notificationIntent, 0);
         mNotificationBuilder = new Notification.Builder(context)
-                .setContent(mNotificationView)
+                .setContent(getNotificationView())
                 .setSmallIcon(R.drawable.ic_notification)
                 .setContentIntent(pendingIntent)
                 .setDeleteIntent(dismissIntent);
     }
 
-    private void updateNotificationView(boolean isPlaying) {
-        mNotificationView.setViewVisibility(R.id.play_btn, isPlaying ? View.GONE : View.VISIBLE);
-        mNotificationView.setViewVisibility(R.id.pause_btn, isPlaying ? View.VISIBLE : View.GONE);
+    private RemoteViews getNotificationView() {
+        if (mView == null || mViewUpdates >= MAX_VIEW_UPDATES) {
+            mView = buildNotificationView();
+            mViewUpdates = 0;
+        }
+        return mView;
+    }
+
+    private RemoteViews buildNotificationView() {
+        RemoteViews view = new RemoteViews(mPackageName, R.layout.audio_notification);
+        view.setTextViewText(R.id.title, mTitle);
+        view.setOnClickPendingIntent(R.id.play_btn, mResumeIntent);
+        view.setOnClickPendingIntent(R.id.pause_btn, mPauseIntent);
+        if (mContent != null) {
+            view.setTextViewText(R.id.content, mContent);
+        }
+        if (mArtwork != null) {
+            view.setImageViewBitmap(R.id.notification_artwork, mArtwork);
+        }
+        if (mHasPlayState) {
+            setPlayState(view);
+        }
+        if (mHasProgress) {
+            view.setProgressBar(R.id.progress, mProgressMax, mProgress, false);
+        }
+        return view;
+    }
+
+    private void setPlayState(RemoteViews view) {
+        view.setViewVisibility(R.id.play_btn, mIsPlaying ? View.GONE : View.VISIBLE);
+        view.setViewVisibility(R.id.pause_btn, mIsPlaying ? View.VISIBLE : View.GONE);
     }
 
     public void updateContent(String content) {
-        mNotificationView.setTextViewText(R.id.content, content);
+        if (!TextUtils.equals(content, mContent)) {
+            mContent = content;
+            mView = null;
+        }
+    }
+
+    /**
+     * @param artwork Already sized for the notification, or null for the app icon.
+     */
+    public void updateArtwork(Bitmap artwork) {
+        if (artwork != mArtwork) {
+            mArtwork = artwork;
+            mView = null;
+        }
     }
 
     public void updatePlayState(boolean isPlaying) {
-        updateNotificationView(isPlaying);
+        if (mHasPlayState && isPlaying == mIsPlaying) {
+            return;
+        }
+        mHasPlayState = true;
+        mIsPlaying = isPlaying;
+        if (mView != null) {
+            setPlayState(mView);
+            ++mViewUpdates;
+        }
     }
 
     public void updateProgress(int max, int progress) {
-        mNotificationView.setProgressBar(R.id.progress, max, progress, false);
+        if (mHasProgress && max == mProgressMax && progress == mProgress) {
+            return;
+        }
+        mHasProgress = true;
+        mProgressMax = max;
+        mProgress = progress;
+        if (mView != null) {
+            mView.setProgressBar(R.id.progress, max, progress, false);
+            ++mViewUpdates;
+        }
     }
 
+    /**
+     * The system replaces the whole view on every send, artwork included, so callers keep
+     * sends for progress alone to about once a second.
+     */
     public void sendNotification() {
-        mNotificationBuilder.setContent(mNotificationView);
-        mNotificationManager.notify(SERVICE_NOTIFICATION_ID, mNotificationBuilder.build());
+        mNotificationManager.notify(SERVICE_NOTIFICATION_ID, getAudioNotification());
     }
 
     public int getNotificationId() {
@@ -67,7 +149,7 @@ public class AudioNotificationManager {
     }
 
     public Notification getAudioNotification() {
-        mNotificationBuilder.setContent(mNotificationView);
+        mNotificationBuilder.setContent(getNotificationView());
         return mNotificationBuilder.build();
     }
 }
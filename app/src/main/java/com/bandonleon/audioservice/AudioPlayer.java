@@ -0,0 +1,49 @@
+package com.bandonleon.audioservice;
+
+import android.content.res.AssetFileDescriptor;
+
+/**
+ * What AudioService needs from a playback engine. {@link AudioEngine} is the real one,
+ * tests swap in their own through {@link AudioService#createAudioPlayer}.
+ *
+ * All listener callbacks are delivered on the main looper.
+ */
+public interface AudioPlayer {
+    interface OnPreparedListener {
+        void onPrepared(AudioPlayer player);
+    }
+
+    interface OnCompletionListener {
+        void onCompletion(AudioPlayer player);
+    }
+
+    interface OnErrorListener {
+        boolean onError(AudioPlayer player, int what, int extra);
+    }
+
+    interface OnTrackChangedListener {
+        void onTrackChanged(AudioPlayer player);
+    }
+
+    void setOnPreparedListener(OnPreparedListener listener);
+    void setOnCompletionListener(OnCompletionListener listener);
+    void setOnErrorListener(OnErrorListener listener);
+    void setOnTrackChangedListener(OnTrackChangedListener listener);
+
+    void setDataSource(AssetFileDescriptor assetFD);
+    void prepareAsync(int startPositionMsec, boolean startWhenPrepared);
+    void setNextDataSource(AssetFileDescriptor assetFD);
+    void setCrossfadeDuration(int msec);
+    void setDeepBuffer(boolean deepBuffer);
+    void setPlaybackRate(float rate);
+    float getPlaybackRate();
+
+    void start();
+    void pause();
+    void stop();
+    void seekTo(int msec);
+    boolean isPlaying();
+    int getDuration();
+    int getCurrentPosition();
+    void release();
+}
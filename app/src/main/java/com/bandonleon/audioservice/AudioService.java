@@ -1,25 +1,32 @@
 package com.bandonleon.audioservice;
 
+import android.app.ActivityManager;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.res.AssetFileDescriptor;
-import android.media.MediaPlayer;
+import android.graphics.Bitmap;
 import android.os.Binder;
+import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 import android.text.TextUtils;
 
-import java.io.IOException;
+import java.io.File;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
-public class AudioService extends Service implements MediaPlayer.OnPreparedListener,
-        MediaPlayer.OnCompletionListener, MediaPlayer.OnErrorListener, AudioLocalController {
+public class AudioService extends Service implements ArtworkLoader.ArtworkListener, OfflineStore.PinListener,
+        AudioLocalController {
 
     private static final String ACTION_PLAY = "com.bandonleon.audioservice.action.PLAY";
     private static final String ACTION_IDLE = "com.bandonleon.audioservice.action.IDLE";
@@ -27,6 +34,10 @@ public class AudioService extends Service implements MediaPlayer.OnPreparedListe
     public static final String EXTRA_AUDIO_ID = "com.bandonleon.audioservice.extra.AUDIO_ID";
 
     private static final long UPDATE_INTERVAL_MSEC = 1000 / 40; // Try updating at 40 Hz
+    private static final long NOTIFICATION_PROGRESS_INTERVAL_MSEC = 1000;   // Each one carries the artwork
+    private static final long DEEP_BUFFER_SAVE_INTERVAL_MSEC = 10000;       // Resume positions, screen off
+    private static final int MEMORY_BUDGET_DIVISOR = 8;         // Of the app's heap limit
+    private static final String RESUME_INDEX_FILE = "resume.idx";
 
     private enum ServiceState {
         FOREGROUND_WITH_NOTIFICATION,   // Foreground services requires notification (just being explicit here)
@@ -37,20 +48,97 @@ public class AudioService extends Service implements MediaPlayer.OnPreparedListe
     // Binder given to clients
     private final LocalBinder mBinder = new LocalBinder();
 
+    // Open sessions, and the ones playing, which are all the position tick visits
+    private final List<Session> mSessions = new ArrayList<>();
+    private final List<Session> mActiveSessions = new ArrayList<>();
+
     private ServiceState mState;
-    private boolean mIsLoaded;
-    private boolean mPlayOnLoad;
-    private int mLastPositionMsec;
+    private boolean mScreenOn;
+    private boolean mDeepBuffer;
+    private boolean mTicking;
+    private int mNextSessionId;
+    private int mFramesPerBuffer;
+    private long mLastProgressNotificationMsec;
+
+    // Scratch for the batched position update, grown to the most sessions ever active at once
+    private int[] mTickSessions = new int[0];
+    private int[] mTickPositions = new int[0];
+    private float[] mTickRates = new float[0];
 
     private Handler mMainHandler;
 
     private LocalBroadcastManager mBroadcastManager;
     private AudioServiceReceiver mServiceReceiver;
-
-    private MediaPlayer mAudioPlayer;
+    private BroadcastReceiver mScreenReceiver;
+
+    private PlaybackStats mPlaybackStats;
+    private MemoryGovernor mMemoryGovernor;
+    private Session mDefaultSession;
+    private OfflineStore mOfflineStore;
+    private ResumeIndex mResumeIndex;
+    private ClipPlayer mClipPlayer;
     private Runnable mPositionUpdater;
     private AudioNotificationManager mNotificationManager;
 
+    /**
+     * One player and the state of what it's playing. Its player calls back on the main thread,
+     * and the calls are handed to the service along with the session. Once the session is
+     * closed, callbacks its player had already posted are dropped.
+     */
+    private final class Session implements AudioPlayer.OnPreparedListener, AudioPlayer.OnCompletionListener,
+            AudioPlayer.OnErrorListener, AudioPlayer.OnTrackChangedListener {
+        final int mId;
+        final PlaybackStats mPlaybackStats;
+        final AudioPlayer mAudioPlayer;
+        boolean mIsLoaded;
+        boolean mPlayOnLoad;
+        boolean mLoadingTransaction;
+        boolean mActive;            // In mActiveSessions
+        boolean mClosed;            // Player released, ignore its callbacks
+        int mLastPositionMsec;
+        int mAudioResId;
+        int mNextAudioResId;
+        int mResumeAudioId;         // Track the player's position belongs to, 0 while loading
+
+        Session(int id, PlaybackStats stats) {
+            mId = id;
+            mPlaybackStats = stats;
+            mAudioPlayer = createAudioPlayer(stats);
+            mAudioPlayer.setOnPreparedListener(this);
+            mAudioPlayer.setOnCompletionListener(this);
+            mAudioPlayer.setOnErrorListener(this);
+            mAudioPlayer.setOnTrackChangedListener(this);
+            mAudioPlayer.setDeepBuffer(mDeepBuffer);
+        }
+
+        @Override
+        public void onPrepared(AudioPlayer mp) {
+            if (!mClosed) {
+                AudioService.this.onPrepared(this);
+            }
+        }
+
+        @Override
+        public void onCompletion(AudioPlayer mp) {
+            if (!mClosed) {
+                AudioService.this.onCompletion(this);
+            }
+        }
+
+        @Override
+        public boolean onError(AudioPlayer mp, int what, int extra) {
+            // @TODO: Log errors
+            return false;   // We're not currently handling errors
+        }
+
+        @Override
+        public void onTrackChanged(AudioPlayer mp) {
+            if (!mClosed) {
+                AudioService.this.onTrackChanged(this);
+            }
+        }
+    }
+
     public static Intent getPlayAudioIntent(Context context, int audioResId) {
         Intent intent = new Intent(context, AudioService.class);
         intent.setAction(ACTION_PLAY);
@@ -92,6 +180,10 @@ public class AudioService extends Service implements MediaPlayer.OnPreparedListe
             return listeners.remove(listener);
         }
 
+        int getUnbindListenerCount() {
+            return listeners.size();
+        }
+
         public void notifyUnbind() {
             for (UnbindListener listener : listeners) {
                 listener.onUnbind(this);
@@ -155,9 +247,8 @@ public class AudioService extends Service implements MediaPlayer.OnPreparedListe
         super.onCreate();
 
         mState = ServiceState.BACKGROUND;
-        mIsLoaded = false;
-        mPlayOnLoad = false;
-        mLastPositionMsec = 0;
+        mTicking = false;
+        mNextSessionId = DEFAULT_SESSION;
 
         mMainHandler = new Handler();
         mBroadcastManager = LocalBroadcastManager.getInstance(this);
@@ -167,24 +258,82 @@ public class AudioService extends Service implements MediaPlayer.OnPreparedListe
         // LocalBroadcastManager to register our receiver.
         registerReceiver(mServiceReceiver, filter);
 
-        mAudioPlayer = new MediaPlayer();
-        mAudioPlayer.setOnPreparedListener(this);
-        mAudioPlayer.setOnCompletionListener(this);
-        mAudioPlayer.setOnErrorListener(this);
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        mScreenOn = isInteractive(powerManager);
+        mDeepBuffer = false;
+        mScreenReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                mScreenOn = Intent.ACTION_SCREEN_ON.equals(intent.getAction());
+                updateBufferMode();
+            }
+        };
+        IntentFilter screenFilter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+        screenFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        registerReceiver(mScreenReceiver, screenFilter);
+
+        mOfflineStore = new OfflineStore(this);
+        mOfflineStore.resumePending(this);
+        mResumeIndex = new ResumeIndex(new File(getFilesDir(), RESUME_INDEX_FILE));
+
+        mPlaybackStats = new PlaybackStats();
+        mFramesPerBuffer = AudioEngine.getNativeFramesPerBuffer(this);
+        ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+        mMemoryGovernor = new MemoryGovernor(activityManager.getMemoryClass() * 1024L * 1024L / MEMORY_BUDGET_DIVISOR);
+        ArtworkLoader.getInstance(this).setMemoryGovernor(mMemoryGovernor);
+        MappedTrackCache.getInstance().setMemoryGovernor(mMemoryGovernor);
+
+        mDefaultSession = new Session(mNextSessionId++, mPlaybackStats);
+        mSessions.add(mDefaultSession);
 
         mPositionUpdater = new Runnable() {
             @Override
             public void run() {
+                ++mPlaybackStats.mPositionTicks;
+
+                if (mDeepBuffer) {
+                    // Nobody is watching, only the resume positions are kept up to date in case
+                    // the process is killed
+                    for (int i = 0; i < mActiveSessions.size(); ++i) {
+                        Session session = mActiveSessions.get(i);
+                        saveResumePosition(session, session.mAudioPlayer.getCurrentPosition());
+                    }
+                    mMainHandler.postDelayed(this, DEEP_BUFFER_SAVE_INTERVAL_MSEC);
+                    return;
+                }
 
-                int currPosMsec = mAudioPlayer != null ? mAudioPlayer.getCurrentPosition() : 0;
-                if (currPosMsec != mLastPositionMsec) {
-                    mBroadcastManager.sendBroadcast(AudioClientReceiver.getPositionUpdateIntent(currPosMsec));
-                    mLastPositionMsec = currPosMsec;
+                // One pass over the playing sessions, and one broadcast for all that moved
+                int activeCount = mActiveSessions.size();
+                if (mTickSessions.length < activeCount) {
+                    mTickSessions = new int[activeCount];
+                    mTickPositions = new int[activeCount];
+                    mTickRates = new float[activeCount];
+                }
+                int count = 0;
+                for (int i = 0; i < activeCount; ++i) {
+                    Session session = mActiveSessions.get(i);
+                    int currPosMsec = session.mAudioPlayer.getCurrentPosition();
+                    if (currPosMsec != session.mLastPositionMsec) {
+                        mTickSessions[count] = session.mId;
+                        mTickPositions[count] = currPosMsec;
+                        mTickRates[count] = session.mAudioPlayer.getPlaybackRate();
+                        ++count;
+                        session.mLastPositionMsec = currPosMsec;
+                        saveResumePosition(session, currPosMsec);
+                    }
+                }
+                if (count > 0) {
+                    sendClientBroadcast(AudioClientReceiver.getPositionUpdateIntent(mTickSessions, mTickPositions,
+                            mTickRates, count));
                 }
 
-                if (hasNotification()) {
-                    mNotificationManager.updateProgress(mAudioPlayer.getDuration(), currPosMsec);
-                    mNotificationManager.sendNotification();
+                long nowMsec = SystemClock.uptimeMillis();
+                if (hasNotification() && mDefaultSession.mActive
+                        && nowMsec - mLastProgressNotificationMsec >= NOTIFICATION_PROGRESS_INTERVAL_MSEC) {
+                    mLastProgressNotificationMsec = nowMsec;
+                    mNotificationManager.updateProgress(mDefaultSession.mAudioPlayer.getDuration(),
+                            mDefaultSession.mLastPositionMsec);
+                    sendNotification();
                 }
 
                 mMainHandler.postDelayed(this, UPDATE_INTERVAL_MSEC);
@@ -194,27 +343,64 @@ public class AudioService extends Service implements MediaPlayer.OnPreparedListe
         mNotificationManager = new AudioNotificationManager(this);
     }
 
+    @SuppressWarnings("deprecation")
+    private static boolean isInteractive(PowerManager powerManager) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH) {
+            return powerManager.isInteractive();
+        }
+        return powerManager.isScreenOn();
+    }
+
+    protected AudioPlayer createAudioPlayer(PlaybackStats stats) {
+        return new AudioEngine(stats, mFramesPerBuffer, mMemoryGovernor);
+    }
+
     @Override
     public void onDestroy() {
-        if (mAudioPlayer != null) {
-            mAudioPlayer.release();
-            mAudioPlayer = null;
+        stopTicking();
+        for (Session session : mSessions) {
+            releaseSession(session);
+        }
+        mSessions.clear();
+        mDefaultSession = null;
+        if (mClipPlayer != null) {
+            mClipPlayer.release();
+            mClipPlayer = null;
         }
 
+        mOfflineStore.release();
+        mResumeIndex.flush();
         unregisterReceiver(mServiceReceiver);
+        unregisterReceiver(mScreenReceiver);
+        ArtworkLoader artworkLoader = ArtworkLoader.getInstance(this);
+        artworkLoader.cancel(this);
+        artworkLoader.setMemoryGovernor(null);
+        MappedTrackCache.getInstance().setMemoryGovernor(null);
 
         super.onDestroy();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mMemoryGovernor.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        mMemoryGovernor.onLowMemory();
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         boolean validAction = false;
 
-        if (mAudioPlayer == null || intent == null || TextUtils.isEmpty(intent.getAction())) {
+        if (mDefaultSession == null || intent == null || TextUtils.isEmpty(intent.getAction())) {
             // @TODO: Log fatal error here...
         } else if (ACTION_PLAY.equals(intent.getAction())) {
             int audioId = intent.getIntExtra(EXTRA_AUDIO_ID, 0);
-            playAudio(audioId);
+            playAudio(DEFAULT_SESSION, audioId);
             validAction = true;
         } else if (ACTION_IDLE.equals(intent.getAction())) {
             // Nothing to do, just start idling
@@ -245,171 +431,530 @@ public class AudioService extends Service implements MediaPlayer.OnPreparedListe
         return false;
     }
 
-    private void doPause() {
-        if (mAudioPlayer.isPlaying()) {
-            mAudioPlayer.pause();
-            stopProgressUpdates();
+    private Session getSession(int session) {
+        // A handful at most, a scan beats a map
+        for (int i = 0; i < mSessions.size(); ++i) {
+            if (mSessions.get(i).mId == session) {
+                return mSessions.get(i);
+            }
         }
+        // @TODO: Log error
+        return null;
     }
 
-    private void doResume() {
-        if (!mAudioPlayer.isPlaying()) {
-            mAudioPlayer.start();
-            startProgressUpdates();
+    private void releaseSession(Session session) {
+        session.mClosed = true;
+        stopProgressUpdates(session);
+        saveResumePosition(session, session.mAudioPlayer.getCurrentPosition());
+        session.mAudioPlayer.release();
+    }
+
+    private void doPause(Session session) {
+        if (session.mAudioPlayer.isPlaying()) {
+            session.mAudioPlayer.pause();
+            stopProgressUpdates(session);
+            saveResumePosition(session, session.mAudioPlayer.getCurrentPosition());
+        }
+    }
+
+    private void doResume(Session session) {
+        if (!session.mAudioPlayer.isPlaying()) {
+            session.mAudioPlayer.start();
+            startProgressUpdates(session);
         }
     }
 
-    private void doStop() {
-        mAudioPlayer.stop();
-        stopProgressUpdates();
+    private void doStop(Session session) {
+        session.mAudioPlayer.stop();
+        stopProgressUpdates(session);
+    }
+
+    private void sendClientBroadcast(Intent intent) {
+        ++mPlaybackStats.mBroadcasts;
+        mBroadcastManager.sendBroadcast(intent);
     }
 
-    private void startProgressUpdates() {
-        mMainHandler.post(mPositionUpdater);
+    private void sendNotification() {
+        ++mPlaybackStats.mNotifications;
+        mNotificationManager.sendNotification();
     }
 
-    private void stopProgressUpdates() {
+    private ClipPlayer getClipPlayer() {
+        // Created on first use, most sessions never play a clip
+        if (mClipPlayer == null) {
+            mClipPlayer = new ClipPlayer(this, mPlaybackStats, mMemoryGovernor);
+        }
+        return mClipPlayer;
+    }
+
+    /**
+     * Adds {@code session} to the ones the position tick visits. Every session shares the one
+     * tick, which runs while any of them plays.
+     */
+    private void startProgressUpdates(Session session) {
+        if (!session.mActive) {
+            session.mActive = true;
+            mActiveSessions.add(session);
+        }
+        startTicking();
+    }
+
+    private void stopProgressUpdates(Session session) {
+        if (session.mActive) {
+            session.mActive = false;
+            mActiveSessions.remove(session);
+        }
+        if (mActiveSessions.isEmpty()) {
+            stopTicking();
+        }
+    }
+
+    private void startTicking() {
+        if (!mTicking && !mActiveSessions.isEmpty()) {
+            mTicking = true;
+            if (mDeepBuffer) {
+                mMainHandler.postDelayed(mPositionUpdater, DEEP_BUFFER_SAVE_INTERVAL_MSEC);
+            } else {
+                mMainHandler.post(mPositionUpdater);
+            }
+        }
+    }
+
+    private void stopTicking() {
+        mTicking = false;
         mMainHandler.removeCallbacks(mPositionUpdater);
     }
 
-    @Override
-    public void onPrepared(MediaPlayer mp) {
-        if (mp != mAudioPlayer) {
-            // @TODO: Log error!
+    /**
+     * Records where the track {@code session} has loaded was left off. Only a slot of the mapped
+     * index is written, so this is cheap enough for every position tick.
+     */
+    private void saveResumePosition(Session session, int positionMsec) {
+        if (session.mResumeAudioId != 0) {
+            mResumeIndex.put(session.mResumeAudioId, positionMsec, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Saves the position of the track being replaced, then loads {@code audioResId} from where
+     * it was left off, or from {@code positionMsec} if that isn't
+     * {@link AudioTransaction#POSITION_UNCHANGED}.
+     */
+    private void prepareAudio(Session session, int audioResId, int positionMsec, boolean startWhenPrepared) {
+        saveResumePosition(session, session.mAudioPlayer.getCurrentPosition());
+        session.mResumeAudioId = 0;
+        if (positionMsec == AudioTransaction.POSITION_UNCHANGED) {
+            positionMsec = mResumeIndex.getPositionMsec(audioResId);
+        }
+
+        session.mAudioPlayer.setDataSource(openAudio(audioResId));
+        setCurrentAudio(session, audioResId);
+        session.mAudioPlayer.prepareAsync(Math.max(positionMsec, 0), startWhenPrepared);
+    }
+
+    /**
+     * Playing in the foreground with the screen off, nobody can see the position or the
+     * notification. The engines switch to deep buffering and the position tick slows down to
+     * saving resume positions every {@code DEEP_BUFFER_SAVE_INTERVAL_MSEC}, so the CPU mostly
+     * wakes to refill the tracks. Both come back as soon as the screen does.
+     */
+    private void updateBufferMode() {
+        boolean deepBuffer = isForeground() && !mScreenOn;
+        if (deepBuffer == mDeepBuffer) {
             return;
         }
 
-        mIsLoaded = true;
-        int durationMsec = mAudioPlayer.getDuration();
-        mBroadcastManager.sendBroadcast(AudioClientReceiver.getAudioLoadedIntent(durationMsec));
+        mDeepBuffer = deepBuffer;
+        for (Session session : mSessions) {
+            session.mAudioPlayer.setDeepBuffer(deepBuffer);
+        }
+        // Restarted at the new rate. Back from deep buffering, the first tick brings clients and
+        // the notification up to date.
+        stopTicking();
+        startTicking();
+    }
 
-        if (mPlayOnLoad) {
-            mBroadcastManager.sendBroadcast(AudioClientReceiver.getAudioStartedIntent(durationMsec));
-            doResume();
+    /**
+     * The service stays in the foreground while any session plays.
+     */
+    private void updateForeground(boolean isPlaying) {
+        if (isPlaying) {
+            startForegroundService(null);
+        } else if (!isAudioPlaying()) {
+            stopForegroundService(false);
         }
     }
 
-    @Override
-    public void onCompletion(MediaPlayer mp) {
-        if (mp != mAudioPlayer) {
-            // @TODO: Log error!
+    private void onPrepared(Session session) {
+        session.mIsLoaded = true;
+        session.mResumeAudioId = session.mAudioResId;
+        if (session.mLoadingTransaction) {
+            // The player has already applied the transaction's position and play state
+            session.mLoadingTransaction = false;
+            if (session.mAudioPlayer.isPlaying()) {
+                startProgressUpdates(session);
+            } else {
+                stopProgressUpdates(session);
+            }
+            publishTransactionState(session);
             return;
         }
 
-        mBroadcastManager.sendBroadcast(AudioClientReceiver.getActionIntent(AudioClientReceiver.Action.COMPLETED));
+        int durationMsec = session.mAudioPlayer.getDuration();
+        sendClientBroadcast(AudioClientReceiver.getAudioLoadedIntent(session.mId, durationMsec));
 
-        if (hasNotification()) {
+        if (session.mPlayOnLoad) {
+            sendClientBroadcast(AudioClientReceiver.getAudioStartedIntent(session.mId, durationMsec));
+            doResume(session);
+        }
+    }
+
+    private void onCompletion(Session session) {
+        stopProgressUpdates(session);
+        // Finished, so it starts over next time
+        saveResumePosition(session, 0);
+        sendClientBroadcast(AudioClientReceiver.getActionIntent(session.mId, AudioClientReceiver.Action.COMPLETED));
+
+        if (hasNotification() && session == mDefaultSession) {
             mNotificationManager.updatePlayState(false);
             mNotificationManager.updateProgress(1, 0);
-            mNotificationManager.sendNotification();
+            sendNotification();
         }
     }
 
+    private void onTrackChanged(Session session) {
+        // The queued track has taken over, either crossfaded or gapless
+        session.mLastPositionMsec = 0;
+        saveResumePosition(session, 0);
+        sendClientBroadcast(AudioClientReceiver.getAudioStartedIntent(session.mId,
+                session.mAudioPlayer.getDuration()));
+        setCurrentAudio(session, session.mNextAudioResId);
+        session.mResumeAudioId = session.mNextAudioResId;
+        session.mNextAudioResId = 0;
+    }
+
     @Override
-    public boolean onError(MediaPlayer mp, int what, int extra) {
-        // @TODO: Log errors
-        return false;   // We're not currently handling errors
+    public void onArtworkLoaded(int audioResId, Bitmap artwork) {
+        if (mDefaultSession == null || audioResId != mDefaultSession.mAudioResId) {
+            // The track changed again while its art was loading
+            return;
+        }
+
+        mNotificationManager.updateArtwork(artwork);
+        if (hasNotification()) {
+            sendNotification();
+        }
+    }
+
+    @Override
+    public void onPinFinished(int audioId, ChunkedDownloader.Result result) {
+        if (mDefaultSession == null) {
+            // Finished as the service went away
+            return;
+        }
+
+        if (result != null) {
+            mPlaybackStats.recordPin(result);
+        } else {
+            ++mPlaybackStats.mPinFailures;
+        }
+        sendClientBroadcast(AudioClientReceiver.getPinFinishedIntent(audioId, result != null));
+    }
+
+    private void setCurrentAudio(Session session, int audioResId) {
+        if (audioResId == 0 || audioResId == session.mAudioResId) {
+            return;
+        }
+        session.mAudioResId = audioResId;
+        if (session == mDefaultSession) {
+            // Only the default session is in the notification
+            int artworkSize = getResources().getDimensionPixelSize(R.dimen.notification_artwork_size);
+            ArtworkLoader.getInstance(this).load(audioResId, artworkSize, artworkSize, this);
+        }
     }
 
     /***************************************************************************************
      *                               LocalAudioController
      ***************************************************************************************/
-    private void loadAudio(int audioResId, boolean playOnLoad) {
+    protected AssetFileDescriptor openAudio(int audioResId) {
+        // A pinned download always wins over the bundled resource
+        AssetFileDescriptor assetFD = mOfflineStore.openLocalAudio(audioResId);
+        return assetFD != null ? assetFD : getResources().openRawResourceFd(audioResId);
+    }
+
+    @Override
+    public int openSession() {
+        Session session = new Session(mNextSessionId++, new PlaybackStats());
+        mSessions.add(session);
+        return session.mId;
+    }
+
+    @Override
+    public void closeSession(int session) {
+        Session s = session != DEFAULT_SESSION ? getSession(session) : null;
+        if (s == null) {
+            return;
+        }
+
+        releaseSession(s);
+        mSessions.remove(s);
+        if (hasNotification()) {
+            updateForeground(false);
+        }
+    }
+
+    private void loadAudio(int session, int audioResId, boolean playOnLoad) {
+        Session s = getSession(session);
+        if (s != null && audioResId != 0) {
+            s.mPlayOnLoad = playOnLoad;
+            s.mLoadingTransaction = false;
+            prepareAudio(s, audioResId, AudioTransaction.POSITION_UNCHANGED, false);
+        }
+    }
+
+    @Override
+    public void loadAudio(int session, int audioResId) {
+        loadAudio(session, audioResId, false);
+    }
+
+    @Override
+    public void playAudio(int session, int audioResId) {
+        loadAudio(session, audioResId, true);
+    }
+
+    @Override
+    public void applyTransaction(int session, AudioTransaction transaction) {
+        Session s = getSession(session);
+        if (s == null) {
+            return;
+        }
+
+        if (transaction.hasRate()) {
+            s.mAudioPlayer.setPlaybackRate(transaction.getRate());
+        }
+
+        int audioResId = transaction.getAudioResId();
         if (audioResId != 0) {
-            AssetFileDescriptor assetFD = getResources().openRawResourceFd(audioResId);
-            try {
-                mAudioPlayer.setDataSource(assetFD.getFileDescriptor(),
-                        assetFD.getStartOffset(), assetFD.getLength());
-                mPlayOnLoad = playOnLoad;
-                mAudioPlayer.prepareAsync();
-            } catch (IOException ex) {
-                // @TODO: Log exception here...
+            // Position and play state are set up while the track is prepared, clients hear
+            // about it once from onPrepared()
+            s.mPlayOnLoad = false;
+            s.mLoadingTransaction = true;
+            prepareAudio(s, audioResId, transaction.getPositionMsec(),
+                    transaction.hasPlayState() && transaction.isPlaying());
+            return;
+        }
+
+        if (transaction.getPositionMsec() != AudioTransaction.POSITION_UNCHANGED) {
+            s.mAudioPlayer.seekTo(transaction.getPositionMsec());
+        }
+        if (transaction.hasPlayState()) {
+            if (transaction.isPlaying()) {
+                doResume(s);
+            } else {
+                doPause(s);
             }
         }
+        publishTransactionState(s);
+    }
+
+    private void publishTransactionState(Session session) {
+        AudioPlayer player = session.mAudioPlayer;
+        boolean isPlaying = player.isPlaying();
+        int durationMsec = Math.max(player.getDuration(), 1);
+        int positionMsec = player.getCurrentPosition();
+        session.mLastPositionMsec = positionMsec;
+        sendClientBroadcast(AudioClientReceiver.getGetStatusIntent(session.mId, session.mIsLoaded, isPlaying,
+                durationMsec, positionMsec, player.getPlaybackRate()));
+
+        if (hasNotification()) {
+            updateForeground(isPlaying);
+            if (session == mDefaultSession) {
+                mNotificationManager.updatePlayState(isPlaying);
+                mNotificationManager.updateProgress(durationMsec, positionMsec);
+                sendNotification();
+            }
+        }
+    }
+
+    @Override
+    public void pinAudio(int audioId, String url, String sha256Hex) {
+        mOfflineStore.pin(audioId, url, sha256Hex, this);
+    }
+
+    @Override
+    public void unpinAudio(int audioId) {
+        mOfflineStore.unpin(audioId);
+    }
+
+    @Override
+    public void queueNextAudio(int session, int audioResId) {
+        Session s = getSession(session);
+        if (s != null) {
+            s.mAudioPlayer.setNextDataSource(audioResId != 0 ? openAudio(audioResId) : null);
+            s.mNextAudioResId = audioResId;
+        }
+    }
+
+    @Override
+    public void setCrossfadeDuration(int session, int msec) {
+        Session s = getSession(session);
+        if (s != null) {
+            s.mAudioPlayer.setCrossfadeDuration(msec);
+        }
+    }
+
+    @Override
+    public void setPlaybackRate(int session, float rate) {
+        Session s = getSession(session);
+        if (s == null) {
+            return;
+        }
+
+        s.mAudioPlayer.setPlaybackRate(rate);
+        int positionMsec = s.mAudioPlayer.getCurrentPosition();
+        s.mLastPositionMsec = positionMsec;
+        sendClientBroadcast(AudioClientReceiver.getPositionUpdateIntent(s.mId, positionMsec,
+                s.mAudioPlayer.getPlaybackRate()));
     }
 
     @Override
-    public void loadAudio(int audioResId) {
-        loadAudio(audioResId, false);
+    public void preloadClip(int clipResId) {
+        getClipPlayer().preload(clipResId);
     }
 
     @Override
-    public void playAudio(int audioResId) {
-        loadAudio(audioResId, true);
+    public void playClip(int clipResId) {
+        getClipPlayer().play(clipResId);
     }
 
     @Override
-    public void resumeAudio() {
-        doResume();
-        int positionMsec = mAudioPlayer.getCurrentPosition();
-        mBroadcastManager.sendBroadcast(AudioClientReceiver.getAudioResumeIntent(positionMsec));
+    public void resumeAudio(int session) {
+        Session s = getSession(session);
+        if (s == null) {
+            return;
+        }
+
+        doResume(s);
+        int positionMsec = s.mAudioPlayer.getCurrentPosition();
+        sendClientBroadcast(AudioClientReceiver.getAudioResumeIntent(s.mId, positionMsec));
 
         if (hasNotification()) {
-            startForegroundService(null);
-            mNotificationManager.updatePlayState(true);
-            mNotificationManager.sendNotification();
+            updateForeground(true);
+            if (s == mDefaultSession) {
+                mNotificationManager.updatePlayState(true);
+                sendNotification();
+            }
         }
     }
 
     @Override
-    public void pauseAudio() {
-        doPause();
-        mBroadcastManager.sendBroadcast(AudioClientReceiver.getActionIntent(AudioClientReceiver.Action.PAUSED));
+    public void pauseAudio(int session) {
+        Session s = getSession(session);
+        if (s == null) {
+            return;
+        }
+
+        doPause(s);
+        sendClientBroadcast(AudioClientReceiver.getActionIntent(s.mId, AudioClientReceiver.Action.PAUSED));
 
         if (hasNotification()) {
-            stopForegroundService(false);
-            mNotificationManager.updatePlayState(false);
-            mNotificationManager.sendNotification();
+            updateForeground(false);
+            if (s == mDefaultSession) {
+                mNotificationManager.updatePlayState(false);
+                sendNotification();
+            }
         }
     }
 
     @Override
-    public void seekAudio(int msec) {
-        mAudioPlayer.seekTo(msec);
-        int positionMsec = mAudioPlayer.getCurrentPosition();
-        mBroadcastManager.sendBroadcast(AudioClientReceiver.getPositionUpdateIntent(positionMsec));
+    public void seekAudio(int session, int msec) {
+        Session s = getSession(session);
+        if (s == null) {
+            return;
+        }
+
+        s.mAudioPlayer.seekTo(msec);
+        int positionMsec = s.mAudioPlayer.getCurrentPosition();
+        saveResumePosition(s, positionMsec);
+        sendClientBroadcast(AudioClientReceiver.getPositionUpdateIntent(s.mId, positionMsec,
+                s.mAudioPlayer.getPlaybackRate()));
     }
 
     @Override
-    public void rewindAudioFull() {
-        doPause();
-        mAudioPlayer.seekTo(0);
+    public void rewindAudioFull(int session) {
+        Session s = getSession(session);
+        if (s == null) {
+            return;
+        }
+
+        doPause(s);
+        s.mAudioPlayer.seekTo(0);
 
         if (hasNotification()) {
-            stopForegroundService(false);
-            mNotificationManager.updatePlayState(false);
-            mNotificationManager.sendNotification();
+            updateForeground(false);
+            if (s == mDefaultSession) {
+                mNotificationManager.updatePlayState(false);
+                sendNotification();
+            }
         }
     }
 
     @Override
-    public void rewindAudio15Sec() {
-        boolean resumePlay = mAudioPlayer.isPlaying();
-        doPause();
-        int seekPosMsec = mAudioPlayer.getCurrentPosition() - 15000;
+    public void rewindAudio15Sec(int session) {
+        Session s = getSession(session);
+        if (s == null) {
+            return;
+        }
+
+        boolean resumePlay = s.mAudioPlayer.isPlaying();
+        doPause(s);
+        int seekPosMsec = s.mAudioPlayer.getCurrentPosition() - 15000;
         seekPosMsec = Math.max(seekPosMsec, 0);
-        mAudioPlayer.seekTo(seekPosMsec);
+        s.mAudioPlayer.seekTo(seekPosMsec);
         if (resumePlay) {
-            doResume();
+            doResume(s);
         } else {
             // Post current position
-            int positionMsec = mAudioPlayer != null ? mAudioPlayer.getCurrentPosition() : 0;
-            mBroadcastManager.sendBroadcast(AudioClientReceiver.getPositionUpdateIntent(positionMsec));
+            int positionMsec = s.mAudioPlayer.getCurrentPosition();
+            sendClientBroadcast(AudioClientReceiver.getPositionUpdateIntent(s.mId, positionMsec,
+                    s.mAudioPlayer.getPlaybackRate()));
         }
     }
 
     @Override
-    public void requestStatus() {
-        boolean isPlaying = mAudioPlayer.isPlaying();
-        int durationMsec = mAudioPlayer.getDuration();
+    public void requestStatus(int session) {
+        Session s = getSession(session);
+        if (s == null) {
+            return;
+        }
+
+        boolean isPlaying = s.mAudioPlayer.isPlaying();
+        int durationMsec = s.mAudioPlayer.getDuration();
         durationMsec = Math.max(durationMsec, 1);
-        int positionMsec = mAudioPlayer.getCurrentPosition();
-        mBroadcastManager.sendBroadcast(AudioClientReceiver.getGetStatusIntent(mIsLoaded, isPlaying, durationMsec, positionMsec));
+        int positionMsec = s.mAudioPlayer.getCurrentPosition();
+        sendClientBroadcast(AudioClientReceiver.getGetStatusIntent(s.mId, s.mIsLoaded, isPlaying, durationMsec,
+                positionMsec, s.mAudioPlayer.getPlaybackRate()));
     }
 
     @Override
     public boolean isAudioPlaying() {
-        return (mAudioPlayer != null && mAudioPlayer.isPlaying());
+        for (int i = 0; i < mSessions.size(); ++i) {
+            if (mSessions.get(i).mAudioPlayer.isPlaying()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public PlaybackStats getPlaybackStats(int session) {
+        Session s = getSession(session);
+        return s != null ? s.mPlaybackStats : null;
+    }
+
+    @Override
+    public MemoryGovernor getMemoryGovernor() {
+        return mMemoryGovernor;
     }
 
     @Override
@@ -417,10 +962,11 @@ public class AudioService extends Service implements MediaPlayer.OnPreparedListe
         if (notificationContent != null) {
             mNotificationManager.updateContent(notificationContent);
         }
-        mNotificationManager.updatePlayState(mAudioPlayer.isPlaying());
+        mNotificationManager.updatePlayState(mDefaultSession.mAudioPlayer.isPlaying());
         if (!isForeground()) {
             mState = ServiceState.FOREGROUND_WITH_NOTIFICATION;
             startForeground(mNotificationManager.getNotificationId(), mNotificationManager.getAudioNotification());
+            updateBufferMode();
         }
     }
 
@@ -430,5 +976,6 @@ public class AudioService extends Service implements MediaPlayer.OnPreparedListe
             stopForeground(dismissNotification);
         }
         mState = dismissNotification ? ServiceState.BACKGROUND : ServiceState.BACKGROUND_WITH_NOTIFICATION;
+        updateBufferMode();
     }
 }
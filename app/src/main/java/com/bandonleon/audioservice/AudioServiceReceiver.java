@@ -16,6 +16,8 @@ public class AudioServiceReceiver extends BroadcastReceiver {
     private static final String REQUEST_STATUS = "com.bandonleon.serverreceiver.action.REQUEST_STATUS";
     private static final String DISMISS_NOTIFICATION = "com.bandonleon.serverreceiver.action.DISMISS_NOTIFICATION";
 
+    private static final String EXTRA_SESSION = "com.bandonleon.serverreceiver.extra.SESSION";
+
     public static IntentFilter getAudioReceiverFilter() {
         IntentFilter filter = new IntentFilter();
         filter.addAction(RESUME_AUDIO);
@@ -27,8 +29,10 @@ public class AudioServiceReceiver extends BroadcastReceiver {
         return filter;
     }
 
-    public static Intent getActionIntent(Action action) {
-        return new Intent(action.getActionName());
+    public static Intent getActionIntent(int session, Action action) {
+        Intent intent = new Intent(action.getActionName());
+        intent.putExtra(EXTRA_SESSION, session);
+        return intent;
     }
 
     public enum Action {
@@ -58,25 +62,26 @@ public class AudioServiceReceiver extends BroadcastReceiver {
 
     @Override
     public void onReceive(Context context, Intent intent) {
+        int session = intent.getIntExtra(EXTRA_SESSION, AudioController.DEFAULT_SESSION);
         switch (intent.getAction()) {
             case RESUME_AUDIO:
-                mAudioController.resumeAudio();
+                mAudioController.resumeAudio(session);
                 break;
 
             case PAUSE_AUDIO:
-                mAudioController.pauseAudio();
+                mAudioController.pauseAudio(session);
                 break;
 
             case REWIND_AUDIO_FULL:
-                mAudioController.rewindAudioFull();
+                mAudioController.rewindAudioFull(session);
                 break;
 
             case REWIND_AUDIO_15_SEC:
-                mAudioController.rewindAudio15Sec();
+                mAudioController.rewindAudio15Sec(session);
                 break;
 
             case REQUEST_STATUS:
-                mAudioController.requestStatus();
+                mAudioController.requestStatus(session);
                 break;
 
             case DISMISS_NOTIFICATION:
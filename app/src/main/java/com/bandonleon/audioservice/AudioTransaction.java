@@ -0,0 +1,107 @@
+package com.bandonleon.audioservice;
+
+/**
+ * A batch of playback commands applied together by {@link AudioController#applyTransaction}.
+ * Clients get one status update once the whole batch has been applied, instead of a loaded,
+ * started, position and resumed update for each step along the way.
+ *
+ * <pre>
+ * controller.applyTransaction(new AudioTransaction.Builder()
+ *         .setAudio(R.raw.track)
+ *         .setPosition(savedPositionMsec)
+ *         .setRate(savedRate)
+ *         .setPlaying(true)
+ *         .build());
+ * </pre>
+ */
+public final class AudioTransaction {
+    public static final int POSITION_UNCHANGED = -1;
+
+    private final int mAudioResId;
+    private final int mPositionMsec;
+    private final boolean mHasPlayState;
+    private final boolean mPlaying;
+    private final float mRate;
+
+    private AudioTransaction(Builder builder) {
+        mAudioResId = builder.mAudioResId;
+        mPositionMsec = builder.mPositionMsec;
+        mHasPlayState = builder.mHasPlayState;
+        mPlaying = builder.mPlaying;
+        mRate = builder.mRate;
+    }
+
+    /**
+     * @return The track to load, or 0 to apply the transaction to the current track.
+     */
+    public int getAudioResId() {
+        return mAudioResId;
+    }
+
+    /**
+     * @return Where to start, or {@link #POSITION_UNCHANGED}. A newly loaded track then starts
+     * where it was last left off.
+     */
+    public int getPositionMsec() {
+        return mPositionMsec;
+    }
+
+    /**
+     * @return false if the transaction leaves the current track playing or paused as it was.
+     * A newly loaded track stays paused.
+     */
+    public boolean hasPlayState() {
+        return mHasPlayState;
+    }
+
+    public boolean isPlaying() {
+        return mPlaying;
+    }
+
+    /**
+     * @return false if the transaction leaves the playback rate as it was.
+     */
+    public boolean hasRate() {
+        return mRate > 0;
+    }
+
+    public float getRate() {
+        return mRate;
+    }
+
+    public static final class Builder {
+        private int mAudioResId;
+        private int mPositionMsec = POSITION_UNCHANGED;
+        private boolean mHasPlayState;
+        private boolean mPlaying;
+        private float mRate;
+
+        public Builder setAudio(int audioResId) {
+            mAudioResId = audioResId;
+            return this;
+        }
+
+        public Builder setPosition(int positionMsec) {
+            mPositionMsec = Math.max(positionMsec, 0);
+            return this;
+        }
+
+        public Builder setPlaying(boolean playing) {
+            mHasPlayState = true;
+            mPlaying = playing;
+            return this;
+        }
+
+        /**
+         * @param rate Playback speed, pitch is kept. Clamped to 0.5 - 3.
+         */
+        public Builder setRate(float rate) {
+            mRate = Math.max(TimeStretcher.MIN_RATE, Math.min(rate, TimeStretcher.MAX_RATE));
+            return this;
+        }
+
+        public AudioTransaction build() {
+            return new AudioTransaction(this);
+        }
+    }
+}
@@ -0,0 +1,505 @@
+package com.bandonleon.audioservice;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a file as fixed-size byte ranges fetched in parallel over a small thread pool.
+ *
+ * Chunks are written straight into a preallocated ".part" file with positional FileChannel
+ * writes. A ".state" file next to it records which chunks are safely on disk, one bit each,
+ * so a download interrupted at any point (including by the process being killed) picks up
+ * where it left off the next time the same file is requested. Finished files are checked
+ * against their SHA-256 before being renamed into place.
+ *
+ * Plain Java, no Android dependencies, so it can be tested on the JVM against a local server.
+ */
+public class ChunkedDownloader {
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_CHUNK_BYTES = 512 * 1024;
+
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MSEC = 15000;
+    private static final int READ_TIMEOUT_MSEC = 30000;
+    private static final String PART_SUFFIX = ".part";
+    private static final String STATE_SUFFIX = ".state";
+    private static final int STATE_MAGIC = 0x43484b31;   // "CHK1"
+
+    /**
+     * What one call to {@link #download} transferred. Resumed downloads only count the chunks
+     * fetched this time.
+     */
+    public static class Result {
+        private final long mFileBytes;
+        private final long mFetchedBytes;
+        private final int mFetchedChunks;
+        private final long mElapsedNanos;
+
+        Result(long fileBytes, long fetchedBytes, int fetchedChunks, long elapsedNanos) {
+            mFileBytes = fileBytes;
+            mFetchedBytes = fetchedBytes;
+            mFetchedChunks = fetchedChunks;
+            mElapsedNanos = elapsedNanos;
+        }
+
+        public long getFileBytes() {
+            return mFileBytes;
+        }
+
+        public long getFetchedBytes() {
+            return mFetchedBytes;
+        }
+
+        public int getFetchedChunks() {
+            return mFetchedChunks;
+        }
+
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        /**
+         * @return Bytes fetched per second in MB (10^6 bytes), including checksum time.
+         */
+        public double getMegabytesPerSecond() {
+            return mElapsedNanos == 0 ? 0 : mFetchedBytes / 1e6 / (mElapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("bytes=%d fetched=%d chunks=%d time=%.1fms rate=%.2fMB/s",
+                    mFileBytes, mFetchedBytes, mFetchedChunks, mElapsedNanos / 1e6, getMegabytesPerSecond());
+        }
+    }
+
+    /**
+     * The on-disk chunk bitmap. A bit is only set after its chunk has been forced to disk,
+     * so the bitmap never claims data that a crash could lose.
+     */
+    private static class ChunkState {
+        final String mUrl;
+        final String mSha256;
+        final long mLength;
+        final int mChunkBytes;
+        final int mChunkCount;
+        final byte[] mBitmap;
+        final long mBitmapOffset;
+        final RandomAccessFile mFile;
+        // Set on the first failure, the other chunks stop at their next read
+        volatile boolean mAborted;
+
+        ChunkState(RandomAccessFile file, String url, String sha256, long length, int chunkBytes,
+                   byte[] bitmap, long bitmapOffset) {
+            mFile = file;
+            mUrl = url;
+            mSha256 = sha256;
+            mLength = length;
+            mChunkBytes = chunkBytes;
+            mChunkCount = (int) ((length + chunkBytes - 1) / chunkBytes);
+            mBitmap = bitmap;
+            mBitmapOffset = bitmapOffset;
+        }
+
+        static ChunkState create(File stateFile, String url, String sha256, long length, int chunkBytes)
+                throws IOException {
+            RandomAccessFile file = new RandomAccessFile(stateFile, "rw");
+            try {
+                file.setLength(0);
+                file.writeInt(STATE_MAGIC);
+                file.writeLong(length);
+                file.writeInt(chunkBytes);
+                file.writeUTF(url);
+                file.writeUTF(sha256);
+                long bitmapOffset = file.getFilePointer();
+                int chunkCount = (int) ((length + chunkBytes - 1) / chunkBytes);
+                byte[] bitmap = new byte[(chunkCount + 7) / 8];
+                file.write(bitmap);
+                file.getFD().sync();
+                return new ChunkState(file, url, sha256, length, chunkBytes, bitmap, bitmapOffset);
+            } catch (IOException ex) {
+                file.close();
+                throw ex;
+            }
+        }
+
+        /**
+         * @return The saved state, or null if there is none or it can't be used.
+         */
+        static ChunkState open(File stateFile) {
+            if (!stateFile.isFile()) {
+                return null;
+            }
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile(stateFile, "rw");
+                if (file.readInt() != STATE_MAGIC) {
+                    file.close();
+                    return null;
+                }
+                long length = file.readLong();
+                int chunkBytes = file.readInt();
+                String url = file.readUTF();
+                String sha256 = file.readUTF();
+                long bitmapOffset = file.getFilePointer();
+                // Check the header before sizing anything from it, the bitmap has to be in the file
+                long chunkCount = length > 0 && chunkBytes > 0 ? (length + chunkBytes - 1) / chunkBytes : 0;
+                if (chunkCount <= 0 || chunkCount > Integer.MAX_VALUE
+                        || (chunkCount + 7) / 8 > file.length() - bitmapOffset) {
+                    file.close();
+                    return null;
+                }
+                byte[] bitmap = new byte[(int) ((chunkCount + 7) / 8)];
+                file.readFully(bitmap);
+                return new ChunkState(file, url, sha256, length, chunkBytes, bitmap, bitmapOffset);
+            } catch (IOException ex) {
+                // Truncated or corrupt, start over
+                closeQuietly(file);
+                return null;
+            }
+        }
+
+        synchronized boolean isDone(int index) {
+            return (mBitmap[index >> 3] & (1 << (index & 7))) != 0;
+        }
+
+        synchronized void markDone(int index) throws IOException {
+            int byteIndex = index >> 3;
+            mBitmap[byteIndex] |= 1 << (index & 7);
+            mFile.getChannel().write(ByteBuffer.wrap(mBitmap, byteIndex, 1), mBitmapOffset + byteIndex);
+        }
+
+        void close() {
+            closeQuietly(mFile);
+        }
+    }
+
+    private final ExecutorService mExecutor;
+    private final int mChunkBytes;
+    private volatile boolean mShutdown;
+
+    public ChunkedDownloader(int threads, int chunkBytes) {
+        mChunkBytes = chunkBytes;
+        mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ChunkedDownloader-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Downloads {@code url} to {@code target}, resuming an earlier attempt for the same url and
+     * checksum if there is one. Blocks until the file is in place.
+     *
+     * @param sha256Hex Expected SHA-256 of the whole file, as hex.
+     * @throws IOException If the download failed or the checksum didn't match. Chunks already
+     *                     on disk are kept for the next attempt unless the checksum was wrong.
+     */
+    public Result download(String url, String sha256Hex, File target) throws IOException {
+        if (mShutdown) {
+            throw new InterruptedIOException("Downloader shut down");
+        }
+        long startNanos = System.nanoTime();
+        File partFile = new File(target.getPath() + PART_SUFFIX);
+        File stateFile = new File(target.getPath() + STATE_SUFFIX);
+
+        ChunkState state = ChunkState.open(stateFile);
+        if (state != null && (!state.mUrl.equals(url) || !state.mSha256.equalsIgnoreCase(sha256Hex)
+                || !partFile.isFile())) {
+            state.close();
+            state = null;
+        }
+        if (state == null) {
+            state = startDownload(stateFile, url, sha256Hex);
+        }
+
+        RandomAccessFile part = null;
+        try {
+            part = new RandomAccessFile(partFile, "rw");
+            part.setLength(state.mLength);
+            FileChannel channel = part.getChannel();
+
+            AtomicLong fetchedBytes = new AtomicLong();
+            int fetchedChunks = fetchChunks(state, channel, fetchedBytes);
+
+            if (!sha256Hex.equalsIgnoreCase(sha256(channel, state.mLength))) {
+                part.close();
+                part = null;
+                state.close();
+                partFile.delete();
+                stateFile.delete();
+                throw new IOException("Checksum mismatch for " + url);
+            }
+
+            part.close();
+            part = null;
+            state.close();
+            if ((target.exists() && !target.delete()) || !partFile.renameTo(target)) {
+                throw new IOException("Couldn't move download into place: " + target);
+            }
+            stateFile.delete();
+            return new Result(state.mLength, fetchedBytes.get(), fetchedChunks, System.nanoTime() - startNanos);
+        } finally {
+            closeQuietly(part);
+            state.close();
+        }
+    }
+
+    /**
+     * Resumes the unfinished download of {@code target}, using the url and checksum it was
+     * started with. State that can't be read is deleted along with the chunks it described, so
+     * the download is no longer pending and has to be started over with {@link #download}.
+     */
+    public Result resume(File target) throws IOException {
+        File stateFile = new File(target.getPath() + STATE_SUFFIX);
+        ChunkState state = ChunkState.open(stateFile);
+        if (state == null) {
+            // Without its url there's no telling what the chunks belong to
+            new File(target.getPath() + PART_SUFFIX).delete();
+            stateFile.delete();
+            throw new IOException("Nothing to resume for " + target);
+        }
+        state.close();
+        return download(state.mUrl, state.mSha256, target);
+    }
+
+    /**
+     * @return true if {@code target} has an unfinished download that {@link #resume} can continue.
+     */
+    public static boolean isPending(File target) {
+        return new File(target.getPath() + STATE_SUFFIX).isFile();
+    }
+
+    /**
+     * Deletes {@code target} along with any unfinished download of it.
+     */
+    public static void delete(File target) {
+        target.delete();
+        new File(target.getPath() + PART_SUFFIX).delete();
+        new File(target.getPath() + STATE_SUFFIX).delete();
+    }
+
+    /**
+     * @return The file a pending download named {@code stateFile} is for, or null if
+     * {@code stateFile} isn't download state.
+     */
+    public static File getTargetForState(File stateFile) {
+        String path = stateFile.getPath();
+        return path.endsWith(STATE_SUFFIX) ? new File(path.substring(0, path.length() - STATE_SUFFIX.length())) : null;
+    }
+
+    /**
+     * Stops taking new chunks. Downloads in progress fail at their next read, and keep
+     * what they have so far.
+     */
+    public void shutdown() {
+        mShutdown = true;
+        mExecutor.shutdown();
+    }
+
+    private int fetchChunks(final ChunkState state, final FileChannel channel, final AtomicLong fetchedBytes)
+            throws IOException {
+        List<Future<Void>> futures = new ArrayList<>();
+        IOException failure = null;
+        for (int i = 0; i < state.mChunkCount; ++i) {
+            if (state.isDone(i)) {
+                continue;
+            }
+            final int index = i;
+            try {
+                futures.add(mExecutor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        fetchChunk(state, channel, index, fetchedBytes);
+                        // Data first, then the bit that says it's there
+                        channel.force(false);
+                        state.markDone(index);
+                        return null;
+                    }
+                }));
+            } catch (RejectedExecutionException ex) {
+                // Shut down meanwhile, the chunks already submitted still have to be waited out
+                failure = new InterruptedIOException("Downloader shut down");
+                state.mAborted = true;
+                break;
+            }
+        }
+
+        // Chunks are never interrupted, an interrupt would close the FileChannel under all of
+        // them. Instead the first failure sets mAborted and the rest are waited out.
+        boolean interrupted = false;
+        for (Future<Void> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                    if (failure == null) {
+                        failure = new InterruptedIOException("Download interrupted");
+                        state.mAborted = true;
+                    }
+                } catch (ExecutionException ex) {
+                    if (failure == null) {
+                        Throwable cause = ex.getCause();
+                        failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                        state.mAborted = true;
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return futures.size();
+    }
+
+    private void fetchChunk(ChunkState state, FileChannel channel, int index, AtomicLong fetchedBytes)
+            throws IOException {
+        long start = (long) index * state.mChunkBytes;
+        long end = Math.min(start + state.mChunkBytes, state.mLength);
+        boolean wholeFile = start == 0 && end == state.mLength;
+
+        HttpURLConnection connection = openConnection(state.mUrl, "GET");
+        InputStream input = null;
+        try {
+            if (!wholeFile) {
+                connection.setRequestProperty("Range", "bytes=" + start + "-" + (end - 1));
+            }
+            int responseCode = connection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL
+                    && !(wholeFile && responseCode == HttpURLConnection.HTTP_OK)) {
+                throw new IOException("Unexpected response " + responseCode + " for chunk " + index);
+            }
+
+            input = connection.getInputStream();
+            byte[] bytes = new byte[READ_BUFFER_BYTES];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long position = start;
+            while (position < end) {
+                if (mShutdown || state.mAborted) {
+                    throw new InterruptedIOException("Chunk " + index + " cancelled");
+                }
+                int count = input.read(bytes, 0, (int) Math.min(bytes.length, end - position));
+                if (count < 0) {
+                    throw new IOException("Chunk " + index + " ended early");
+                }
+                buffer.clear();
+                buffer.limit(count);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                fetchedBytes.addAndGet(count);
+            }
+        } finally {
+            closeQuietly(input);
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Asks the server for the file's length and whether it serves byte ranges, and records
+     * a fresh chunk bitmap for it.
+     */
+    private ChunkState startDownload(File stateFile, String url, String sha256Hex) throws IOException {
+        long length;
+        boolean supportsRanges;
+        HttpURLConnection connection = openConnection(url, "HEAD");
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected response " + connection.getResponseCode() + " for " + url);
+            }
+            String contentLength = connection.getHeaderField("Content-Length");
+            if (contentLength == null) {
+                throw new IOException("No content length for " + url);
+            }
+            length = Long.parseLong(contentLength.trim());
+            supportsRanges = "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"));
+        } catch (NumberFormatException ex) {
+            throw new IOException("Bad content length for " + url);
+        } finally {
+            connection.disconnect();
+        }
+
+        // Without ranges the whole file is one chunk, it can't be split or resumed part way
+        int chunkBytes = supportsRanges ? mChunkBytes : (int) Math.max(1, Math.min(length, Integer.MAX_VALUE));
+        return ChunkState.create(stateFile, url, sha256Hex, length, chunkBytes);
+    }
+
+    private static HttpURLConnection openConnection(String url, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MSEC);
+        connection.setReadTimeout(READ_TIMEOUT_MSEC);
+        // Ranges of a gzipped body aren't ranges of the file
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        return connection;
+    }
+
+    private static String sha256(FileChannel channel, long length) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        long position = 0;
+        while (position < length) {
+            buffer.clear();
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                break;
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += count;
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ex) {
+                // Nothing to do
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.bandonleon.audioservice;
+
+import android.support.v4.util.LruCache;
+
+/**
+ * Fully decoded short clips, keyed by raw resource id and bounded by their PCM size in bytes.
+ * Clips are stored as interleaved stereo at the clip player's output rate, so triggering
+ * one never decodes or converts anything.
+ */
+public class ClipCache extends LruCache<Integer, short[]> implements MemoryGovernor.Component {
+
+    public ClipCache(int maxBytes) {
+        super(maxBytes);
+    }
+
+    @Override
+    protected int sizeOf(Integer clipResId, short[] pcm) {
+        return pcm.length * 2;
+    }
+
+    @Override
+    public long getMemoryBytes() {
+        return size();
+    }
+
+    @Override
+    public void trimMemory(long maxBytes) {
+        trimToSize((int) Math.min(maxBytes, Integer.MAX_VALUE));
+    }
+}
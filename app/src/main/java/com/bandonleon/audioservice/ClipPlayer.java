@@ -0,0 +1,393 @@
+package com.bandonleon.audioservice;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Plays short cues (chimes, voice prompts) on top of whatever AudioEngine is playing.
+ *
+ * Clips are decoded once into a {@link ClipCache} and mixed on a dedicated thread into their
+ * own AudioTrack. That track runs at the device's native rate with the smallest buffer the
+ * platform allows, so a cached clip is audible within a couple of output periods of
+ * {@link #play} being called. Several clips can overlap, up to {@link #MAX_VOICES}.
+ *
+ * The track keeps running on silence for {@link #IDLE_WARM_MSEC} after the last clip ends, so
+ * cues that come in bursts don't pay for restarting the output each time. Each clip's latency
+ * is measured from {@link #play} to when its first frame is presented, which includes any
+ * restart and the output's own latency, and is recorded in {@link PlaybackStats}.
+ *
+ * The cache counts against the {@link MemoryGovernor}'s budget until {@link #release}.
+ */
+public class ClipPlayer {
+    private static final int MAX_VOICES = 8;
+    private static final int CACHE_MAX_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_CLIP_MSEC = 10000;
+    private static final long IDLE_WARM_MSEC = 3000;
+    private static final int CHANNELS = PcmDecoder.OUTPUT_CHANNELS;
+
+    private static class Voice {
+        short[] mPcm;
+        int mPosition;          // Sample (not frame) index into mPcm
+        long mTriggerNanos;     // Non-zero until the first block containing the clip is mixed
+    }
+
+    private final Resources mResources;
+    private final PlaybackStats mStats;
+    private final MemoryGovernor mMemoryGovernor;
+    private final ClipCache mCache = new ClipCache(CACHE_MAX_BYTES);
+    private final HandlerThread mLoaderThread;
+    private final Handler mLoaderHandler;
+    private final Thread mMixerThread;
+
+    private final int mSampleRate;
+    private final int mFramesPerBuffer;
+    private final int[] mMixBuffer;
+    private final short[] mOutBuffer;
+    private final AudioTimestamp mTimestamp;
+
+    // Everything below is guarded by mLock
+    private final Object mLock = new Object();
+    private final Voice[] mVoices = new Voice[MAX_VOICES];
+    private int mActiveVoices;
+    private AudioTrack mTrack;
+    private boolean mTrackPlaying;
+    private long mFramesWritten;
+    private long mIdleSinceNanos;
+    private boolean mReleased;
+
+    // Clips mixed but not yet presented, to measure their latency once they are
+    private final long[] mPendingTriggerNanos = new long[MAX_VOICES];
+    private final long[] mPendingStartFrames = new long[MAX_VOICES];
+    private int mPendingCount;
+
+    public ClipPlayer(Context context, PlaybackStats stats, MemoryGovernor memoryGovernor) {
+        mResources = context.getResources();
+        mStats = stats;
+        mMemoryGovernor = memoryGovernor;
+        mMemoryGovernor.register("clips", MemoryGovernor.PRIORITY_CLIPS, mCache);
+
+        mSampleRate = AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+        mFramesPerBuffer = AudioEngine.getNativeFramesPerBuffer(context);
+        mMixBuffer = new int[mFramesPerBuffer * CHANNELS];
+        mOutBuffer = new short[mFramesPerBuffer * CHANNELS];
+        mTimestamp = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ? new AudioTimestamp() : null;
+        for (int i = 0; i < MAX_VOICES; ++i) {
+            mVoices[i] = new Voice();
+        }
+
+        int minBufferBytes = AudioTrack.getMinBufferSize(mSampleRate, AudioFormat.CHANNEL_OUT_STEREO,
+                AudioFormat.ENCODING_PCM_16BIT);
+        int bufferBytes = Math.max(minBufferBytes, mFramesPerBuffer * CHANNELS * 2 * 2);
+        mTrack = new AudioTrack(AudioManager.STREAM_MUSIC, mSampleRate, AudioFormat.CHANNEL_OUT_STEREO,
+                AudioFormat.ENCODING_PCM_16BIT, bufferBytes, AudioTrack.MODE_STREAM);
+
+        mLoaderThread = new HandlerThread("ClipLoader", Process.THREAD_PRIORITY_BACKGROUND);
+        mLoaderThread.start();
+        mLoaderHandler = new Handler(mLoaderThread.getLooper());
+
+        mMixerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                runMixer();
+            }
+        }, "ClipPlayer");
+        mMixerThread.start();
+    }
+
+    /**
+     * Decodes {@code clipResId} into the cache in the background, ahead of the first {@link #play}.
+     */
+    public void preload(final int clipResId) {
+        if (mCache.get(clipResId) != null) {
+            return;
+        }
+        mLoaderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                load(clipResId);
+            }
+        });
+    }
+
+    /**
+     * Starts playing {@code clipResId}. Cached clips start within the output latency,
+     * otherwise the clip is decoded first and starts as soon as it is ready.
+     */
+    public void play(final int clipResId) {
+        short[] pcm = mCache.get(clipResId);
+        if (pcm != null) {
+            trigger(pcm, System.nanoTime());
+            return;
+        }
+
+        final long triggerNanos = System.nanoTime();
+        mLoaderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                short[] loaded = load(clipResId);
+                if (loaded != null) {
+                    trigger(loaded, triggerNanos);
+                }
+            }
+        });
+    }
+
+    public void release() {
+        synchronized (mLock) {
+            mReleased = true;
+            mTrack.stop();
+            mLock.notifyAll();
+        }
+
+        try {
+            mMixerThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        mLoaderThread.quit();
+
+        synchronized (mLock) {
+            mTrack.release();
+        }
+        mMemoryGovernor.unregister(mCache);
+        mCache.evictAll();
+    }
+
+    private void trigger(short[] pcm, long triggerNanos) {
+        synchronized (mLock) {
+            if (mReleased) {
+                return;
+            }
+
+            // Use a free voice, or steal the one closest to finishing
+            Voice target = null;
+            for (Voice voice : mVoices) {
+                if (voice.mPcm == null) {
+                    target = voice;
+                    break;
+                }
+                if (target == null || voice.mPcm.length - voice.mPosition < target.mPcm.length - target.mPosition) {
+                    target = voice;
+                }
+            }
+            if (target.mPcm == null) {
+                ++mActiveVoices;
+            }
+
+            target.mPcm = pcm;
+            target.mPosition = 0;
+            target.mTriggerNanos = triggerNanos;
+            mLock.notifyAll();
+        }
+    }
+
+    private short[] load(int clipResId) {
+        short[] pcm = mCache.get(clipResId);
+        if (pcm == null) {
+            pcm = decodeClip(mResources, clipResId, mSampleRate);
+            if (pcm != null) {
+                mCache.put(clipResId, pcm);
+                mMemoryGovernor.enforceBudget();
+            }
+        }
+        return pcm;
+    }
+
+    /***************************************************************************************
+     *                                   Mixer thread
+     ***************************************************************************************/
+    private void runMixer() {
+        while (true) {
+            synchronized (mLock) {
+                try {
+                    while (!mReleased && mActiveVoices == 0 && !isWarmLocked()) {
+                        if (mTrackPlaying) {
+                            // Idle for long enough, the tail of the last clip has long played out
+                            mTrack.pause();
+                            mTrack.flush();
+                            mTrackPlaying = false;
+                            mFramesWritten = 0;
+                            mPendingCount = 0;
+                        }
+                        mLock.wait();
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                if (mReleased) {
+                    return;
+                }
+                if (!mTrackPlaying) {
+                    mTrack.play();
+                    mTrackPlaying = true;
+                }
+                if (mActiveVoices > 0) {
+                    mixLocked();
+                } else {
+                    // Keep the track fed so the next clip starts on a running output
+                    Arrays.fill(mOutBuffer, (short) 0);
+                }
+            }
+
+            int offset = 0;
+            while (offset < mOutBuffer.length) {
+                int written = mTrack.write(mOutBuffer, offset, mOutBuffer.length - offset);
+                if (written <= 0) {
+                    break;
+                }
+                offset += written;
+            }
+            synchronized (mLock) {
+                mFramesWritten += offset / CHANNELS;
+                measureLatenciesLocked();
+            }
+        }
+    }
+
+    private boolean isWarmLocked() {
+        return mTrackPlaying && System.nanoTime() - mIdleSinceNanos < IDLE_WARM_MSEC * 1000000L;
+    }
+
+    private void mixLocked() {
+        Arrays.fill(mMixBuffer, 0);
+
+        for (Voice voice : mVoices) {
+            short[] pcm = voice.mPcm;
+            if (pcm == null) {
+                continue;
+            }
+
+            if (voice.mTriggerNanos != 0) {
+                // The clip starts with this block, which is written from mFramesWritten on
+                if (mPendingCount < MAX_VOICES) {
+                    mPendingTriggerNanos[mPendingCount] = voice.mTriggerNanos;
+                    mPendingStartFrames[mPendingCount] = mFramesWritten;
+                    ++mPendingCount;
+                }
+                voice.mTriggerNanos = 0;
+            }
+
+            int count = Math.min(mMixBuffer.length, pcm.length - voice.mPosition);
+            for (int i = 0; i < count; ++i) {
+                mMixBuffer[i] += pcm[voice.mPosition + i];
+            }
+            voice.mPosition += count;
+            if (voice.mPosition >= pcm.length) {
+                voice.mPcm = null;
+                if (--mActiveVoices == 0) {
+                    mIdleSinceNanos = System.nanoTime();
+                }
+            }
+        }
+
+        for (int i = 0; i < mMixBuffer.length; ++i) {
+            int sample = mMixBuffer[i];
+            if (sample > Short.MAX_VALUE) {
+                sample = Short.MAX_VALUE;
+            } else if (sample < Short.MIN_VALUE) {
+                sample = Short.MIN_VALUE;
+            }
+            mOutBuffer[i] = (short) sample;
+        }
+    }
+
+    /**
+     * Records the latency of every pending clip whose first frame has been presented. Where
+     * the platform reports presentation timestamps that is when the frame left the speaker,
+     * otherwise when the playback head passed it, which misses only the output's fixed latency.
+     */
+    private void measureLatenciesLocked() {
+        if (mPendingCount == 0) {
+            return;
+        }
+
+        long presentedFrame;
+        long presentedNanos;
+        if (mTimestamp != null && mTrack.getTimestamp(mTimestamp)) {
+            presentedFrame = mTimestamp.framePosition;
+            presentedNanos = mTimestamp.nanoTime;
+        } else {
+            presentedFrame = getHeadFramesLocked();
+            presentedNanos = System.nanoTime();
+        }
+
+        for (int i = mPendingCount - 1; i >= 0; --i) {
+            long startFrame = mPendingStartFrames[i];
+            if (presentedFrame < startFrame) {
+                continue;
+            }
+            long startNanos = presentedNanos - (presentedFrame - startFrame) * 1000000000L / mSampleRate;
+            mStats.recordClipLatency(startNanos - mPendingTriggerNanos[i]);
+
+            --mPendingCount;
+            mPendingTriggerNanos[i] = mPendingTriggerNanos[mPendingCount];
+            mPendingStartFrames[i] = mPendingStartFrames[mPendingCount];
+        }
+    }
+
+    private long getHeadFramesLocked() {
+        return mTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+    }
+
+    /***************************************************************************************
+     *                                      Decoding
+     ***************************************************************************************/
+    private static short[] decodeClip(Resources resources, int clipResId, int outputRate) {
+        PcmDecoder decoder = null;
+        AssetFileDescriptor assetFD = resources.openRawResourceFd(clipResId);
+        try {
+            decoder = new PcmDecoder(assetFD);
+            if (decoder.getDurationMsec() > MAX_CLIP_MSEC) {
+                // Not a short clip, this belongs on the AudioEngine
+                return null;
+            }
+
+            long maxFrames = (long) MAX_CLIP_MSEC * decoder.getSampleRate() / 1000L;
+            short[] pcm = new short[(int) (decoder.getDurationFrames() + 1024) * CHANNELS];
+            int frames = 0;
+            while (true) {
+                if (frames * CHANNELS == pcm.length) {
+                    if (frames >= maxFrames) {
+                        return null;
+                    }
+                    pcm = Arrays.copyOf(pcm, pcm.length * 2);
+                }
+                int read = decoder.read(pcm, frames * CHANNELS, pcm.length / CHANNELS - frames);
+                if (read < 0) {
+                    break;
+                }
+                frames += read;
+            }
+
+            if (decoder.getSampleRate() != outputRate) {
+                return Resampler.resample(pcm, frames, CHANNELS, decoder.getSampleRate(), outputRate);
+            }
+            return Arrays.copyOf(pcm, frames * CHANNELS);
+        } catch (IOException | RuntimeException ex) {
+            // @TODO: Log exception here...
+            return null;
+        } finally {
+            if (decoder != null) {
+                decoder.release();
+            }
+            try {
+                assetFD.close();
+            } catch (IOException ex) {
+                // Nothing to do
+            }
+        }
+    }
+}
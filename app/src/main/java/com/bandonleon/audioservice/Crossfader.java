@@ -0,0 +1,69 @@
+package com.bandonleon.audioservice;
+
+/**
+ * Equal-power crossfade between two interleaved 16-bit PCM streams.
+ *
+ * The fade-in gain follows sin(t * PI/2) and the fade-out gain cos(t * PI/2), so the
+ * summed power stays constant across the fade. Both curves share one precomputed table
+ * and mixing never allocates.
+ */
+public class Crossfader {
+    private static final int CURVE_SIZE = 1024;
+    private static final float[] FADE_IN_CURVE = new float[CURVE_SIZE];
+
+    static {
+        for (int i = 0; i < CURVE_SIZE; ++i) {
+            FADE_IN_CURVE[i] = (float) Math.sin((Math.PI / 2) * i / (CURVE_SIZE - 1));
+        }
+    }
+
+    private final int mChannels;
+    private long mTotalFrames;
+    private long mPositionFrames;
+
+    public Crossfader(int channels) {
+        mChannels = channels;
+    }
+
+    public void start(long totalFrames) {
+        mTotalFrames = Math.max(totalFrames, 1);
+        mPositionFrames = 0;
+    }
+
+    public void cancel() {
+        mPositionFrames = mTotalFrames;
+    }
+
+    public boolean isActive() {
+        return mPositionFrames < mTotalFrames;
+    }
+
+    /**
+     * Mixes {@code frames} frames of the outgoing and incoming streams into {@code dst}.
+     * {@code dst} may be the same array as either source.
+     */
+    public void mix(short[] outgoing, short[] incoming, short[] dst, int frames) {
+        int sample = 0;
+        for (int i = 0; i < frames; ++i) {
+            int curveIndex;
+            if (mPositionFrames >= mTotalFrames) {
+                curveIndex = CURVE_SIZE - 1;
+            } else {
+                curveIndex = (int) (mPositionFrames * (CURVE_SIZE - 1) / mTotalFrames);
+                ++mPositionFrames;
+            }
+            float gainIn = FADE_IN_CURVE[curveIndex];
+            float gainOut = FADE_IN_CURVE[CURVE_SIZE - 1 - curveIndex];
+
+            for (int c = 0; c < mChannels; ++c, ++sample) {
+                int mixed = (int) (outgoing[sample] * gainOut + incoming[sample] * gainIn);
+                if (mixed > Short.MAX_VALUE) {
+                    mixed = Short.MAX_VALUE;
+                } else if (mixed < Short.MIN_VALUE) {
+                    mixed = Short.MIN_VALUE;
+                }
+                dst[sample] = (short) mixed;
+            }
+        }
+    }
+}
@@ -4,15 +4,17 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
+import android.graphics.Bitmap;
 import android.support.v4.content.LocalBroadcastManager;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.Button;
+import android.widget.ImageView;
 import android.widget.ProgressBar;
 
 public class MainActivity extends AppCompatActivity implements AudioClientReceiver.AudioListener,
-        AudioService.ServiceListener {
+        AudioService.ServiceListener, ArtworkLoader.ArtworkListener {
 
     private static int AUDIO_TRACK_RESOURCE_ID = R.raw.nocturne_op9_no1;
     private static String AUDIO_TRACK_TITLE = "Chopin Op.9 no.1";
@@ -26,6 +28,7 @@ public class MainActivity extends AppCompatActivity implements AudioClientReceiv
 
     private Button mActionBtn;
     private ProgressBar mProgressBar;
+    private ImageView mArtworkView;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -33,7 +36,7 @@ public class MainActivity extends AppCompatActivity implements AudioClientReceiv
         setContentView(R.layout.activity_main);
 
         mAudioReceiver = new AudioClientReceiver();
-        mAudioReceiver.addAudioListener(this);
+        mAudioReceiver.addAudioListener(this, AudioController.DEFAULT_SESSION);
 
         mAudioController = null;
         mConnection = new AudioService.AudioServiceConnection(this);
@@ -49,6 +52,10 @@ public class MainActivity extends AppCompatActivity implements AudioClientReceiv
 
         mActionBtn.setText(getString(R.string.play));
 
+        mArtworkView = (ImageView) findViewById(R.id.artwork);
+        int artworkSize = getResources().getDimensionPixelSize(R.dimen.artwork_size);
+        ArtworkLoader.getInstance(this).load(AUDIO_TRACK_RESOURCE_ID, artworkSize, artworkSize, this);
+
         mActionBtn.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -61,11 +68,11 @@ public class MainActivity extends AppCompatActivity implements AudioClientReceiv
                 startService(audioIntent);
                 */
                 if (mIsPlaying) {
-                    mAudioController.pauseAudio();
+                    mAudioController.pauseAudio(AudioController.DEFAULT_SESSION);
                 } else if (mIsLoaded) {
-                    mAudioController.resumeAudio();
+                    mAudioController.resumeAudio(AudioController.DEFAULT_SESSION);
                 } else {
-                    mAudioController.playAudio(AUDIO_TRACK_RESOURCE_ID);
+                    mAudioController.playAudio(AudioController.DEFAULT_SESSION, AUDIO_TRACK_RESOURCE_ID);
                 }
             }
         });
@@ -74,7 +81,7 @@ public class MainActivity extends AppCompatActivity implements AudioClientReceiv
             @Override
             public void onClick(View v) {
                 // startService(AudioService.getActionIntent(MainActivity.this, Action.REWIND_15_SEC));
-                mAudioController.rewindAudio15Sec();
+                mAudioController.rewindAudio15Sec(AudioController.DEFAULT_SESSION);
             }
         });
     }
@@ -82,6 +89,7 @@ public class MainActivity extends AppCompatActivity implements AudioClientReceiv
     @Override
     protected void onDestroy() {
         mAudioReceiver.removeAudioListener(this);
+        ArtworkLoader.getInstance(this).cancel(this);
         super.onDestroy();
     }
 
@@ -134,7 +142,7 @@ public class MainActivity extends AppCompatActivity implements AudioClientReceiv
      *                              AudioClientReceiver.AudioListener
      ***************************************************************************************/
     @Override
-    public void onAudioLoaded(int durationMsec) {
+    public void onAudioLoaded(int session, int durationMsec) {
         mIsLoaded = true;
         mIsPlaying = false;
         mProgressBar.setMax(durationMsec);
@@ -142,7 +150,7 @@ public class MainActivity extends AppCompatActivity implements AudioClientReceiv
     }
 
     @Override
-    public void onAudioStarted(int durationMsec) {
+    public void onAudioStarted(int session, int durationMsec) {
         mIsLoaded = true;
         mIsPlaying = true;
         mProgressBar.setMax(durationMsec);
@@ -150,31 +158,32 @@ public class MainActivity extends AppCompatActivity implements AudioClientReceiv
     }
 
     @Override
-    public void onAudioCompleted() {
+    public void onAudioCompleted(int session) {
         mIsPlaying = false;
         mProgressBar.setProgress(0);
         updateUI();
     }
 
     @Override
-    public void onAudioResumed(int positionMsec) {
+    public void onAudioResumed(int session, int positionMsec) {
         mIsPlaying = true;
         updateUI();
     }
 
     @Override
-    public void onAudioPaused() {
+    public void onAudioPaused(int session) {
         mIsPlaying = false;
         updateUI();
     }
 
     @Override
-    public void onPositionUpdate(int positionMsec) {
+    public void onPositionUpdate(int session, int positionMsec, float playbackRate) {
         mProgressBar.setProgress(positionMsec);
     }
 
     @Override
-    public void onStatusUpdate(boolean isLoaded, boolean isPlaying, int durationMsec, int positionMsec) {
+    public void onStatusUpdate(int session, boolean isLoaded, boolean isPlaying, int durationMsec,
+                               int positionMsec, float playbackRate) {
         mIsLoaded = isLoaded;
         mIsPlaying = isPlaying;
         mProgressBar.setMax(durationMsec);
@@ -182,6 +191,22 @@ public class MainActivity extends AppCompatActivity implements AudioClientReceiv
         updateUI();
     }
 
+    @Override
+    public void onPinFinished(int audioId, boolean pinned) {
+        // Nothing is pinned from here
+    }
+
+    /***************************************************************************************
+     *                              ArtworkLoader.ArtworkListener
+     ***************************************************************************************/
+    @Override
+    public void onArtworkLoaded(int audioResId, Bitmap artwork) {
+        if (artwork != null) {
+            mArtworkView.setImageBitmap(artwork);
+            mArtworkView.setVisibility(View.VISIBLE);
+        }
+    }
+
     /***************************************************************************************
      *                              AudioService.ServiceListener
      ***************************************************************************************/
@@ -190,7 +215,7 @@ public class MainActivity extends AppCompatActivity implements AudioClientReceiv
         mAudioController = controller;
         if (mAudioController != null) {
             mAudioController.stopForegroundService(true);
-            mAudioController.requestStatus();
+            mAudioController.requestStatus(AudioController.DEFAULT_SESSION);
         }
     }
 
@@ -0,0 +1,85 @@
+package com.bandonleon.audioservice;
+
+import android.annotation.TargetApi;
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaDataSource;
+import android.media.MediaExtractor;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Serves a track to MediaExtractor out of a region mapped by {@link MappedTrackCache}, so
+ * every read the extractor makes is a memory copy.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class MappedDataSource extends MediaDataSource {
+    private final ByteBuffer mRegion;
+
+    public MappedDataSource(ByteBuffer region) {
+        mRegion = region;
+    }
+
+    /**
+     * Points {@code extractor} at a mapping of {@code assetFD}'s region. The caller still owns
+     * {@code assetFD} and can close it as soon as this returns.
+     *
+     * @return false if the region couldn't be mapped, in which case the extractor is untouched.
+     */
+    public static boolean setDataSource(MediaExtractor extractor, AssetFileDescriptor assetFD) throws IOException {
+        long length = assetFD.getLength();
+        if (length == AssetFileDescriptor.UNKNOWN_LENGTH) {
+            return false;
+        }
+
+        FileDescriptor fd = assetFD.getFileDescriptor();
+        ByteBuffer region;
+        try {
+            // Not closed, the descriptor belongs to assetFD
+            FileChannel channel = new FileInputStream(fd).getChannel();
+            region = MappedTrackCache.getInstance().map(getKey(fd, assetFD.getStartOffset(), length), channel,
+                    assetFD.getStartOffset(), length);
+        } catch (IOException ex) {
+            // @TODO: Log error
+            return false;
+        }
+        extractor.setDataSource(new MappedDataSource(region));
+        return true;
+    }
+
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) {
+        return MappedTrackCache.read(mRegion, position, buffer, offset, size);
+    }
+
+    @Override
+    public long getSize() {
+        return mRegion.capacity();
+    }
+
+    @Override
+    public void close() {
+        // The mapping goes away with the last reference to it
+    }
+
+    /**
+     * The file's device and inode number, which can't be reused by another file while a mapping
+     * of it is pinned, plus the region.
+     */
+    private static String getKey(FileDescriptor fd, long offset, long length) {
+        try {
+            StructStat stat = Os.fstat(fd);
+            return stat.st_dev + ":" + stat.st_ino + ":" + offset + ":" + length;
+        } catch (ErrnoException ex) {
+            // Mapped but never pinned
+            return null;
+        }
+    }
+}
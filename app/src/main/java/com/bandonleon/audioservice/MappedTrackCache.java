@@ -0,0 +1,147 @@
+package com.bandonleon.audioservice;
+
+import android.support.v4.util.LruCache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory-mapped regions of local track files, so that the decoder reads them with plain memory
+ * copies instead of a system call per read.
+ *
+ * Every open maps the track's region of its file. A track of at most
+ * {@code MAX_PINNED_TRACK_BYTES} that is opened again soon after is hot: its mapping is loaded
+ * into memory and pinned, and every later open shares it. Pinned tracks are bounded by
+ * {@code PINNED_MAX_BYTES} and by the {@link MemoryGovernor}. Unpinning only drops the mapping,
+ * the garbage collector unmaps it.
+ *
+ * Thread safe. One instance is shared by the playback engine and the clip player.
+ */
+public class MappedTrackCache implements MemoryGovernor.Component {
+    private static final int PINNED_MAX_BYTES = 8 * 1024 * 1024;
+    private static final int MAX_PINNED_TRACK_BYTES = 2 * 1024 * 1024;
+    private static final int RECENT_KEYS = 64;
+
+    private static MappedTrackCache sInstance;
+
+    private final LruCache<String, ByteBuffer> mPinned = new LruCache<String, ByteBuffer>(PINNED_MAX_BYTES) {
+        @Override
+        protected int sizeOf(String key, ByteBuffer region) {
+            return region.capacity();
+        }
+    };
+
+    // Guarded by itself, tracks opened lately and not pinned yet
+    private final Map<String, Boolean> mRecentKeys = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > RECENT_KEYS;
+        }
+    };
+
+    private volatile MemoryGovernor mMemoryGovernor;
+
+    public static synchronized MappedTrackCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new MappedTrackCache();
+        }
+        return sInstance;
+    }
+
+    MappedTrackCache() {
+        // Shared through getInstance(), tests make their own
+    }
+
+    /**
+     * Registers the pinned tracks with {@code governor}, in place of any earlier one.
+     *
+     * @param governor null to stop being governed.
+     */
+    public synchronized void setMemoryGovernor(MemoryGovernor governor) {
+        if (mMemoryGovernor != null) {
+            mMemoryGovernor.unregister(this);
+        }
+        mMemoryGovernor = governor;
+        if (governor != null) {
+            governor.register("mapped tracks", MemoryGovernor.PRIORITY_MAPPED_TRACKS, this);
+        }
+    }
+
+    /**
+     * Maps {@code length} bytes of {@code channel} from {@code offset}. The channel can be closed
+     * as soon as this returns.
+     *
+     * @param key Identifies the file and region across opens, or null to never pin it.
+     * @return A read-only view of the region, with a position of its own.
+     */
+    public ByteBuffer map(String key, FileChannel channel, long offset, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Track too large to map");
+        }
+        ByteBuffer pinned = key != null ? mPinned.get(key) : null;
+        if (pinned != null) {
+            return pinned.duplicate();
+        }
+
+        MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        if (key != null && length <= MAX_PINNED_TRACK_BYTES && isHot(key)) {
+            // Fault the whole track in now, rather than a page at a time while decoding
+            region.load();
+            mPinned.put(key, region);
+            MemoryGovernor governor = mMemoryGovernor;
+            if (governor != null) {
+                governor.enforceBudget();
+            }
+            return region.duplicate();
+        }
+        return region;
+    }
+
+    /**
+     * Copies up to {@code size} bytes at {@code position} of {@code region} into {@code dst}.
+     * Moves the region's position, so callers sharing a region must serialize.
+     *
+     * @return Bytes copied, or -1 past the end of the region.
+     */
+    public static int read(ByteBuffer region, long position, byte[] dst, int offset, int size) {
+        int capacity = region.capacity();
+        if (position >= capacity) {
+            return -1;
+        }
+        int count = (int) Math.min(size, capacity - position);
+        region.position((int) position);
+        region.get(dst, offset, count);
+        return count;
+    }
+
+    public int getPinnedCount() {
+        return mPinned.snapshot().size();
+    }
+
+    @Override
+    public long getMemoryBytes() {
+        return mPinned.size();
+    }
+
+    @Override
+    public void trimMemory(long maxBytes) {
+        mPinned.trimToSize((int) Math.min(maxBytes, Integer.MAX_VALUE));
+    }
+
+    /**
+     * @return true if {@code key} was opened lately, and records this open otherwise.
+     */
+    private boolean isHot(String key) {
+        synchronized (mRecentKeys) {
+            if (mRecentKeys.remove(key) != null) {
+                return true;
+            }
+            mRecentKeys.put(key, Boolean.TRUE);
+            return false;
+        }
+    }
+}
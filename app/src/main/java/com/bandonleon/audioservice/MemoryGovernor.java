@@ -0,0 +1,150 @@
+package com.bandonleon.audioservice;
+
+import android.content.ComponentCallbacks2;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One byte budget for everything the service holds in memory.
+ *
+ * Components register with a priority and report how many bytes they hold. Whenever one grows
+ * past the shared budget, and whenever the system asks the process to trim memory, components
+ * are shrunk in priority order, cheapest to rebuild first, until the total fits again. Trims
+ * are one-off: afterwards caches refill on demand, within the budget.
+ *
+ * Thread safe. Components are called with the governor's lock held, so they must never call
+ * into the governor while holding a lock of their own.
+ */
+public class MemoryGovernor {
+    /** Pinned track mappings, which only fall back to being read from flash. */
+    public static final int PRIORITY_MAPPED_TRACKS = 0;
+    /** Decoded artwork, which is cheap to reload from the disk cache. */
+    public static final int PRIORITY_ARTWORK = 1;
+    /** Decoded clips, which need decoding (and resampling) again. */
+    public static final int PRIORITY_CLIPS = 2;
+    /** What is playing right now. Trimmed last, and only down to what keeps it playing. */
+    public static final int PRIORITY_PLAYBACK = 3;
+
+    public interface Component {
+        long getMemoryBytes();
+
+        /**
+         * Frees memory until at most {@code maxBytes} are held, or as close as it can get.
+         */
+        void trimMemory(long maxBytes);
+    }
+
+    private static final class Entry {
+        final String mName;
+        final int mPriority;
+        final Component mComponent;
+
+        Entry(String name, int priority, Component component) {
+            mName = name;
+            mPriority = priority;
+            mComponent = component;
+        }
+    }
+
+    private final long mBudgetBytes;
+
+    // Guarded by this, kept sorted by priority
+    private final List<Entry> mEntries = new ArrayList<>();
+
+    public MemoryGovernor(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+    }
+
+    public long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    /**
+     * @param name Shown in {@link #getUsage()}.
+     */
+    public synchronized void register(String name, int priority, Component component) {
+        int index = 0;
+        while (index < mEntries.size() && mEntries.get(index).mPriority <= priority) {
+            ++index;
+        }
+        mEntries.add(index, new Entry(name, priority, component));
+        enforceBudget();
+    }
+
+    public synchronized void unregister(Component component) {
+        for (int i = 0; i < mEntries.size(); ++i) {
+            if (mEntries.get(i).mComponent == component) {
+                mEntries.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Called by a component after it has grown, brings the total back under budget.
+     */
+    public synchronized void enforceBudget() {
+        trimTo(mBudgetBytes);
+    }
+
+    /**
+     * @param level A {@link ComponentCallbacks2} TRIM_MEMORY_ level.
+     */
+    public synchronized void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimTo(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimTo(mBudgetBytes / 4);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            trimTo(mBudgetBytes / 2);
+        }
+        // TRIM_MEMORY_UI_HIDDEN: nothing held here belongs to the UI
+    }
+
+    public synchronized void onLowMemory() {
+        trimTo(0);
+    }
+
+    public synchronized long getTotalBytes() {
+        long totalBytes = 0;
+        for (Entry entry : mEntries) {
+            totalBytes += entry.mComponent.getMemoryBytes();
+        }
+        return totalBytes;
+    }
+
+    /**
+     * @return Bytes held by each component, by name, in the order they would be trimmed.
+     */
+    public synchronized Map<String, Long> getUsage() {
+        Map<String, Long> usage = new LinkedHashMap<>();
+        for (Entry entry : mEntries) {
+            Long bytes = usage.get(entry.mName);
+            usage.put(entry.mName, (bytes != null ? bytes : 0) + entry.mComponent.getMemoryBytes());
+        }
+        return usage;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Long> usage : getUsage().entrySet()) {
+            builder.append(usage.getKey()).append('=').append(usage.getValue() / 1024).append("KB ");
+        }
+        return builder.append("total=").append(getTotalBytes() / 1024).append("KB budget=")
+                .append(mBudgetBytes / 1024).append("KB").toString();
+    }
+
+    private void trimTo(long targetBytes) {
+        long totalBytes = getTotalBytes();
+        for (int i = 0; i < mEntries.size() && totalBytes > targetBytes; ++i) {
+            Entry entry = mEntries.get(i);
+            long bytes = entry.mComponent.getMemoryBytes();
+            entry.mComponent.trimMemory(Math.max(0, bytes - (totalBytes - targetBytes)));
+            totalBytes -= bytes - entry.mComponent.getMemoryBytes();
+        }
+    }
+}
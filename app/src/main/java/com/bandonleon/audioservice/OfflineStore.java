@@ -0,0 +1,171 @@
+package com.bandonleon.audioservice;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Remote tracks pinned for offline playback, stored under files/offline by audio id.
+ *
+ * Pins are downloaded one at a time, each split into parallel chunks by a
+ * {@link ChunkedDownloader}. Downloads cut short by the process dying are picked up again by
+ * {@link #resumePending}. Listeners are called on the main thread.
+ */
+public class OfflineStore {
+    private static final String OFFLINE_DIR = "offline";
+    private static final String AUDIO_SUFFIX = ".audio";
+
+    public interface PinListener {
+        /**
+         * @param result What the download transferred, or null if it failed.
+         */
+        void onPinFinished(int audioId, ChunkedDownloader.Result result);
+    }
+
+    private final File mDir;
+    private final ChunkedDownloader mDownloader =
+            new ChunkedDownloader(ChunkedDownloader.DEFAULT_THREADS, ChunkedDownloader.DEFAULT_CHUNK_BYTES);
+    private final ExecutorService mPinExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    public OfflineStore(Context context) {
+        mDir = new File(context.getFilesDir(), OFFLINE_DIR);
+    }
+
+    /**
+     * @return The pinned copy of {@code audioId}, or null if it isn't fully downloaded.
+     */
+    public File getLocalFile(int audioId) {
+        File file = getFile(audioId);
+        return file.isFile() && !ChunkedDownloader.isPending(file) ? file : null;
+    }
+
+    /**
+     * Opens the pinned copy of {@code audioId}, the caller owns the descriptor.
+     *
+     * @return null if {@code audioId} isn't pinned.
+     */
+    public AssetFileDescriptor openLocalAudio(int audioId) {
+        File file = getLocalFile(audioId);
+        if (file == null) {
+            return null;
+        }
+        try {
+            ParcelFileDescriptor fd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+            return new AssetFileDescriptor(fd, 0, file.length());
+        } catch (FileNotFoundException ex) {
+            // Unpinned in the meantime
+            return null;
+        }
+    }
+
+    /**
+     * Downloads {@code url} as {@code audioId}, continuing an earlier attempt if there was one.
+     *
+     * @param sha256Hex Expected SHA-256 of the file, a download that doesn't match is discarded.
+     */
+    public void pin(final int audioId, final String url, final String sha256Hex, final PinListener listener) {
+        mPinExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ChunkedDownloader.Result result = null;
+                if (mDir.isDirectory() || mDir.mkdirs()) {
+                    try {
+                        result = mDownloader.download(url, sha256Hex, getFile(audioId));
+                    } catch (IOException ex) {
+                        // @TODO: Log error, what's on disk is kept for the next attempt
+                    }
+                }
+                notifyPinFinished(listener, audioId, result);
+            }
+        });
+    }
+
+    /**
+     * Restarts every download that was still in progress when the process last went away.
+     */
+    public void resumePending(final PinListener listener) {
+        mPinExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File[] files = mDir.listFiles();
+                if (files == null) {
+                    return;
+                }
+                for (File file : files) {
+                    File target = ChunkedDownloader.getTargetForState(file);
+                    int audioId = target != null ? getAudioId(target) : 0;
+                    if (audioId == 0) {
+                        continue;
+                    }
+                    ChunkedDownloader.Result result = null;
+                    try {
+                        result = mDownloader.resume(target);
+                    } catch (IOException ex) {
+                        // @TODO: Log error. State that couldn't be read is gone now, so only
+                        // downloads that can still be finished are tried again next time
+                    }
+                    notifyPinFinished(listener, audioId, result);
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes the pinned copy of {@code audioId}, after any download of it still queued.
+     */
+    public void unpin(final int audioId) {
+        mPinExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ChunkedDownloader.delete(getFile(audioId));
+            }
+        });
+    }
+
+    /**
+     * Stops downloading. Unfinished downloads keep their chunks and resume next time.
+     */
+    public void release() {
+        // No new pins first, then whatever is still queued or running fails at the downloader
+        mPinExecutor.shutdown();
+        mDownloader.shutdown();
+    }
+
+    private void notifyPinFinished(final PinListener listener, final int audioId,
+                                   final ChunkedDownloader.Result result) {
+        if (listener == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onPinFinished(audioId, result);
+            }
+        });
+    }
+
+    private File getFile(int audioId) {
+        return new File(mDir, audioId + AUDIO_SUFFIX);
+    }
+
+    private static int getAudioId(File file) {
+        String name = file.getName();
+        if (!name.endsWith(AUDIO_SUFFIX)) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - AUDIO_SUFFIX.length()));
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+}
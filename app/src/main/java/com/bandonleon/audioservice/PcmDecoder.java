@@ -0,0 +1,246 @@
+package com.bandonleon.audioservice;
+
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Pulls 16-bit PCM out of a compressed track using MediaExtractor + MediaCodec.
+ * From Android M the track is read through a memory mapping, see {@link MappedDataSource}.
+ * Output is always interleaved stereo, regardless of the source channel count,
+ * so that any two decoders can be mixed frame for frame.
+ *
+ * Not thread safe, the caller is expected to serialize access.
+ */
+public class PcmDecoder {
+    public static final int OUTPUT_CHANNELS = 2;
+
+    private static final long DEQUEUE_TIMEOUT_USEC = 10000;
+
+    private final MediaExtractor mExtractor;
+    private final MediaCodec mCodec;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+    private int mOutputIndex = -1;
+    private ShortBuffer mOutput;
+
+    private boolean mInputDone;
+    private boolean mOutputDone;
+
+    private int mSampleRate;
+    private int mChannelCount;
+    private final long mDurationUsec;
+    private long mPositionFrames;
+
+    public PcmDecoder(AssetFileDescriptor assetFD) throws IOException {
+        mExtractor = new MediaExtractor();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M || !MappedDataSource.setDataSource(mExtractor, assetFD)) {
+            mExtractor.setDataSource(assetFD.getFileDescriptor(), assetFD.getStartOffset(), assetFD.getLength());
+        }
+
+        MediaFormat format = null;
+        for (int i = 0; i < mExtractor.getTrackCount(); ++i) {
+            MediaFormat trackFormat = mExtractor.getTrackFormat(i);
+            String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                mExtractor.selectTrack(i);
+                format = trackFormat;
+                break;
+            }
+        }
+        if (format == null) {
+            mExtractor.release();
+            throw new IOException("No audio track found");
+        }
+
+        mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        mChannelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        mDurationUsec = format.containsKey(MediaFormat.KEY_DURATION) ? format.getLong(MediaFormat.KEY_DURATION) : 0;
+
+        mCodec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        mCodec.configure(format, null, null, 0);
+        mCodec.start();
+        mInputBuffers = mCodec.getInputBuffers();
+        mOutputBuffers = mCodec.getOutputBuffers();
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public long getDurationFrames() {
+        return mDurationUsec * mSampleRate / 1000000L;
+    }
+
+    public int getDurationMsec() {
+        return (int) (mDurationUsec / 1000L);
+    }
+
+    /**
+     * @return Source frame of the next frame {@link #read} will return.
+     */
+    public long getPositionFrames() {
+        return mPositionFrames;
+    }
+
+    /**
+     * Decodes up to {@code frames} stereo frames into {@code dst}.
+     *
+     * @return Number of frames written, or -1 once the end of stream is reached.
+     */
+    public int read(short[] dst, int offset, int frames) {
+        int framesRead = 0;
+        while (framesRead < frames) {
+            if (mOutput == null || !mOutput.hasRemaining()) {
+                releaseOutput();
+                if (mOutputDone || !dequeueOutput()) {
+                    break;
+                }
+                continue;
+            }
+
+            int count = Math.min(frames - framesRead, mOutput.remaining() / mChannelCount);
+            if (count == 0) {
+                // Drop a trailing partial frame
+                mOutput.position(mOutput.limit());
+                continue;
+            }
+            copyFrames(dst, offset + framesRead * OUTPUT_CHANNELS, count);
+            framesRead += count;
+        }
+
+        if (framesRead == 0 && mOutputDone) {
+            return -1;
+        }
+        mPositionFrames += framesRead;
+        return framesRead;
+    }
+
+    /**
+     * Starts the codec and waits for its first output buffer, so the next {@link #read}
+     * does not pay the decoder startup cost.
+     */
+    public void prime() {
+        while (mOutput == null && !mOutputDone) {
+            if (!dequeueOutput()) {
+                break;
+            }
+        }
+    }
+
+    public void seekTo(long positionFrames) {
+        releaseOutput();
+        mCodec.flush();
+        mExtractor.seekTo(positionFrames * 1000000L / mSampleRate, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        long sampleTimeUsec = mExtractor.getSampleTime();
+        mPositionFrames = sampleTimeUsec >= 0 ? sampleTimeUsec * mSampleRate / 1000000L : positionFrames;
+        mInputDone = false;
+        mOutputDone = false;
+    }
+
+    public void release() {
+        releaseOutput();
+        mCodec.stop();
+        mCodec.release();
+        mExtractor.release();
+    }
+
+    private void copyFrames(short[] dst, int offset, int frames) {
+        switch (mChannelCount) {
+            case 2:
+                mOutput.get(dst, offset, frames * 2);
+                break;
+
+            case 1:
+                // Read mono into the front of the range, then spread it out from the back
+                mOutput.get(dst, offset, frames);
+                for (int i = frames - 1; i >= 0; --i) {
+                    short sample = dst[offset + i];
+                    dst[offset + i * 2] = sample;
+                    dst[offset + i * 2 + 1] = sample;
+                }
+                break;
+
+            default:
+                // Keep front left/right and drop the rest
+                for (int i = 0; i < frames; ++i) {
+                    int frameStart = mOutput.position();
+                    dst[offset + i * 2] = mOutput.get(frameStart);
+                    dst[offset + i * 2 + 1] = mOutput.get(frameStart + 1);
+                    mOutput.position(frameStart + mChannelCount);
+                }
+                break;
+        }
+    }
+
+    private void feedInput() {
+        while (!mInputDone) {
+            int index = mCodec.dequeueInputBuffer(0);
+            if (index < 0) {
+                return;
+            }
+
+            int size = mExtractor.readSampleData(mInputBuffers[index], 0);
+            if (size < 0) {
+                mCodec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                mInputDone = true;
+            } else {
+                mCodec.queueInputBuffer(index, 0, size, mExtractor.getSampleTime(), 0);
+                mExtractor.advance();
+            }
+        }
+    }
+
+    private boolean dequeueOutput() {
+        feedInput();
+        int index = mCodec.dequeueOutputBuffer(mBufferInfo, DEQUEUE_TIMEOUT_USEC);
+        switch (index) {
+            case MediaCodec.INFO_TRY_AGAIN_LATER:
+                return true;
+
+            case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
+                mOutputBuffers = mCodec.getOutputBuffers();
+                return true;
+
+            case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+                MediaFormat format = mCodec.getOutputFormat();
+                mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                mChannelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                return true;
+
+            default:
+                if (index < 0) {
+                    return false;
+                }
+                break;
+        }
+
+        if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            mOutputDone = true;
+        }
+
+        ByteBuffer buffer = mOutputBuffers[index];
+        buffer.position(mBufferInfo.offset);
+        buffer.limit(mBufferInfo.offset + mBufferInfo.size);
+        mOutputIndex = index;
+        mOutput = buffer.slice().order(ByteOrder.nativeOrder()).asShortBuffer();
+        return true;
+    }
+
+    private void releaseOutput() {
+        if (mOutputIndex >= 0) {
+            mCodec.releaseOutputBuffer(mOutputIndex, false);
+            mOutputIndex = -1;
+        }
+        mOutput = null;
+    }
+}
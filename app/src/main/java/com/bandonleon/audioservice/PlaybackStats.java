@@ -0,0 +1,185 @@
+package com.bandonleon.audioservice;
+
+import android.os.SystemClock;
+
+/**
+ * Counters collected by the playback engine and the service. Each field has a single writer
+ * thread (playback, clip mixer or main) and is read from anywhere, so every field is volatile.
+ */
+public class PlaybackStats {
+    volatile long mUnderruns;
+    volatile long mRenderNanos;
+    volatile long mRenderedFrames;
+    volatile long mPlaybackWakeups;
+
+    volatile long mCrossfades;
+    volatile long mCrossfadeUnderruns;
+    volatile long mCrossfadeRenderNanos;
+    volatile long mCrossfadeFrames;
+
+    volatile long mClipTriggers;
+    volatile long mClipLatencyTotalNanos;
+    volatile long mClipLatencyMaxNanos;
+
+    // Main thread
+    volatile long mPositionTicks;
+    volatile long mBroadcasts;
+    volatile long mNotifications;
+    volatile long mPins;
+    volatile long mPinFailures;
+    volatile long mPinFetchedBytes;
+    volatile long mPinNanos;
+
+    volatile int mSampleRate;
+    volatile boolean mResampling;
+
+    // Wall clock rather than uptime, which stops while the CPU sleeps
+    private volatile long mStartRealtimeMsec = SystemClock.elapsedRealtime();
+
+    public long getUnderruns() {
+        return mUnderruns;
+    }
+
+    public long getCrossfades() {
+        return mCrossfades;
+    }
+
+    public long getCrossfadeUnderruns() {
+        return mCrossfadeUnderruns;
+    }
+
+    public long getPositionTicks() {
+        return mPositionTicks;
+    }
+
+    public long getPlaybackWakeups() {
+        return mPlaybackWakeups;
+    }
+
+    /**
+     * @return Times per minute the playback thread or the position tick woke up, since the
+     * stats were created or last reset.
+     */
+    public double getWakeupsPerMinute() {
+        long elapsedMsec = SystemClock.elapsedRealtime() - mStartRealtimeMsec;
+        return elapsedMsec <= 0 ? 0 : (mPlaybackWakeups + mPositionTicks) * 60000.0 / elapsedMsec;
+    }
+
+    /**
+     * @return true if the current track is being resampled to the device's output rate.
+     */
+    public boolean isResampling() {
+        return mResampling;
+    }
+
+    public long getBroadcasts() {
+        return mBroadcasts;
+    }
+
+    public long getNotifications() {
+        return mNotifications;
+    }
+
+    public long getPins() {
+        return mPins;
+    }
+
+    public long getPinFailures() {
+        return mPinFailures;
+    }
+
+    /**
+     * @return Download rate across every finished pin, in MB (10^6 bytes) per second.
+     */
+    public double getPinMegabytesPerSecond() {
+        long nanos = mPinNanos;
+        return nanos == 0 ? 0 : mPinFetchedBytes / 1e6 / (nanos / 1e9);
+    }
+
+    public long getClipTriggers() {
+        return mClipTriggers;
+    }
+
+    /**
+     * @return Mean time from a clip being triggered to its first frame being presented by the output.
+     */
+    public double getClipLatencyMsec() {
+        long triggers = mClipTriggers;
+        return triggers == 0 ? 0 : mClipLatencyTotalNanos / 1e6 / triggers;
+    }
+
+    public double getClipLatencyMaxMsec() {
+        return mClipLatencyMaxNanos / 1e6;
+    }
+
+    /**
+     * @return Fraction of one core spent rendering ordinary (single track) audio.
+     */
+    public double getRenderLoad() {
+        return load(mRenderNanos, mRenderedFrames);
+    }
+
+    /**
+     * @return Fraction of one core spent rendering audio while a crossfade was running.
+     * Compare against {@link #getRenderLoad()} for the overhead of decoding and mixing two tracks.
+     */
+    public double getCrossfadeLoad() {
+        return load(mCrossfadeRenderNanos, mCrossfadeFrames);
+    }
+
+    public void reset() {
+        mUnderruns = 0;
+        mRenderNanos = 0;
+        mRenderedFrames = 0;
+        mPlaybackWakeups = 0;
+        mCrossfades = 0;
+        mCrossfadeUnderruns = 0;
+        mCrossfadeRenderNanos = 0;
+        mCrossfadeFrames = 0;
+        mClipTriggers = 0;
+        mClipLatencyTotalNanos = 0;
+        mClipLatencyMaxNanos = 0;
+        mPositionTicks = 0;
+        mBroadcasts = 0;
+        mNotifications = 0;
+        mPins = 0;
+        mPinFailures = 0;
+        mPinFetchedBytes = 0;
+        mPinNanos = 0;
+        mStartRealtimeMsec = SystemClock.elapsedRealtime();
+    }
+
+    void recordClipLatency(long latencyNanos) {
+        ++mClipTriggers;
+        mClipLatencyTotalNanos += latencyNanos;
+        if (latencyNanos > mClipLatencyMaxNanos) {
+            mClipLatencyMaxNanos = latencyNanos;
+        }
+    }
+
+    void recordPin(ChunkedDownloader.Result result) {
+        ++mPins;
+        mPinFetchedBytes += result.getFetchedBytes();
+        mPinNanos += result.getElapsedNanos();
+    }
+
+    private double load(long nanos, long frames) {
+        int sampleRate = mSampleRate;
+        if (frames == 0 || sampleRate == 0) {
+            return 0;
+        }
+        double audioNanos = frames * 1e9 / sampleRate;
+        return nanos / audioNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("underruns=%d load=%.4f crossfades=%d crossfadeUnderruns=%d crossfadeLoad=%.4f "
+                        + "clips=%d clipLatency=%.1fms clipLatencyMax=%.1fms ticks=%d broadcasts=%d notifications=%d "
+                        + "wakeupsPerMin=%.1f resampling=%b pins=%d pinFailures=%d pinRate=%.2fMB/s",
+                mUnderruns, getRenderLoad(), mCrossfades, mCrossfadeUnderruns, getCrossfadeLoad(),
+                mClipTriggers, getClipLatencyMsec(), getClipLatencyMaxMsec(),
+                mPositionTicks, mBroadcasts, mNotifications, getWakeupsPerMinute(), mResampling,
+                mPins, mPinFailures, getPinMegabytesPerSecond());
+    }
+}
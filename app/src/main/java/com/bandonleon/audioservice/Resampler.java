@@ -0,0 +1,273 @@
+package com.bandonleon.audioservice;
+
+import java.util.Arrays;
+
+/**
+ * Converts interleaved 16-bit PCM from one sample rate to another with a polyphase
+ * windowed-sinc filter.
+ *
+ * The rate ratio is reduced to up/down factors L/M, and the filter is precomputed as one row of
+ * {@code TAPS} coefficients for each of the L output phases, so each output frame is a single
+ * dot product. Ratios with more than {@code MAX_PHASES} phases use the nearest precomputed one.
+ * When downsampling the cutoff moves down to the output's Nyquist rate, so nothing aliases.
+ *
+ * Buffers and tables are allocated by the constructor and {@link #configure}, processing
+ * never allocates. Not thread safe.
+ */
+public class Resampler {
+    private static final int TAPS = 32;
+    private static final int HALF_TAPS = TAPS / 2;
+    private static final int MAX_PHASES = 512;
+    private static final double KAISER_BETA = 8.0;
+    private static final double PASSBAND = 0.92;    // Of the lower of the two Nyquist rates
+
+    private final int mChannels;
+    private final short[] mInput;
+    private final float[] mSums;
+
+    private int mInputRate;
+    private int mOutputRate;
+    private int mUpFactor;
+    private int mDownFactor;
+    private int mPhases;
+    private float[] mFilter;
+
+    private int mInputFrames;
+    private int mBaseFrame;     // First input frame under the filter for the next output frame
+    private int mPhase;         // In 1/mUpFactor input frames past the filter's center
+    private boolean mEnded;
+
+    /**
+     * @param maxWriteFrames Most frames that will be passed to one {@link #write}.
+     */
+    public Resampler(int channels, int maxWriteFrames) {
+        mChannels = channels;
+        mInput = new short[(TAPS + Math.max(maxWriteFrames, HALF_TAPS)) * channels];
+        mSums = new float[channels];
+    }
+
+    /**
+     * Builds the filter for converting {@code inputRate} to {@code outputRate} and resets.
+     * Only allocates when the new ratio needs a bigger table than any before.
+     */
+    public void configure(int inputRate, int outputRate) {
+        if (inputRate != mInputRate || outputRate != mOutputRate) {
+            mInputRate = inputRate;
+            mOutputRate = outputRate;
+            int divisor = gcd(inputRate, outputRate);
+            mUpFactor = outputRate / divisor;
+            mDownFactor = inputRate / divisor;
+            mPhases = Math.min(mUpFactor, MAX_PHASES);
+            if (mFilter == null || mFilter.length < mPhases * TAPS) {
+                mFilter = new float[mPhases * TAPS];
+            }
+            buildFilter();
+        }
+        reset();
+    }
+
+    public int getInputRate() {
+        return mInputRate;
+    }
+
+    public int getOutputRate() {
+        return mOutputRate;
+    }
+
+    /**
+     * Drops all buffered input, as after a seek.
+     */
+    public void reset() {
+        // Leading silence puts the filter's center on the first input frame
+        mInputFrames = HALF_TAPS - 1;
+        Arrays.fill(mInput, 0, mInputFrames * mChannels, (short) 0);
+        mBaseFrame = 0;
+        mPhase = 0;
+        mEnded = false;
+    }
+
+    /**
+     * Adds {@code frames} frames from sample {@code offset} of {@code src}, at most the
+     * {@code maxWriteFrames} given to the constructor. Only call this once {@link #read} has
+     * returned less than was asked for.
+     */
+    public void write(short[] src, int offset, int frames) {
+        compact();
+        System.arraycopy(src, offset, mInput, mInputFrames * mChannels, frames * mChannels);
+        mInputFrames += frames;
+    }
+
+    /**
+     * Pads the input with silence so that everything written so far comes out of {@link #read}.
+     */
+    public void endOfInput() {
+        if (mEnded) {
+            return;
+        }
+        compact();
+        Arrays.fill(mInput, mInputFrames * mChannels, (mInputFrames + HALF_TAPS) * mChannels, (short) 0);
+        mInputFrames += HALF_TAPS;
+        mEnded = true;
+    }
+
+    public boolean isEnded() {
+        return mEnded;
+    }
+
+    /**
+     * @return Output frames that {@link #read} will return before the first frame of the next
+     * {@link #write} comes out, counted from where the filter's center is now.
+     */
+    public int getLatencyFrames() {
+        double centerFrame = mBaseFrame + HALF_TAPS - 1 + (double) mPhase / mUpFactor;
+        return (int) Math.round(Math.max(0, mInputFrames - centerFrame) * mUpFactor / mDownFactor);
+    }
+
+    public long getMemoryBytes() {
+        return mInput.length * 2 + (mFilter != null ? mFilter.length * 4 : 0);
+    }
+
+    /**
+     * Reads up to {@code frames} frames of output to sample {@code offset} of {@code dst}.
+     *
+     * @return Frames read, less than {@code frames} if more input is needed first.
+     */
+    public int read(short[] dst, int offset, int frames) {
+        int channels = mChannels;
+        int out = offset;
+        int read = 0;
+        while (read < frames && mBaseFrame + TAPS <= mInputFrames) {
+            int phase = mPhases == mUpFactor ? mPhase : (int) ((long) mPhase * mPhases / mUpFactor);
+            int row = phase * TAPS;
+            int in = mBaseFrame * channels;
+            if (channels == 2) {
+                float left = 0;
+                float right = 0;
+                for (int i = 0; i < TAPS; ++i) {
+                    float coefficient = mFilter[row + i];
+                    left += mInput[in++] * coefficient;
+                    right += mInput[in++] * coefficient;
+                }
+                dst[out++] = toSample(left);
+                dst[out++] = toSample(right);
+            } else {
+                Arrays.fill(mSums, 0);
+                for (int i = 0; i < TAPS; ++i) {
+                    float coefficient = mFilter[row + i];
+                    for (int c = 0; c < channels; ++c) {
+                        mSums[c] += mInput[in++] * coefficient;
+                    }
+                }
+                for (int c = 0; c < channels; ++c) {
+                    dst[out++] = toSample(mSums[c]);
+                }
+            }
+            ++read;
+
+            mPhase += mDownFactor;
+            if (mPhase >= mUpFactor) {
+                mBaseFrame += mPhase / mUpFactor;
+                mPhase %= mUpFactor;
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Resamples a whole clip in one go.
+     *
+     * @return {@code frames * outputRate / inputRate} frames.
+     */
+    public static short[] resample(short[] src, int frames, int channels, int inputRate, int outputRate) {
+        final int blockFrames = 1024;
+        int outputFrames = (int) ((long) frames * outputRate / inputRate);
+        short[] dst = new short[outputFrames * channels];
+        Resampler resampler = new Resampler(channels, blockFrames);
+        resampler.configure(inputRate, outputRate);
+
+        int written = 0;
+        int read = 0;
+        while (true) {
+            read += resampler.read(dst, read * channels, outputFrames - read);
+            if (read == outputFrames) {
+                break;
+            }
+            if (written < frames) {
+                int count = Math.min(blockFrames, frames - written);
+                resampler.write(src, written * channels, count);
+                written += count;
+            } else if (!resampler.isEnded()) {
+                resampler.endOfInput();
+            } else {
+                break;
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * Row p holds the taps for an output frame p / mPhases input frames past the filter's
+     * center: a Kaiser windowed sinc at the cutoff, normalized to unity gain at DC.
+     */
+    private void buildFilter() {
+        double cutoff = 0.5 * PASSBAND * Math.min(1.0, (double) mUpFactor / mDownFactor);
+        double windowScale = 1.0 / besselI0(KAISER_BETA);
+        for (int p = 0; p < mPhases; ++p) {
+            double fraction = (double) p / mPhases;
+            int row = p * TAPS;
+            double sum = 0;
+            for (int i = 0; i < TAPS; ++i) {
+                double distance = i - (HALF_TAPS - 1) - fraction;
+                double x = 2 * cutoff * distance;
+                double sinc = x == 0 ? 1.0 : Math.sin(Math.PI * x) / (Math.PI * x);
+                double position = distance / HALF_TAPS;
+                double window = Math.abs(position) >= 1 ? 0
+                        : besselI0(KAISER_BETA * Math.sqrt(1 - position * position)) * windowScale;
+                double tap = 2 * cutoff * sinc * window;
+                mFilter[row + i] = (float) tap;
+                sum += tap;
+            }
+            for (int i = 0; i < TAPS; ++i) {
+                mFilter[row + i] = (float) (mFilter[row + i] / sum);
+            }
+        }
+    }
+
+    private void compact() {
+        if (mBaseFrame > 0) {
+            System.arraycopy(mInput, mBaseFrame * mChannels, mInput, 0, (mInputFrames - mBaseFrame) * mChannels);
+            mInputFrames -= mBaseFrame;
+            mBaseFrame = 0;
+        }
+    }
+
+    private static short toSample(float value) {
+        if (value >= Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        }
+        if (value <= Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) Math.round(value);
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        double halfX = x / 2;
+        for (int k = 1; k < 50 && term > sum * 1e-12; ++k) {
+            term *= (halfX / k) * (halfX / k);
+            sum += term;
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
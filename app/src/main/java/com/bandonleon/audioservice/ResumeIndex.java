@@ -0,0 +1,287 @@
+package com.bandonleon.audioservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Where each track was left off and when it was last played, by audio id.
+ *
+ * The index is an open addressing hash table with linear probing that lives directly in a
+ * memory-mapped file: a 16 byte header followed by 16 byte slots of (audio id, position,
+ * last played time), where audio id 0 marks an empty slot. Lookups read one or two slots with
+ * no boxing or allocation, and each update writes only the slot it touches, which the kernel
+ * writes back along with the rest of the dirty page. Growing rehashes into a new file twice
+ * the size and renames it over the old one.
+ *
+ * If the file can't be mapped the index falls back to a heap buffer, so positions are only
+ * remembered until the process goes away. Not thread safe.
+ */
+public class ResumeIndex {
+    private static final int MAGIC = 0x52534d31;    // "RSM1"
+    private static final int HEADER_BYTES = 16;
+    private static final int SLOT_BYTES = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_CAPACITY = 1 << 24;
+    private static final String GROW_SUFFIX = ".grow";
+
+    // Header fields
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int SIZE_OFFSET = 8;
+
+    // Slot fields
+    private static final int ID_OFFSET = 0;
+    private static final int POSITION_OFFSET = 4;
+    private static final int LAST_PLAYED_OFFSET = 8;
+
+    private final File mFile;
+    private ByteBuffer mBuffer;
+    private int mCapacity;      // Always a power of two
+    private int mSize;
+
+    /**
+     * Opens the index in {@code file}, creating it if needed. A file that isn't a valid index
+     * is started over.
+     *
+     * @param file null to keep the index in memory only.
+     */
+    public ResumeIndex(File file) {
+        mFile = file;
+        if (file != null && file.isFile()) {
+            mBuffer = map(file, 0);
+            if (mBuffer != null && isValid(mBuffer, file.length())) {
+                mCapacity = mBuffer.getInt(CAPACITY_OFFSET);
+                mSize = mBuffer.getInt(SIZE_OFFSET);
+                return;
+            }
+        }
+        mBuffer = create(file, INITIAL_CAPACITY);
+        mCapacity = INITIAL_CAPACITY;
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return Where {@code audioId} was left off, or 0 if it has never been played.
+     */
+    public int getPositionMsec(int audioId) {
+        int slot = find(audioId);
+        return slot >= 0 ? mBuffer.getInt(slot + POSITION_OFFSET) : 0;
+    }
+
+    /**
+     * @return When {@code audioId} was last played, in {@link System#currentTimeMillis()}
+     * time, or 0 if it has never been played.
+     */
+    public long getLastPlayedMsec(int audioId) {
+        int slot = find(audioId);
+        return slot >= 0 ? mBuffer.getLong(slot + LAST_PLAYED_OFFSET) : 0;
+    }
+
+    /**
+     * @param audioId Any id but 0.
+     */
+    public void put(int audioId, int positionMsec, long lastPlayedMsec) {
+        if (audioId == 0) {
+            return;
+        }
+        int slot = find(audioId);
+        if (slot < 0) {
+            if ((mSize + 1) * 4L > mCapacity * 3L) {
+                if (mCapacity >= MAX_CAPACITY) {
+                    // @TODO: Log error, the index is full
+                    return;
+                }
+                grow();
+            }
+            slot = insertSlot(audioId);
+        }
+        mBuffer.putInt(slot + POSITION_OFFSET, positionMsec);
+        mBuffer.putLong(slot + LAST_PLAYED_OFFSET, lastPlayedMsec);
+    }
+
+    public void remove(int audioId) {
+        int slot = find(audioId);
+        if (slot < 0) {
+            return;
+        }
+
+        // Shift later entries of the probe run back into the hole, so no lookup stops early
+        int mask = mCapacity - 1;
+        int hole = (slot - HEADER_BYTES) / SLOT_BYTES;
+        int index = (hole + 1) & mask;
+        int id;
+        while ((id = mBuffer.getInt(slotOffset(index) + ID_OFFSET)) != 0) {
+            int home = hash(id) & mask;
+            if (((index - home) & mask) >= ((index - hole) & mask)) {
+                copySlot(index, hole);
+                hole = index;
+            }
+            index = (index + 1) & mask;
+        }
+        mBuffer.putInt(slotOffset(hole) + ID_OFFSET, 0);
+        mBuffer.putInt(SIZE_OFFSET, --mSize);
+    }
+
+    /**
+     * Writes any changes still in memory out to the file.
+     */
+    public void flush() {
+        if (mBuffer instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) mBuffer).force();
+        }
+    }
+
+    /**
+     * @return Byte offset of {@code audioId}'s slot, or -1 if it isn't in the index.
+     */
+    private int find(int audioId) {
+        if (audioId == 0) {
+            return -1;
+        }
+        int mask = mCapacity - 1;
+        int index = hash(audioId) & mask;
+        while (true) {
+            int slot = slotOffset(index);
+            int id = mBuffer.getInt(slot + ID_OFFSET);
+            if (id == audioId) {
+                return slot;
+            }
+            if (id == 0) {
+                return -1;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * Claims an empty slot for {@code audioId}, which must not be in the index yet.
+     */
+    private int insertSlot(int audioId) {
+        int mask = mCapacity - 1;
+        int index = hash(audioId) & mask;
+        while (mBuffer.getInt(slotOffset(index) + ID_OFFSET) != 0) {
+            index = (index + 1) & mask;
+        }
+        int slot = slotOffset(index);
+        mBuffer.putInt(slot + ID_OFFSET, audioId);
+        mBuffer.putInt(SIZE_OFFSET, ++mSize);
+        return slot;
+    }
+
+    private void grow() {
+        ByteBuffer oldBuffer = mBuffer;
+        int oldCapacity = mCapacity;
+        File growFile = mFile != null ? new File(mFile.getPath() + GROW_SUFFIX) : null;
+
+        mCapacity = oldCapacity * 2;
+        mBuffer = create(growFile, mCapacity);
+        mSize = 0;
+        for (int index = 0; index < oldCapacity; ++index) {
+            int slot = slotOffset(index);
+            int id = oldBuffer.getInt(slot + ID_OFFSET);
+            if (id != 0) {
+                int newSlot = insertSlot(id);
+                mBuffer.putInt(newSlot + POSITION_OFFSET, oldBuffer.getInt(slot + POSITION_OFFSET));
+                mBuffer.putLong(newSlot + LAST_PLAYED_OFFSET, oldBuffer.getLong(slot + LAST_PLAYED_OFFSET));
+            }
+        }
+
+        if (mBuffer instanceof MappedByteBuffer) {
+            // Complete on disk before it replaces the old file
+            flush();
+            if (!growFile.renameTo(mFile)) {
+                // @TODO: Log error, changes from here on are lost with the process
+            }
+        }
+    }
+
+    private void copySlot(int from, int to) {
+        int src = slotOffset(from);
+        int dst = slotOffset(to);
+        mBuffer.putInt(dst + POSITION_OFFSET, mBuffer.getInt(src + POSITION_OFFSET));
+        mBuffer.putLong(dst + LAST_PLAYED_OFFSET, mBuffer.getLong(src + LAST_PLAYED_OFFSET));
+        mBuffer.putInt(dst + ID_OFFSET, mBuffer.getInt(src + ID_OFFSET));
+    }
+
+    /**
+     * @param file null for a heap buffer.
+     * @return An empty index with room for {@code capacity} slots.
+     */
+    private static ByteBuffer create(File file, int capacity) {
+        long bytes = HEADER_BYTES + (long) capacity * SLOT_BYTES;
+        ByteBuffer buffer = null;
+        if (file != null) {
+            file.delete();
+            buffer = map(file, bytes);
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate((int) bytes);
+        }
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        buffer.putInt(SIZE_OFFSET, 0);
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        return buffer;
+    }
+
+    /**
+     * Maps all of {@code file}, first growing it to {@code bytes} if that's more than it holds.
+     * Space added to a file reads as zeros.
+     *
+     * @return null if the file couldn't be mapped.
+     */
+    private static MappedByteBuffer map(File file, long bytes) {
+        RandomAccessFile raf = null;
+        try {
+            File dir = file.getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                return null;
+            }
+            raf = new RandomAccessFile(file, "rw");
+            if (raf.length() < bytes) {
+                raf.setLength(bytes);
+            }
+            // The mapping stays valid once the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        } catch (IOException ex) {
+            // @TODO: Log error
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ex) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    private static boolean isValid(ByteBuffer buffer, long fileBytes) {
+        if (fileBytes < HEADER_BYTES || buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+            return false;
+        }
+        int capacity = buffer.getInt(CAPACITY_OFFSET);
+        int size = buffer.getInt(SIZE_OFFSET);
+        return capacity >= INITIAL_CAPACITY && capacity <= MAX_CAPACITY && (capacity & (capacity - 1)) == 0
+                && fileBytes == HEADER_BYTES + (long) capacity * SLOT_BYTES
+                && size >= 0 && size < capacity;
+    }
+
+    private static int slotOffset(int index) {
+        return HEADER_BYTES + index * SLOT_BYTES;
+    }
+
+    private static int hash(int audioId) {
+        // Resource ids are dense in their low bits, spread them over the whole table
+        int h = audioId * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
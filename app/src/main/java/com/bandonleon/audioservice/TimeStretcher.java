@@ -0,0 +1,276 @@
+package com.bandonleon.audioservice;
+
+import java.util.Arrays;
+
+/**
+ * Changes the speed of interleaved 16-bit PCM without changing its pitch, using WSOLA
+ * (waveform similarity overlap-add).
+ *
+ * Output is built from Hann windowed segments of the input, overlapped by half a window.
+ * Consecutive segments are nominally taken {@code rate} hops apart in the input, but each one
+ * is moved within a small search range to where it best lines up with the input that followed
+ * the previous segment, so the overlaps add up in phase instead of smearing.
+ *
+ * All buffers are allocated by {@link #configure}, processing itself never allocates.
+ * Not thread safe.
+ */
+public class TimeStretcher {
+    public static final float MIN_RATE = 0.5f;
+    public static final float MAX_RATE = 3.0f;
+
+    private static final int WINDOW_MSEC = 24;
+    private static final int SEEK_MSEC = 8;
+    private static final int CORRELATION_STEP = 4;  // Compare every 4th frame of a candidate
+    private static final int SEARCH_STEP = 4;       // Coarse search tries every 4th candidate
+
+    private final int mChannels;
+    private final int mMaxWriteFrames;
+    private float mRate = 1.0f;
+
+    private int mSampleRate;
+    private int mWindowFrames;
+    private int mHopFrames;
+    private int mSeekFrames;
+    private float[] mWindow;
+
+    private short[] mInput;
+    private int mInputCapacityFrames;
+    private int mInputFrames;
+
+    private float[] mOverlap;
+    private short[] mOutput;
+    private int mOutputOffsetFrames;
+    private int mOutputFrames;
+
+    private double mNominalFrame;       // Where the next segment would start at exactly mRate
+    private int mPreviousStart;         // Where the last segment started, -1 before the first
+    private boolean mEnded;
+
+    /**
+     * @param maxWriteFrames Most frames that will be passed to one {@link #write}.
+     */
+    public TimeStretcher(int channels, int maxWriteFrames) {
+        mChannels = channels;
+        mMaxWriteFrames = maxWriteFrames;
+    }
+
+    /**
+     * Sizes the stretcher for {@code sampleRate} and resets it. Only allocates when the new
+     * rate needs bigger buffers than any before.
+     */
+    public void configure(int sampleRate) {
+        if (sampleRate != mSampleRate) {
+            mSampleRate = sampleRate;
+            mWindowFrames = Math.max(2, sampleRate * WINDOW_MSEC / 1000) & ~1;
+            mHopFrames = mWindowFrames / 2;
+            mSeekFrames = sampleRate * SEEK_MSEC / 1000;
+
+            if (mWindow == null || mWindow.length < mWindowFrames) {
+                mWindow = new float[mWindowFrames];
+                mOverlap = new float[mWindowFrames * mChannels];
+                mOutput = new short[mHopFrames * mChannels];
+            }
+            // Periodic Hann, copies half a window apart sum to exactly 1
+            for (int i = 0; i < mWindowFrames; ++i) {
+                mWindow[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / mWindowFrames));
+            }
+
+            // What one step at the fastest rate can need, plus one write or the end of stream padding
+            int capacityFrames = (int) Math.ceil(MAX_RATE * mHopFrames) + 3 * mSeekFrames + mWindowFrames + 2
+                    + Math.max(mMaxWriteFrames, mWindowFrames + 2 * mSeekFrames);
+            if (mInput == null || mInputCapacityFrames < capacityFrames) {
+                mInput = new short[capacityFrames * mChannels];
+                mInputCapacityFrames = capacityFrames;
+            }
+        }
+        reset();
+    }
+
+    public void setRate(float rate) {
+        mRate = Math.max(MIN_RATE, Math.min(rate, MAX_RATE));
+    }
+
+    public float getRate() {
+        return mRate;
+    }
+
+    /**
+     * Drops all buffered input and output, as after a seek.
+     */
+    public void reset() {
+        mInputFrames = 0;
+        mOutputOffsetFrames = 0;
+        mOutputFrames = 0;
+        mNominalFrame = 0;
+        mPreviousStart = -1;
+        mEnded = false;
+        if (mOverlap != null) {
+            Arrays.fill(mOverlap, 0);
+        }
+    }
+
+    /**
+     * Adds {@code frames} frames from sample {@code offset} of {@code src}, at most the
+     * {@code maxWriteFrames} given to the constructor. Only call this once {@link #read} has
+     * returned less than was asked for.
+     */
+    public void write(short[] src, int offset, int frames) {
+        System.arraycopy(src, offset, mInput, mInputFrames * mChannels, frames * mChannels);
+        mInputFrames += frames;
+    }
+
+    /**
+     * Pads the input with silence so that everything written so far comes out of {@link #read}.
+     */
+    public void endOfInput() {
+        if (mEnded) {
+            return;
+        }
+        int padFrames = mWindowFrames + 2 * mSeekFrames;
+        Arrays.fill(mInput, mInputFrames * mChannels, (mInputFrames + padFrames) * mChannels, (short) 0);
+        mInputFrames += padFrames;
+        mEnded = true;
+    }
+
+    public boolean isEnded() {
+        return mEnded;
+    }
+
+    /**
+     * @return Output frames that {@link #read} will return before the first frame of the next
+     * {@link #write} comes out: what is already stretched, plus what the buffered input makes
+     * at the current rate.
+     */
+    public int getLatencyFrames() {
+        return mOutputFrames + (int) Math.round(Math.max(0, mInputFrames - mNominalFrame) / mRate);
+    }
+
+    public long getMemoryBytes() {
+        return mWindow == null ? 0 : mWindow.length * 4 + mOverlap.length * 4 + mOutput.length * 2 + mInput.length * 2;
+    }
+
+    /**
+     * Reads up to {@code frames} frames of stretched output to sample {@code offset} of {@code dst}.
+     *
+     * @return Frames read, less than {@code frames} if more input is needed first.
+     */
+    public int read(short[] dst, int offset, int frames) {
+        int read = 0;
+        while (read < frames) {
+            if (mOutputFrames == 0) {
+                if (!canStep()) {
+                    break;
+                }
+                step();
+            }
+            int count = Math.min(frames - read, mOutputFrames);
+            System.arraycopy(mOutput, mOutputOffsetFrames * mChannels, dst, offset + read * mChannels,
+                    count * mChannels);
+            mOutputOffsetFrames += count;
+            mOutputFrames -= count;
+            read += count;
+        }
+        return read;
+    }
+
+    private boolean canStep() {
+        return mInputFrames >= (int) Math.round(mNominalFrame) + mSeekFrames + mWindowFrames;
+    }
+
+    private void step() {
+        int nominal = (int) Math.round(mNominalFrame);
+        int start = mPreviousStart < 0 ? nominal : findBestStart(nominal);
+
+        // Overlap-add the windowed segment
+        int channels = mChannels;
+        int inputIndex = start * channels;
+        for (int i = 0, sample = 0; i < mWindowFrames; ++i) {
+            float gain = mWindow[i];
+            for (int c = 0; c < channels; ++c, ++sample) {
+                mOverlap[sample] += mInput[inputIndex + sample] * gain;
+            }
+        }
+
+        // The first hop has now had both of its overlapping segments added
+        int hopSamples = mHopFrames * channels;
+        for (int i = 0; i < hopSamples; ++i) {
+            float value = mOverlap[i];
+            mOutput[i] = value >= Short.MAX_VALUE ? Short.MAX_VALUE
+                    : (value <= Short.MIN_VALUE ? Short.MIN_VALUE : (short) value);
+        }
+        System.arraycopy(mOverlap, hopSamples, mOverlap, 0, mOverlap.length - hopSamples);
+        Arrays.fill(mOverlap, mOverlap.length - hopSamples, mOverlap.length, 0);
+        mOutputOffsetFrames = 0;
+        mOutputFrames = mHopFrames;
+
+        mPreviousStart = start;
+        mNominalFrame += mHopFrames * mRate;
+
+        // Drop input no later step can reach
+        int dropFrames = Math.min(mPreviousStart, (int) mNominalFrame - mSeekFrames);
+        if (dropFrames > 0) {
+            System.arraycopy(mInput, dropFrames * channels, mInput, 0, (mInputFrames - dropFrames) * channels);
+            mInputFrames -= dropFrames;
+            mPreviousStart -= dropFrames;
+            mNominalFrame -= dropFrames;
+        }
+    }
+
+    /**
+     * @return The start within {@code nominal} +/- the seek range whose first half window looks
+     * most like the input that followed the previous segment. Every few candidates are scored
+     * first, then the ones around the best of those.
+     */
+    private int findBestStart(int nominal) {
+        int templateStart = mPreviousStart + mHopFrames;
+        int first = Math.max(0, nominal - mSeekFrames);
+        int last = nominal + mSeekFrames;
+
+        int bestStart = nominal;
+        double bestScore = -Double.MAX_VALUE;
+        for (int candidate = first; candidate <= last; candidate += SEARCH_STEP) {
+            double score = score(templateStart, candidate);
+            if (score > bestScore) {
+                bestScore = score;
+                bestStart = candidate;
+            }
+        }
+
+        int coarseStart = bestStart;
+        int fineFirst = Math.max(first, coarseStart - SEARCH_STEP + 1);
+        int fineLast = Math.min(last, coarseStart + SEARCH_STEP - 1);
+        for (int candidate = fineFirst; candidate <= fineLast; ++candidate) {
+            if (candidate == coarseStart) {
+                continue;
+            }
+            double score = score(templateStart, candidate);
+            if (score > bestScore) {
+                bestScore = score;
+                bestStart = candidate;
+            }
+        }
+        return bestStart;
+    }
+
+    /**
+     * Normalized cross-correlation of the channel sums, squared with its sign kept.
+     */
+    private double score(int templateStart, int candidate) {
+        int channels = mChannels;
+        long correlation = 0;
+        long energy = 0;
+        for (int i = 0; i < mHopFrames; i += CORRELATION_STEP) {
+            int templateSample = (templateStart + i) * channels;
+            int candidateSample = (candidate + i) * channels;
+            int templateValue = 0;
+            int candidateValue = 0;
+            for (int c = 0; c < channels; ++c) {
+                templateValue += mInput[templateSample + c];
+                candidateValue += mInput[candidateSample + c];
+            }
+            correlation += (long) templateValue * candidateValue;
+            energy += (long) candidateValue * candidateValue;
+        }
+        return energy == 0 ? 0 : (double) correlation * Math.abs(correlation) / energy;
+    }
+}
@@ -0,0 +1,259 @@
+package com.bandonleon.audioservice;
+
+import android.content.Intent;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.util.Scheduler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Feeds broadcasts straight into an AudioClientReceiver, on Robolectric's virtual clock so the
+ * position rate limit can be stepped through exactly.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class AudioClientReceiverTest {
+    private static final int SESSION = AudioController.DEFAULT_SESSION;
+    private static final int RATE_HZ = 10;
+    private static final long INTERVAL_MSEC = 1000 / RATE_HZ;
+
+    /**
+     * Records every callback as a short string, in the order they were made, and its own name
+     * in mCalls so the order across listeners can be checked too.
+     */
+    private class RecordingListener implements AudioClientReceiver.AudioListener {
+        final String mName;
+        final List<String> mEvents = new ArrayList<>();
+
+        RecordingListener(String name) {
+            mName = name;
+        }
+
+        @Override
+        public void onAudioLoaded(int session, int durationMsec) {
+            record("loaded " + session);
+        }
+
+        @Override
+        public void onAudioStarted(int session, int durationMsec) {
+            record("started " + session);
+        }
+
+        @Override
+        public void onAudioCompleted(int session) {
+            record("completed " + session);
+        }
+
+        @Override
+        public void onAudioPaused(int session) {
+            record("paused " + session);
+        }
+
+        @Override
+        public void onAudioResumed(int session, int positionMsec) {
+            record("resumed " + session);
+        }
+
+        @Override
+        public void onPositionUpdate(int session, int positionMsec, float playbackRate) {
+            record("position " + session + " " + positionMsec);
+        }
+
+        @Override
+        public void onStatusUpdate(int session, boolean isLoaded, boolean isPlaying, int durationMsec,
+                                   int positionMsec, float playbackRate) {
+            record("status " + session);
+        }
+
+        @Override
+        public void onPinFinished(int audioId, boolean pinned) {
+            record("pin " + audioId + " " + pinned);
+        }
+
+        private void record(String event) {
+            mEvents.add(event);
+            mCalls.add(mName);
+        }
+    }
+
+    private final List<String> mCalls = new ArrayList<>();
+    private Scheduler mScheduler;
+    private AudioClientReceiver mReceiver;
+    private RecordingListener mListener;
+
+    @Before
+    public void setUp() {
+        mScheduler = Robolectric.getForegroundThreadScheduler();
+        mReceiver = new AudioClientReceiver();
+        mListener = new RecordingListener("listener");
+    }
+
+    @Test
+    public void unlimitedRateDeliversEveryUpdate() {
+        mReceiver.addAudioListener(mListener, SESSION);
+        sendPosition(100);
+        sendPosition(200);
+        sendPosition(300);
+
+        assertEquals(3, mListener.mEvents.size());
+        assertEquals("position " + SESSION + " 300", mListener.mEvents.get(2));
+    }
+
+    @Test
+    public void limitedRateCoalescesToTheLatestUpdate() {
+        subscribeLimited();
+        sendPosition(100);
+        assertEquals(1, mListener.mEvents.size());
+
+        // Too soon, only the last of these is kept
+        sendPosition(200);
+        sendPosition(300);
+        mScheduler.advanceBy(INTERVAL_MSEC - 1);
+        assertEquals(1, mListener.mEvents.size());
+
+        // Delivered once the listener is due again
+        mScheduler.advanceBy(1);
+        assertEquals(2, mListener.mEvents.size());
+        assertEquals("position " + SESSION + " 300", mListener.mEvents.get(1));
+
+        // Nothing more was pending
+        mScheduler.advanceBy(INTERVAL_MSEC * 10);
+        assertEquals(2, mListener.mEvents.size());
+    }
+
+    @Test
+    public void limitedRateDeliversAtOnceWhenDue() {
+        subscribeLimited();
+        sendPosition(100);
+        mScheduler.advanceBy(INTERVAL_MSEC);
+        sendPosition(200);
+
+        assertEquals(2, mListener.mEvents.size());
+        assertEquals("position " + SESSION + " 200", mListener.mEvents.get(1));
+    }
+
+    @Test
+    public void otherEventsFlushThePendingPositionFirst() {
+        subscribeLimited();
+        sendPosition(100);
+        sendPosition(200);
+        send(AudioClientReceiver.getActionIntent(SESSION, AudioClientReceiver.Action.PAUSED));
+
+        assertEquals(3, mListener.mEvents.size());
+        assertEquals("position " + SESSION + " 200", mListener.mEvents.get(1));
+        assertEquals("paused " + SESSION, mListener.mEvents.get(2));
+
+        // The flushed position isn't delivered a second time
+        mScheduler.advanceBy(INTERVAL_MSEC);
+        assertEquals(3, mListener.mEvents.size());
+    }
+
+    @Test
+    public void unsubscribeDropsThePendingPosition() {
+        subscribeLimited();
+        sendPosition(100);
+        sendPosition(200);
+        mReceiver.unsubscribe(mListener, SESSION);
+        mScheduler.advanceBy(INTERVAL_MSEC);
+
+        assertEquals(1, mListener.mEvents.size());
+    }
+
+    @Test
+    public void sessionListenersAreCalledInSubscriptionOrder() {
+        RecordingListener first = new RecordingListener("first");
+        RecordingListener second = new RecordingListener("second");
+        RecordingListener other = new RecordingListener("other");
+        RecordingListener third = new RecordingListener("third");
+        mReceiver.addAudioListener(first, SESSION);
+        mReceiver.addAudioListener(second, SESSION);
+        mReceiver.addAudioListener(other, SESSION + 1);
+        mReceiver.addAudioListener(third, SESSION);
+
+        send(AudioClientReceiver.getActionIntent(SESSION, AudioClientReceiver.Action.PAUSED));
+        assertEquals(Arrays.asList("first", "second", "third"), mCalls);
+
+        // Subscribing again keeps the listener's place
+        mCalls.clear();
+        mReceiver.subscribe(second, SESSION, EnumSet.of(AudioClientReceiver.Event.PAUSED), RATE_HZ);
+        send(AudioClientReceiver.getActionIntent(SESSION, AudioClientReceiver.Action.PAUSED));
+        assertEquals(Arrays.asList("first", "second", "third"), mCalls);
+    }
+
+    @Test
+    public void batchedPositionUpdateReachesEachSession() {
+        RecordingListener first = new RecordingListener("first");
+        RecordingListener second = new RecordingListener("second");
+        RecordingListener idle = new RecordingListener("idle");
+        mReceiver.addAudioListener(first, SESSION);
+        mReceiver.addAudioListener(second, SESSION + 1);
+        mReceiver.addAudioListener(idle, SESSION + 2);
+
+        int[] sessions = { SESSION + 1, SESSION, SESSION + 3 };
+        int[] positions = { 200, 100, 300 };
+        float[] rates = { 1.0f, 1.0f, 1.0f };
+        // Only the first two are part of this tick
+        send(AudioClientReceiver.getPositionUpdateIntent(sessions, positions, rates, 2));
+
+        assertEquals(Arrays.asList("position " + SESSION + " 100"), first.mEvents);
+        assertEquals(Arrays.asList("position " + (SESSION + 1) + " 200"), second.mEvents);
+        assertEquals(0, idle.mEvents.size());
+    }
+
+    @Test
+    public void unsubscribeRemovesListenerFromEverySession() {
+        RecordingListener other = new RecordingListener("other");
+        mReceiver.addAudioListener(mListener, SESSION);
+        mReceiver.addAudioListener(other, SESSION);
+        mReceiver.addAudioListener(mListener, SESSION + 1);
+        assertEquals(3, mReceiver.getAudioListenerCount());
+
+        mReceiver.unsubscribe(mListener);
+        assertEquals(1, mReceiver.getAudioListenerCount());
+        send(AudioClientReceiver.getActionIntent(SESSION, AudioClientReceiver.Action.PAUSED));
+        send(AudioClientReceiver.getActionIntent(SESSION + 1, AudioClientReceiver.Action.PAUSED));
+
+        assertEquals(0, mListener.mEvents.size());
+        assertEquals(Arrays.asList("paused " + SESSION), other.mEvents);
+    }
+
+    @Test
+    public void pinFinishedReachesEachListenerOnce() {
+        RecordingListener other = new RecordingListener("other");
+        RecordingListener uninterested = new RecordingListener("uninterested");
+        mReceiver.addAudioListener(mListener, SESSION);
+        mReceiver.addAudioListener(mListener, SESSION + 1);
+        mReceiver.addAudioListener(other, SESSION + 1);
+        mReceiver.subscribe(uninterested, SESSION, EnumSet.of(AudioClientReceiver.Event.PAUSED), RATE_HZ);
+
+        send(AudioClientReceiver.getPinFinishedIntent(42, true));
+
+        assertEquals(Arrays.asList("pin 42 true"), mListener.mEvents);
+        assertEquals(Arrays.asList("pin 42 true"), other.mEvents);
+        assertEquals(0, uninterested.mEvents.size());
+    }
+
+    private void subscribeLimited() {
+        mReceiver.subscribe(mListener, SESSION, EnumSet.allOf(AudioClientReceiver.Event.class), RATE_HZ);
+    }
+
+    private void sendPosition(int positionMsec) {
+        send(AudioClientReceiver.getPositionUpdateIntent(SESSION, positionMsec, 1.0f));
+    }
+
+    private void send(Intent intent) {
+        mReceiver.onReceive(RuntimeEnvironment.application, intent);
+    }
+}
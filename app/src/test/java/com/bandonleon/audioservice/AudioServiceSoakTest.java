@@ -0,0 +1,470 @@
+package com.bandonleon.audioservice;
+
+import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.support.v4.content.LocalBroadcastManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.util.Scheduler;
+import org.robolectric.util.ServiceController;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives AudioService through a long session on Robolectric's virtual clock, with a
+ * FakeAudioPlayer in place of the real engine and several clients issuing a seeded random
+ * stream of commands, a second session coming and going, and bind/unbind churn.
+ *
+ * Prints main thread CPU time, allocations, broadcasts and notifications per simulated
+ * minute, then checks that progress alone sends at most one notification a second, that the
+ * position tick stops with playback once every client has left, and that nothing (players, descriptors, receivers, runnables) outlives the service. The session length defaults to an hour, pass -Dsoak.minutes=N for longer runs.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class AudioServiceSoakTest {
+    private static final long SEED = 20151207L;
+    private static final int DEFAULT_SOAK_MINUTES = 60;
+    private static final int CLIENT_COUNT = 3;
+    private static final int COMMANDS_PER_MINUTE = 8;
+    private static final long MINUTE_MSEC = 60 * 1000;
+    private static final String TRACK_TITLE = "Soak track";
+    private static final long DEEP_BUFFER_SAVE_INTERVAL_MSEC = 10 * 1000;    // As AudioService
+    private static final int CROSSFADE_MSEC = 3000;
+
+    public static class SoakAudioService extends AudioService {
+        private final List<FakeAudioPlayer> mPlayers = new ArrayList<>();
+        private File mTrackFile;
+        private int mOpenedDescriptors;
+
+        @Override
+        protected AudioPlayer createAudioPlayer(PlaybackStats stats) {
+            FakeAudioPlayer player = new FakeAudioPlayer(SEED + mPlayers.size(), stats);
+            mPlayers.add(player);
+            return player;
+        }
+
+        @Override
+        protected AssetFileDescriptor openAudio(int audioResId) {
+            try {
+                ParcelFileDescriptor fd = ParcelFileDescriptor.open(mTrackFile, ParcelFileDescriptor.MODE_READ_ONLY);
+                ++mOpenedDescriptors;
+                return new AssetFileDescriptor(fd, 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+            } catch (FileNotFoundException ex) {
+                throw new AssertionError(ex);
+            }
+        }
+    }
+
+    private class SimulatedClient implements AudioClientReceiver.AudioListener, AudioService.ServiceListener {
+        final AudioClientReceiver mReceiver = new AudioClientReceiver();
+        final AudioService.AudioServiceConnection mConnection = new AudioService.AudioServiceConnection(this);
+        AudioLocalController mController;
+        boolean mBound;
+        boolean mIsLoaded;
+        boolean mIsPlaying;
+
+        SimulatedClient() {
+            mReceiver.addAudioListener(this, AudioController.DEFAULT_SESSION);
+        }
+
+        @Override
+        public void onAudioLoaded(int session, int durationMsec) {
+            mIsLoaded = true;
+            mIsPlaying = false;
+        }
+
+        @Override
+        public void onAudioStarted(int session, int durationMsec) {
+            mIsLoaded = true;
+            mIsPlaying = true;
+        }
+
+        @Override
+        public void onAudioCompleted(int session) {
+            mIsPlaying = false;
+        }
+
+        @Override
+        public void onAudioPaused(int session) {
+            mIsPlaying = false;
+        }
+
+        @Override
+        public void onAudioResumed(int session, int positionMsec) {
+            mIsPlaying = true;
+        }
+
+        @Override
+        public void onPositionUpdate(int session, int positionMsec, float playbackRate) {
+        }
+
+        @Override
+        public void onStatusUpdate(int session, boolean isLoaded, boolean isPlaying, int durationMsec,
+                                   int positionMsec, float playbackRate) {
+            mIsLoaded = isLoaded;
+            mIsPlaying = isPlaying;
+        }
+
+        @Override
+        public void onPinFinished(int audioId, boolean pinned) {
+        }
+
+        @Override
+        public void audioServiceBound(AudioLocalController controller) {
+            // Same as MainActivity
+            mController = controller;
+            mController.stopForegroundService(true);
+            mController.requestStatus(AudioController.DEFAULT_SESSION);
+        }
+
+        @Override
+        public void audioServiceUnbound() {
+            mController = null;
+        }
+    }
+
+    private final Random mRandom = new Random(SEED);
+    private final List<SimulatedClient> mClients = new ArrayList<>();
+
+    private Scheduler mScheduler;
+    private Handler mMainHandler;
+    private LocalBroadcastManager mBroadcastManager;
+    private ServiceController<SoakAudioService> mServiceController;
+    private SoakAudioService mService;
+    private AudioService.LocalBinder mBinder;
+    private File mTrackFile;
+    private int mBoundClients;
+    private int mPeakUnbindListeners;
+    private int mCommandsIssued;
+    private int mExtraSession;
+
+    @Before
+    public void setUp() throws IOException {
+        mScheduler = Robolectric.getForegroundThreadScheduler();
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mBroadcastManager = LocalBroadcastManager.getInstance(RuntimeEnvironment.application);
+
+        mTrackFile = File.createTempFile("soak", ".mp3");
+        mServiceController = Robolectric.buildService(SoakAudioService.class).create();
+        mService = mServiceController.get();
+        mService.mTrackFile = mTrackFile;
+
+        for (int i = 0; i < CLIENT_COUNT; ++i) {
+            mClients.add(new SimulatedClient());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mTrackFile.delete();
+    }
+
+    @Test
+    public void soak() {
+        int minutes = Integer.getInteger("soak.minutes", DEFAULT_SOAK_MINUTES);
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        PlaybackStats stats = mService.getPlaybackStats(AudioController.DEFAULT_SESSION);
+
+        long totalCpuNanos = 0;
+        long maxCpuNanos = 0;
+        long totalAllocatedBytes = 0;
+        long maxAllocatedBytes = 0;
+        long maxBroadcasts = 0;
+        long maxNotifications = 0;
+
+        for (int minute = 0; minute < minutes; ++minute) {
+            scheduleCommands();
+
+            long broadcastsBefore = stats.getBroadcasts();
+            long notificationsBefore = stats.getNotifications();
+            long allocatedBefore = getAllocatedBytes(threadBean);
+            long cpuBefore = threadBean.getCurrentThreadCpuTime();
+
+            mScheduler.advanceBy(MINUTE_MSEC);
+
+            long cpuNanos = threadBean.getCurrentThreadCpuTime() - cpuBefore;
+            long allocatedBytes = getAllocatedBytes(threadBean) - allocatedBefore;
+            totalCpuNanos += cpuNanos;
+            maxCpuNanos = Math.max(maxCpuNanos, cpuNanos);
+            totalAllocatedBytes += allocatedBytes;
+            maxAllocatedBytes = Math.max(maxAllocatedBytes, allocatedBytes);
+            maxBroadcasts = Math.max(maxBroadcasts, stats.getBroadcasts() - broadcastsBefore);
+            maxNotifications = Math.max(maxNotifications, stats.getNotifications() - notificationsBefore);
+        }
+
+        // Everyone leaves and playback stops, after which nothing should be ticking
+        for (SimulatedClient client : mClients) {
+            if (client.mBound) {
+                unbind(client);
+            }
+        }
+        mScheduler.advanceBy(MINUTE_MSEC);
+        mService.pauseAudio(AudioController.DEFAULT_SESSION);
+        if (mExtraSession != 0) {
+            mService.closeSession(mExtraSession);
+            mExtraSession = 0;
+        }
+        long ticksWhenStopped = stats.getPositionTicks();
+        mScheduler.advanceBy(MINUTE_MSEC);
+        long ticksAfterStop = stats.getPositionTicks() - ticksWhenStopped;
+
+        // Then the service goes away
+        mServiceController.destroy();
+        mScheduler.advanceBy(MINUTE_MSEC);
+
+        int releasedPlayers = 0;
+        int closedDescriptors = 0;
+        for (FakeAudioPlayer player : mService.mPlayers) {
+            releasedPlayers += player.isReleased() ? 1 : 0;
+            closedDescriptors += player.getClosedDescriptorCount();
+        }
+
+        System.out.println(String.format("Soak: %d simulated minutes, %d clients, %d commands, seed %d",
+                minutes, CLIENT_COUNT, mCommandsIssued, SEED));
+        System.out.println(String.format("  main thread cpu/min:  avg %.2f ms, max %.2f ms",
+                totalCpuNanos / 1e6 / minutes, maxCpuNanos / 1e6));
+        System.out.println(String.format("  allocations/min:      avg %.1f KB, max %.1f KB",
+                totalAllocatedBytes / 1024.0 / minutes, maxAllocatedBytes / 1024.0));
+        System.out.println(String.format("  broadcasts/min:       avg %.1f, max %d",
+                (double) stats.getBroadcasts() / minutes, maxBroadcasts));
+        System.out.println(String.format("  notifications/min:    avg %.1f, max %d",
+                (double) stats.getNotifications() / minutes, maxNotifications));
+        System.out.println(String.format("  players released:     %d/%d", releasedPlayers, mService.mPlayers.size()));
+        System.out.println(String.format("  descriptors closed:   %d/%d", closedDescriptors, mService.mOpenedDescriptors));
+        System.out.println(String.format("  unbind listeners:     peak %d, left %d",
+                mPeakUnbindListeners, mBinder != null ? mBinder.getUnbindListenerCount() : 0));
+        System.out.println(String.format("  ticks after stop:     %d", ticksAfterStop));
+        System.out.println(String.format("  pending runnables:    %d", mScheduler.size()));
+
+        // A notification a second for progress, and a few more for what each command changes
+        assertTrue("Progress notifications not throttled",
+                maxNotifications <= MINUTE_MSEC / 1000 + COMMANDS_PER_MINUTE * 4);
+        assertEquals("Leaked players", mService.mPlayers.size(), releasedPlayers);
+        assertEquals("Leaked file descriptors", mService.mOpenedDescriptors, closedDescriptors);
+        assertTrue("Unbind listeners accumulate", mPeakUnbindListeners <= CLIENT_COUNT);
+        if (mBinder != null) {
+            assertEquals("Leaked unbind listeners", 0, mBinder.getUnbindListenerCount());
+        }
+        assertEquals("Position tick outlived playback", 0, ticksAfterStop);
+        ShadowApplication application = ShadowApplication.getInstance();
+        assertFalse("Leaked service receiver", application.hasReceiverForIntent(
+                AudioServiceReceiver.getActionIntent(AudioController.DEFAULT_SESSION, AudioServiceReceiver.Action.PAUSE)));
+        assertFalse("Leaked screen receiver", application.hasReceiverForIntent(new Intent(Intent.ACTION_SCREEN_OFF)));
+        assertEquals("Runnables outlived the service", 0, mScheduler.size());
+    }
+
+    /**
+     * The player's prepared callback arrives after the session is closed, which mustn't bring
+     * the session back into the position tick.
+     */
+    @Test
+    public void closingSessionBeforePreparedStopsIt() {
+        PlaybackStats stats = mService.getPlaybackStats(AudioController.DEFAULT_SESSION);
+        int session = mService.openSession();
+        mService.playAudio(session, R.raw.nocturne_op9_no1);
+        mService.closeSession(session);
+        mScheduler.advanceBy(MINUTE_MSEC);
+
+        long ticks = stats.getPositionTicks();
+        mScheduler.advanceBy(MINUTE_MSEC);
+        assertEquals("Closed session kept ticking", ticks, stats.getPositionTicks());
+
+        mServiceController.destroy();
+        mScheduler.advanceBy(MINUTE_MSEC);
+        assertEquals("Runnables outlived the service", 0, mScheduler.size());
+    }
+
+    /**
+     * With the screen off the position tick stops broadcasting, but the resume position is still
+     * saved often enough that a killed process picks up close to where it was.
+     */
+    @Test
+    public void deepBufferedPlaybackKeepsSavingResumePosition() {
+        mService.playAudio(AudioController.DEFAULT_SESSION, R.raw.nocturne_op9_no1);
+        mScheduler.advanceBy(1000);
+        mService.startForegroundService(TRACK_TITLE);
+        RuntimeEnvironment.application.sendBroadcast(new Intent(Intent.ACTION_SCREEN_OFF));
+        mScheduler.advanceBy(MINUTE_MSEC / 2);
+
+        // What the next process would find
+        ResumeIndex index = new ResumeIndex(new File(RuntimeEnvironment.application.getFilesDir(), "resume.idx"));
+        int savedMsec = index.getPositionMsec(R.raw.nocturne_op9_no1);
+        int positionMsec = mService.mPlayers.get(0).getCurrentPosition();
+        assertTrue("Resume position not saved with the screen off, " + savedMsec + " at " + positionMsec,
+                savedMsec > 1000 && positionMsec - savedMsec <= DEEP_BUFFER_SAVE_INTERVAL_MSEC);
+
+        mServiceController.destroy();
+    }
+
+    /**
+     * A track queued with a crossfade set takes over that long before the end of the current
+     * one, instead of the current one completing.
+     */
+    @Test
+    public void queuedTrackCrossfadesIn() {
+        PlaybackStats stats = mService.getPlaybackStats(AudioController.DEFAULT_SESSION);
+        mService.playAudio(AudioController.DEFAULT_SESSION, R.raw.nocturne_op9_no1);
+        mScheduler.advanceBy(1000);
+        mService.setCrossfadeDuration(AudioController.DEFAULT_SESSION, CROSSFADE_MSEC);
+        mService.queueNextAudio(AudioController.DEFAULT_SESSION, R.raw.nocturne_op9_no1);
+
+        FakeAudioPlayer player = mService.mPlayers.get(0);
+        long fadeStartMsec = player.getDuration() - player.getCurrentPosition() - CROSSFADE_MSEC;
+        mScheduler.advanceBy(fadeStartMsec - 100);
+        assertEquals("Crossfaded early", 0, stats.getCrossfades());
+
+        mScheduler.advanceBy(200);
+        assertEquals("Queued track didn't crossfade in", 1, stats.getCrossfades());
+        assertTrue("Playback completed instead", player.isPlaying());
+        assertTrue(player.getCurrentPosition() < CROSSFADE_MSEC);
+
+        mServiceController.destroy();
+    }
+
+    private void scheduleCommands() {
+        for (int i = 0; i < COMMANDS_PER_MINUTE; ++i) {
+            final SimulatedClient client = mClients.get(mRandom.nextInt(mClients.size()));
+            final int command = mRandom.nextInt(11);
+            final int seekFraction = mRandom.nextInt(100);
+            mMainHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    issueCommand(client, command, seekFraction);
+                }
+            }, mRandom.nextInt((int) MINUTE_MSEC));
+        }
+    }
+
+    private void issueCommand(SimulatedClient client, int command, int seekFraction) {
+        ++mCommandsIssued;
+        if (!client.mBound) {
+            bind(client);
+            return;
+        }
+        AudioLocalController controller = client.mController;
+        if (controller == null) {
+            return;
+        }
+
+        switch (command) {
+            case 0:
+                controller.playAudio(AudioController.DEFAULT_SESSION, R.raw.nocturne_op9_no1);
+                break;
+
+            case 1:
+                controller.pauseAudio(AudioController.DEFAULT_SESSION);
+                break;
+
+            case 2:
+                if (client.mIsLoaded) {
+                    controller.resumeAudio(AudioController.DEFAULT_SESSION);
+                }
+                break;
+
+            case 3:
+                if (client.mIsLoaded) {
+                    controller.seekAudio(AudioController.DEFAULT_SESSION, seekFraction * 1000);
+                }
+                break;
+
+            case 4:
+                if (client.mIsLoaded) {
+                    controller.rewindAudio15Sec(AudioController.DEFAULT_SESSION);
+                }
+                break;
+
+            case 5:
+                controller.requestStatus(AudioController.DEFAULT_SESSION);
+                break;
+
+            case 6:
+                controller.queueNextAudio(AudioController.DEFAULT_SESSION, R.raw.nocturne_op9_no1);
+                break;
+
+            case 7:
+                controller.applyTransaction(AudioController.DEFAULT_SESSION, new AudioTransaction.Builder()
+                        .setAudio(R.raw.nocturne_op9_no1)
+                        .setPosition(seekFraction * 1000)
+                        .setPlaying(seekFraction % 2 == 0)
+                        .build());
+                break;
+
+            case 8:
+                controller.setPlaybackRate(AudioController.DEFAULT_SESSION, 0.5f + seekFraction * 2.5f / 100);
+                break;
+
+            case 9:
+                // A second session playing alongside the first, opened and closed by anyone
+                if (mExtraSession == 0) {
+                    mExtraSession = controller.openSession();
+                    controller.playAudio(mExtraSession, R.raw.nocturne_op9_no1);
+                } else {
+                    controller.closeSession(mExtraSession);
+                    mExtraSession = 0;
+                }
+                break;
+
+            default:
+                unbind(client);
+                break;
+        }
+    }
+
+    /**
+     * Plays the system's part of bindService(): onBind only for the first client.
+     */
+    private void bind(SimulatedClient client) {
+        mBroadcastManager.registerReceiver(client.mReceiver, AudioClientReceiver.getAudioReceiverFilter());
+        if (mBoundClients++ == 0) {
+            mBinder = (AudioService.LocalBinder) mService.onBind(new Intent(RuntimeEnvironment.application, SoakAudioService.class));
+        }
+        client.mBound = true;
+        client.mConnection.onServiceConnected(null, mBinder);
+        mPeakUnbindListeners = Math.max(mPeakUnbindListeners, mBinder.getUnbindListenerCount());
+    }
+
+    /**
+     * Plays MainActivity.onPause() followed by the system's part of unbindService():
+     * onUnbind only once the last client is gone.
+     */
+    private void unbind(SimulatedClient client) {
+        mBroadcastManager.unregisterReceiver(client.mReceiver);
+        if (client.mController != null && client.mController.isAudioPlaying()) {
+            client.mController.startForegroundService(TRACK_TITLE);
+        }
+        client.mBound = false;
+        client.mController = null;
+        if (--mBoundClients == 0) {
+            mService.onUnbind(new Intent(RuntimeEnvironment.application, SoakAudioService.class));
+        }
+    }
+
+    private static long getAllocatedBytes(ThreadMXBean threadBean) {
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,280 @@
+package com.bandonleon.audioservice;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs ChunkedDownloader against a local HTTP server that serves byte ranges of an in-memory
+ * file, and prints the throughput of each download.
+ */
+public class ChunkedDownloaderTest {
+    private static final int FILE_BYTES = 8 * 1024 * 1024 + 12345;  // Not a whole number of chunks
+    private static final int CHUNK_BYTES = 256 * 1024;
+    private static final int CHUNK_COUNT = (FILE_BYTES + CHUNK_BYTES - 1) / CHUNK_BYTES;
+    private static final int THREADS = 4;
+
+    /**
+     * Serves HEAD and ranged GETs of one file. After {@code mFailAfter} range requests every
+     * further one gets a 503, standing in for the network (or the process) going away.
+     */
+    private static class RangeHandler implements HttpHandler {
+        final byte[] mData;
+        final AtomicInteger mRangeRequests = new AtomicInteger();
+        volatile int mFailAfter = Integer.MAX_VALUE;
+
+        RangeHandler(byte[] data) {
+            mData = data;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Content-Length", Integer.toString(mData.length));
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
+
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            int start = 0;
+            int end = mData.length;
+            if (range != null) {
+                if (mRangeRequests.incrementAndGet() > mFailAfter) {
+                    exchange.sendResponseHeaders(503, -1);
+                    exchange.close();
+                    return;
+                }
+                String[] bounds = range.substring("bytes=".length()).split("-");
+                start = Integer.parseInt(bounds[0]);
+                end = Integer.parseInt(bounds[1]) + 1;
+            }
+
+            exchange.sendResponseHeaders(range != null ? 206 : 200, end - start);
+            OutputStream output = exchange.getResponseBody();
+            output.write(mData, start, end - start);
+            output.close();
+        }
+    }
+
+    private HttpServer mServer;
+    private ExecutorService mServerExecutor;
+    private RangeHandler mHandler;
+    private byte[] mData;
+    private String mSha256;
+    private String mUrl;
+    private File mDir;
+    private File mTarget;
+
+    @Before
+    public void setUp() throws Exception {
+        mData = new byte[FILE_BYTES];
+        new Random(42).nextBytes(mData);
+        mSha256 = sha256(mData);
+
+        mHandler = new RangeHandler(mData);
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/track", mHandler);
+        mServerExecutor = Executors.newFixedThreadPool(THREADS);
+        mServer.setExecutor(mServerExecutor);
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/track";
+
+        mDir = File.createTempFile("offline", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+        mTarget = new File(mDir, "1.audio");
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        mServerExecutor.shutdown();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void downloadsAllChunksAndVerifies() throws Exception {
+        ChunkedDownloader downloader = new ChunkedDownloader(THREADS, CHUNK_BYTES);
+        ChunkedDownloader.Result result = downloader.download(mUrl, mSha256, mTarget);
+        downloader.shutdown();
+        System.out.println("Download: " + result);
+
+        assertArrayEquals(mData, readFile(mTarget));
+        assertEquals(CHUNK_COUNT, result.getFetchedChunks());
+        assertEquals(CHUNK_COUNT, mHandler.mRangeRequests.get());
+        assertEquals(FILE_BYTES, result.getFetchedBytes());
+        assertFalse(ChunkedDownloader.isPending(mTarget));
+        assertEquals(1, mDir.listFiles().length);
+    }
+
+    @Test
+    public void resumesFromChunkBitmap() throws Exception {
+        int firstAttemptChunks = CHUNK_COUNT / 3;
+        mHandler.mFailAfter = firstAttemptChunks;
+        ChunkedDownloader first = new ChunkedDownloader(THREADS, CHUNK_BYTES);
+        try {
+            first.download(mUrl, mSha256, mTarget);
+            fail("Expected the first attempt to fail");
+        } catch (IOException ex) {
+            // Expected
+        }
+        first.shutdown();
+        assertTrue(ChunkedDownloader.isPending(mTarget));
+        assertFalse(mTarget.exists());
+
+        // A new downloader knows nothing but what is on disk, as after a restart
+        mHandler.mFailAfter = Integer.MAX_VALUE;
+        ChunkedDownloader second = new ChunkedDownloader(THREADS, CHUNK_BYTES);
+        ChunkedDownloader.Result result = second.resume(mTarget);
+        second.shutdown();
+        System.out.println("Resumed download: " + result);
+
+        // Chunks still in flight when the first attempt failed were dropped, the rest were kept
+        assertArrayEquals(mData, readFile(mTarget));
+        assertTrue(result.getFetchedChunks() >= CHUNK_COUNT - firstAttemptChunks);
+        assertTrue(result.getFetchedChunks() < CHUNK_COUNT);
+        assertFalse(ChunkedDownloader.isPending(mTarget));
+    }
+
+    @Test
+    public void discardsChecksumMismatch() throws Exception {
+        char[] wrong = mSha256.toCharArray();
+        wrong[0] = wrong[0] == '0' ? '1' : '0';
+
+        ChunkedDownloader downloader = new ChunkedDownloader(THREADS, CHUNK_BYTES);
+        try {
+            downloader.download(mUrl, new String(wrong), mTarget);
+            fail("Expected a checksum mismatch");
+        } catch (IOException ex) {
+            // Expected
+        } finally {
+            downloader.shutdown();
+        }
+
+        assertFalse(mTarget.exists());
+        assertFalse(ChunkedDownloader.isPending(mTarget));
+        assertEquals(0, mDir.listFiles().length);
+    }
+
+    @Test
+    public void startsOverFromCorruptState() throws Exception {
+        // Zero chunk size, negative length, and a length whose bitmap isn't in the file
+        long[][] headers = { { FILE_BYTES, 0 }, { -1, CHUNK_BYTES }, { Long.MAX_VALUE / 2, 1 } };
+        for (long[] header : headers) {
+            writeState(header[0], (int) header[1]);
+            ChunkedDownloader downloader = new ChunkedDownloader(THREADS, CHUNK_BYTES);
+            try {
+                downloader.resume(mTarget);
+                fail("Expected nothing to resume");
+            } catch (IOException ex) {
+                // Expected
+            }
+
+            ChunkedDownloader.Result result = downloader.download(mUrl, mSha256, mTarget);
+            downloader.shutdown();
+            assertArrayEquals(mData, readFile(mTarget));
+            assertEquals(CHUNK_COUNT, result.getFetchedChunks());
+            ChunkedDownloader.delete(mTarget);
+        }
+    }
+
+    @Test
+    public void resumeDropsUnreadableState() throws Exception {
+        writeState(FILE_BYTES, CHUNK_BYTES);
+        // Cut off in the middle of the header
+        RandomAccessFile state = new RandomAccessFile(mTarget.getPath() + ".state", "rw");
+        state.setLength(6);
+        state.close();
+
+        ChunkedDownloader downloader = new ChunkedDownloader(THREADS, CHUNK_BYTES);
+        try {
+            downloader.resume(mTarget);
+            fail("Expected nothing to resume");
+        } catch (IOException ex) {
+            // Expected
+        } finally {
+            downloader.shutdown();
+        }
+        assertFalse(ChunkedDownloader.isPending(mTarget));
+        assertFalse(new File(mTarget.getPath() + ".part").exists());
+    }
+
+    @Test
+    public void failsAfterShutdown() throws Exception {
+        ChunkedDownloader downloader = new ChunkedDownloader(THREADS, CHUNK_BYTES);
+        downloader.shutdown();
+        try {
+            downloader.download(mUrl, mSha256, mTarget);
+            fail("Expected the download to fail");
+        } catch (IOException ex) {
+            // Expected
+        }
+        assertFalse(mTarget.exists());
+    }
+
+    /**
+     * Writes download state for mTarget with the given header, as ChunkState lays it out.
+     */
+    private void writeState(long length, int chunkBytes) throws IOException {
+        new File(mTarget.getPath() + ".part").createNewFile();
+        RandomAccessFile state = new RandomAccessFile(mTarget.getPath() + ".state", "rw");
+        try {
+            state.setLength(0);
+            state.writeInt(0x43484b31);
+            state.writeLong(length);
+            state.writeInt(chunkBytes);
+            state.writeUTF(mUrl);
+            state.writeUTF(mSha256);
+            state.write(new byte[8]);
+        } finally {
+            state.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) input.length()];
+            input.readFully(data);
+            return data;
+        } finally {
+            input.close();
+        }
+    }
+
+    private static String sha256(byte[] data) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,88 @@
+package com.bandonleon.audioservice;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CrossfaderTest {
+    private static final int CHANNELS = 2;
+    private static final int FADE_FRAMES = 4800;
+    private static final short LEVEL = 10000;
+
+    @Test
+    public void gainsKeepPowerConstant() {
+        float[] gainsOut = gains(true);
+        float[] gainsIn = gains(false);
+
+        for (int i = 0; i < FADE_FRAMES; ++i) {
+            double power = gainsOut[i] * gainsOut[i] + gainsIn[i] * gainsIn[i];
+            assertEquals("Frame " + i, 1.0, power, 0.01);
+        }
+        assertEquals(1.0, gainsOut[0], 0.001);
+        assertEquals(0.0, gainsIn[0], 0.001);
+        // Halfway both streams are at -3 dB
+        assertEquals(Math.sqrt(0.5), gainsOut[FADE_FRAMES / 2], 0.01);
+        assertEquals(Math.sqrt(0.5), gainsIn[FADE_FRAMES / 2], 0.01);
+    }
+
+    @Test
+    public void endsOnTheIncomingStream() {
+        Crossfader crossfader = new Crossfader(CHANNELS);
+        crossfader.start(FADE_FRAMES);
+        short[] outgoing = constant(LEVEL, FADE_FRAMES);
+        short[] incoming = constant((short) -LEVEL, FADE_FRAMES);
+        short[] dst = new short[FADE_FRAMES * CHANNELS];
+
+        crossfader.mix(outgoing, incoming, dst, FADE_FRAMES - 1);
+        assertTrue(crossfader.isActive());
+        crossfader.mix(outgoing, incoming, dst, 1);
+        assertFalse(crossfader.isActive());
+
+        // Past the end the outgoing stream is gone entirely
+        crossfader.mix(outgoing, incoming, dst, FADE_FRAMES);
+        for (short sample : dst) {
+            assertEquals(-LEVEL, sample);
+        }
+    }
+
+    @Test
+    public void cancelEndsTheFade() {
+        Crossfader crossfader = new Crossfader(CHANNELS);
+        crossfader.start(FADE_FRAMES);
+        crossfader.cancel();
+        assertFalse(crossfader.isActive());
+    }
+
+    /**
+     * @return Per frame gain of one stream across a whole fade, with the other stream silent.
+     */
+    private static float[] gains(boolean outgoingStream) {
+        Crossfader crossfader = new Crossfader(CHANNELS);
+        crossfader.start(FADE_FRAMES);
+        short[] signal = constant(LEVEL, FADE_FRAMES);
+        short[] silence = new short[FADE_FRAMES * CHANNELS];
+        short[] dst = new short[FADE_FRAMES * CHANNELS];
+        if (outgoingStream) {
+            crossfader.mix(signal, silence, dst, FADE_FRAMES);
+        } else {
+            crossfader.mix(silence, signal, dst, FADE_FRAMES);
+        }
+
+        float[] gains = new float[FADE_FRAMES];
+        for (int i = 0; i < FADE_FRAMES; ++i) {
+            assertEquals(dst[i * CHANNELS], dst[i * CHANNELS + 1]);
+            gains[i] = (float) dst[i * CHANNELS] / LEVEL;
+        }
+        return gains;
+    }
+
+    private static short[] constant(short value, int frames) {
+        short[] pcm = new short[frames * CHANNELS];
+        Arrays.fill(pcm, value);
+        return pcm;
+    }
+}
@@ -0,0 +1,285 @@
+package com.bandonleon.audioservice;
+
+import android.content.res.AssetFileDescriptor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * AudioPlayer that plays nothing. Position advances with SystemClock.uptimeMillis(), scaled
+ * by the playback rate, and callbacks are posted to the main looper, so under Robolectric the
+ * whole player runs on the scheduler's virtual clock.
+ *
+ * Like AudioEngine, a queued track takes over the crossfade duration before the end of the
+ * current one and counts a crossfade in the player's stats, or right at the end without one.
+ */
+public class FakeAudioPlayer implements AudioPlayer {
+    private static final int PREPARE_DELAY_MSEC = 40;
+    private static final int MIN_DURATION_MSEC = 60 * 1000;
+    private static final int MAX_DURATION_MSEC = 8 * 60 * 1000;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Random mRandom;
+    private final PlaybackStats mStats;
+
+    private OnPreparedListener mPreparedListener;
+    private OnCompletionListener mCompletionListener;
+    private OnErrorListener mErrorListener;
+    private OnTrackChangedListener mTrackChangedListener;
+
+    private boolean mHasSource;
+    private boolean mHasNextSource;
+    private boolean mPrepared;
+    private boolean mPlaying;
+    private boolean mCompleted;
+    private boolean mReleased;
+    private int mStartPositionMsec;
+    private boolean mStartWhenPrepared;
+    private int mDurationMsec;
+    private int mPositionMsec;      // Position at mStartUptimeMsec while playing
+    private float mRate = 1.0f;
+    private int mCrossfadeMsec;
+    private long mStartUptimeMsec;
+    private int mClosedDescriptors;
+
+    private final Runnable mPrepare = new Runnable() {
+        @Override
+        public void run() {
+            if (!mReleased) {
+                mPrepared = true;
+                mCompleted = false;
+                mDurationMsec = randomDuration();
+                mPositionMsec = Math.min(mStartPositionMsec, mDurationMsec);
+                if (mStartWhenPrepared) {
+                    start();
+                }
+            }
+            // Still called after release, as a real player's callback can already be on its way
+            if (mPreparedListener != null) {
+                mPreparedListener.onPrepared(FakeAudioPlayer.this);
+            }
+        }
+    };
+
+    private final Runnable mEndOfTrack = new Runnable() {
+        @Override
+        public void run() {
+            if (mHasNextSource) {
+                if (mCrossfadeMsec > 0) {
+                    ++mStats.mCrossfades;
+                }
+                mHasNextSource = false;
+                mDurationMsec = randomDuration();
+                mPositionMsec = 0;
+                mStartUptimeMsec = SystemClock.uptimeMillis();
+                scheduleEndOfTrack();
+                if (mTrackChangedListener != null) {
+                    mTrackChangedListener.onTrackChanged(FakeAudioPlayer.this);
+                }
+            } else {
+                mPositionMsec = mDurationMsec;
+                mPlaying = false;
+                mCompleted = true;
+                if (mCompletionListener != null) {
+                    mCompletionListener.onCompletion(FakeAudioPlayer.this);
+                }
+            }
+        }
+    };
+
+    public FakeAudioPlayer(long seed, PlaybackStats stats) {
+        mRandom = new Random(seed);
+        mStats = stats;
+    }
+
+    public boolean isReleased() {
+        return mReleased;
+    }
+
+    public int getClosedDescriptorCount() {
+        return mClosedDescriptors;
+    }
+
+    @Override
+    public void setOnPreparedListener(OnPreparedListener listener) {
+        mPreparedListener = listener;
+    }
+
+    @Override
+    public void setOnCompletionListener(OnCompletionListener listener) {
+        mCompletionListener = listener;
+    }
+
+    @Override
+    public void setOnErrorListener(OnErrorListener listener) {
+        mErrorListener = listener;
+    }
+
+    @Override
+    public void setOnTrackChangedListener(OnTrackChangedListener listener) {
+        mTrackChangedListener = listener;
+    }
+
+    @Override
+    public void setDataSource(AssetFileDescriptor assetFD) {
+        close(assetFD);
+        mHasSource = true;
+    }
+
+    @Override
+    public void prepareAsync(int startPositionMsec, boolean startWhenPrepared) {
+        if (!mHasSource) {
+            return;
+        }
+        mHasSource = false;
+        mStartPositionMsec = Math.max(startPositionMsec, 0);
+        mStartWhenPrepared = startWhenPrepared;
+        mPrepared = false;
+        mPlaying = false;
+        mHandler.removeCallbacks(mEndOfTrack);
+        mHandler.removeCallbacks(mPrepare);
+        mHandler.postDelayed(mPrepare, PREPARE_DELAY_MSEC);
+    }
+
+    @Override
+    public void setNextDataSource(AssetFileDescriptor assetFD) {
+        close(assetFD);
+        mHasNextSource = assetFD != null;
+        if (mPlaying) {
+            rescheduleEndOfTrack();
+        }
+    }
+
+    @Override
+    public void setCrossfadeDuration(int msec) {
+        mCrossfadeMsec = Math.max(msec, 0);
+        if (mPlaying) {
+            rescheduleEndOfTrack();
+        }
+    }
+
+    @Override
+    public void setDeepBuffer(boolean deepBuffer) {
+        // Buffering doesn't change timing as far as the service can tell
+    }
+
+    @Override
+    public void setPlaybackRate(float rate) {
+        if (mPlaying) {
+            mPositionMsec = getCurrentPosition();
+            mStartUptimeMsec = SystemClock.uptimeMillis();
+        }
+        mRate = Math.max(TimeStretcher.MIN_RATE, Math.min(rate, TimeStretcher.MAX_RATE));
+        if (mPlaying) {
+            scheduleEndOfTrack();
+        }
+    }
+
+    @Override
+    public float getPlaybackRate() {
+        return mRate;
+    }
+
+    @Override
+    public void start() {
+        if (!mPrepared || mPlaying) {
+            return;
+        }
+        if (mCompleted) {
+            mCompleted = false;
+            mPositionMsec = 0;
+        }
+        mPlaying = true;
+        mStartUptimeMsec = SystemClock.uptimeMillis();
+        scheduleEndOfTrack();
+    }
+
+    @Override
+    public void pause() {
+        if (mPlaying) {
+            mPositionMsec = getCurrentPosition();
+            mPlaying = false;
+            mHandler.removeCallbacks(mEndOfTrack);
+        }
+    }
+
+    @Override
+    public void stop() {
+        pause();
+        mPositionMsec = 0;
+    }
+
+    @Override
+    public void seekTo(int msec) {
+        if (!mPrepared) {
+            return;
+        }
+        mPositionMsec = Math.max(0, Math.min(msec, mDurationMsec));
+        mCompleted = false;
+        if (mPlaying) {
+            mStartUptimeMsec = SystemClock.uptimeMillis();
+            scheduleEndOfTrack();
+        }
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return mPlaying;
+    }
+
+    @Override
+    public int getDuration() {
+        return mPrepared ? mDurationMsec : 0;
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        if (!mPlaying) {
+            return mPositionMsec;
+        }
+        long elapsedMsec = SystemClock.uptimeMillis() - mStartUptimeMsec;
+        return (int) Math.min(mDurationMsec, mPositionMsec + (long) (elapsedMsec * mRate));
+    }
+
+    /**
+     * Stops playing, but leaves a pending prepare to call back, so the service has to cope
+     * with callbacks from a player it already released.
+     */
+    @Override
+    public void release() {
+        mReleased = true;
+        mPlaying = false;
+        mHandler.removeCallbacks(mEndOfTrack);
+    }
+
+    private void scheduleEndOfTrack() {
+        int fadeMsec = mHasNextSource ? mCrossfadeMsec : 0;
+        mHandler.removeCallbacks(mEndOfTrack);
+        mHandler.postDelayed(mEndOfTrack, (long) Math.ceil(Math.max(0, mDurationMsec - mPositionMsec - fadeMsec) / mRate));
+    }
+
+    private void rescheduleEndOfTrack() {
+        mPositionMsec = getCurrentPosition();
+        mStartUptimeMsec = SystemClock.uptimeMillis();
+        scheduleEndOfTrack();
+    }
+
+    private int randomDuration() {
+        return MIN_DURATION_MSEC + mRandom.nextInt(MAX_DURATION_MSEC - MIN_DURATION_MSEC);
+    }
+
+    private void close(AssetFileDescriptor assetFD) {
+        if (assetFD == null) {
+            return;
+        }
+        try {
+            assetFD.close();
+            ++mClosedDescriptors;
+        } catch (IOException ex) {
+            // Nothing to do
+        }
+    }
+}
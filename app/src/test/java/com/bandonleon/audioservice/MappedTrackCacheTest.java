@@ -0,0 +1,104 @@
+package com.bandonleon.audioservice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class MappedTrackCacheTest {
+    private static final int SMALL_BYTES = 300 * 1024;
+    private static final int LARGE_BYTES = 3 * 1024 * 1024;    // Too large to pin
+
+    private File mFile;
+    private RandomAccessFile mRaf;
+    private byte[] mData;
+    private MappedTrackCache mCache;
+
+    @Before
+    public void setUp() throws IOException {
+        mData = new byte[LARGE_BYTES];
+        new Random(7).nextBytes(mData);
+        mFile = File.createTempFile("tracks", ".bin");
+        mRaf = new RandomAccessFile(mFile, "rw");
+        mRaf.write(mData);
+        mCache = new MappedTrackCache();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mCache.trimMemory(0);
+        mRaf.close();
+        mFile.delete();
+    }
+
+    @Test
+    public void readsTheRegion() throws IOException {
+        int offset = 12345;     // Not page aligned, like a raw resource inside the APK
+        ByteBuffer region = mCache.map(null, mRaf.getChannel(), offset, SMALL_BYTES);
+
+        byte[] dst = new byte[SMALL_BYTES + 100];
+        assertEquals(SMALL_BYTES - 1000, MappedTrackCache.read(region, 1000, dst, 100, SMALL_BYTES));
+        assertArrayEquals(Arrays.copyOfRange(mData, offset + 1000, offset + SMALL_BYTES),
+                Arrays.copyOfRange(dst, 100, 100 + SMALL_BYTES - 1000));
+        assertEquals(-1, MappedTrackCache.read(region, SMALL_BYTES, dst, 0, 1));
+    }
+
+    @Test
+    public void smallTrackIsPinnedOnSecondOpen() throws IOException {
+        mCache.map("small", mRaf.getChannel(), 0, SMALL_BYTES);
+        assertEquals(0, mCache.getPinnedCount());
+
+        ByteBuffer first = mCache.map("small", mRaf.getChannel(), 0, SMALL_BYTES);
+        ByteBuffer second = mCache.map("small", mRaf.getChannel(), 0, SMALL_BYTES);
+        assertEquals(1, mCache.getPinnedCount());
+        assertEquals(SMALL_BYTES, mCache.getMemoryBytes());
+
+        // Shared mapping, separate positions
+        byte[] a = new byte[16];
+        byte[] b = new byte[16];
+        MappedTrackCache.read(first, 100, a, 0, a.length);
+        MappedTrackCache.read(second, 100, b, 0, b.length);
+        assertArrayEquals(a, b);
+        assertEquals(116, first.position());
+    }
+
+    @Test
+    public void largeTrackIsNeverPinned() throws IOException {
+        mCache.map("large", mRaf.getChannel(), 0, LARGE_BYTES);
+        mCache.map("large", mRaf.getChannel(), 0, LARGE_BYTES);
+        assertEquals(0, mCache.getPinnedCount());
+    }
+
+    @Test
+    public void channelCanBeClosedAfterMapping() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        ByteBuffer region = mCache.map(null, raf.getChannel(), 0, SMALL_BYTES);
+        raf.close();
+
+        byte[] dst = new byte[SMALL_BYTES];
+        assertEquals(SMALL_BYTES, MappedTrackCache.read(region, 0, dst, 0, SMALL_BYTES));
+        assertArrayEquals(Arrays.copyOf(mData, SMALL_BYTES), dst);
+    }
+
+    @Test
+    public void governorUnpinsFirst() throws IOException {
+        MemoryGovernor governor = new MemoryGovernor(1024 * 1024);
+        governor.register("mapped tracks", MemoryGovernor.PRIORITY_MAPPED_TRACKS, mCache);
+        mCache.map("small", mRaf.getChannel(), 0, SMALL_BYTES);
+        mCache.map("small", mRaf.getChannel(), 0, SMALL_BYTES);
+        assertEquals(1, mCache.getPinnedCount());
+
+        governor.onLowMemory();
+        assertEquals(0, mCache.getPinnedCount());
+        assertEquals(0, governor.getTotalBytes());
+    }
+}
@@ -0,0 +1,118 @@
+package com.bandonleon.audioservice;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class MemoryGovernorTest {
+    private static final long BUDGET_BYTES = 1000;
+
+    /**
+     * Holds a number of bytes and frees exactly what it is asked to.
+     */
+    private static class FakeComponent implements MemoryGovernor.Component {
+        long mBytes;
+        int mTrims;
+
+        FakeComponent(long bytes) {
+            mBytes = bytes;
+        }
+
+        @Override
+        public long getMemoryBytes() {
+            return mBytes;
+        }
+
+        @Override
+        public void trimMemory(long maxBytes) {
+            ++mTrims;
+            mBytes = Math.min(mBytes, maxBytes);
+        }
+    }
+
+    private MemoryGovernor mGovernor;
+    private FakeComponent mArtwork;
+    private FakeComponent mClips;
+    private FakeComponent mPlayback;
+
+    @Before
+    public void setUp() {
+        mGovernor = new MemoryGovernor(BUDGET_BYTES);
+        mArtwork = new FakeComponent(300);
+        mClips = new FakeComponent(300);
+        mPlayback = new FakeComponent(200);
+        // Registered out of order on purpose
+        mGovernor.register("playback", MemoryGovernor.PRIORITY_PLAYBACK, mPlayback);
+        mGovernor.register("clips", MemoryGovernor.PRIORITY_CLIPS, mClips);
+        mGovernor.register("artwork", MemoryGovernor.PRIORITY_ARTWORK, mArtwork);
+    }
+
+    @Test
+    public void reportsUsageInTrimOrder() {
+        Map<String, Long> usage = mGovernor.getUsage();
+        assertEquals(Arrays.asList("artwork", "clips", "playback"), Arrays.asList(usage.keySet().toArray()));
+        assertEquals(300L, (long) usage.get("clips"));
+        assertEquals(800, mGovernor.getTotalBytes());
+    }
+
+    @Test
+    public void growthPastBudgetTrimsLowestPriorityFirst() {
+        mClips.mBytes = 700;    // 1200 in total
+        mGovernor.enforceBudget();
+
+        assertEquals(100, mArtwork.mBytes);
+        assertEquals(700, mClips.mBytes);
+        assertEquals(0, mClips.mTrims);
+        assertEquals(BUDGET_BYTES, mGovernor.getTotalBytes());
+    }
+
+    @Test
+    public void withinBudgetNothingIsTrimmed() {
+        mGovernor.enforceBudget();
+        mGovernor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+
+        assertEquals(0, mArtwork.mTrims + mClips.mTrims + mPlayback.mTrims);
+    }
+
+    @Test
+    public void trimLevelsShrinkToFractionOfBudget() {
+        mGovernor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        assertEquals(BUDGET_BYTES / 2, mGovernor.getTotalBytes());
+        assertEquals(0, mArtwork.mBytes);
+        assertEquals(300, mClips.mBytes);
+
+        mGovernor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(BUDGET_BYTES / 4, mGovernor.getTotalBytes());
+        assertEquals(50, mClips.mBytes);
+    }
+
+    @Test
+    public void playbackIsTrimmedLast() {
+        mGovernor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(0, mArtwork.mBytes);
+        assertEquals(50, mClips.mBytes);
+        assertEquals(200, mPlayback.mBytes);
+        assertEquals(0, mPlayback.mTrims);
+
+        mGovernor.onLowMemory();
+        assertEquals(0, mClips.mBytes);
+        assertEquals(0, mPlayback.mBytes);
+        assertEquals(1, mPlayback.mTrims);
+    }
+
+    @Test
+    public void unregisteredComponentsAreLeftAlone() {
+        mGovernor.unregister(mArtwork);
+        mGovernor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+
+        assertEquals(300, mArtwork.mBytes);
+        assertEquals(0, mClips.mBytes);
+        assertEquals(0, mGovernor.getTotalBytes());
+    }
+}
@@ -0,0 +1,139 @@
+package com.bandonleon.audioservice;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Converts between the two common rates in both directions, a block at a time as AudioEngine
+ * does, and checks length, gain and pitch.
+ */
+public class ResamplerTest {
+    private static final int CHANNELS = 2;
+    private static final int BLOCK_FRAMES = 1024;
+    private static final int SECONDS = 2;
+    private static final double FREQUENCY = 1000;
+    private static final short LEVEL = 10000;
+
+    @Test
+    public void upsamplingKeepsDuration() {
+        assertLength(44100, 48000);
+    }
+
+    @Test
+    public void downsamplingKeepsDuration() {
+        assertLength(48000, 44100);
+    }
+
+    @Test
+    public void upsamplingHasUnityGainAtDc() {
+        assertUnityGain(44100, 48000);
+    }
+
+    @Test
+    public void downsamplingHasUnityGainAtDc() {
+        assertUnityGain(48000, 44100);
+    }
+
+    @Test
+    public void upsamplingKeepsFrequency() {
+        assertEquals(FREQUENCY, frequency(resample(sine(44100), 44100, 48000), 48000), FREQUENCY * 0.001);
+    }
+
+    @Test
+    public void downsamplingKeepsFrequency() {
+        assertEquals(FREQUENCY, frequency(resample(sine(48000), 48000, 44100), 44100), FREQUENCY * 0.001);
+    }
+
+    @Test
+    public void wholeClipMatchesStreaming() {
+        short[] input = sine(44100);
+        short[] clip = Resampler.resample(input, input.length / CHANNELS, CHANNELS, 44100, 48000);
+        short[] streamed = resample(input, 44100, 48000);
+
+        assertEquals(SECONDS * 48000, clip.length / CHANNELS);
+        for (int i = 0; i < clip.length; ++i) {
+            assertEquals(streamed[i], clip[i]);
+        }
+    }
+
+    private static void assertLength(int inputRate, int outputRate) {
+        int frames = resample(sine(inputRate), inputRate, outputRate).length / CHANNELS;
+        assertEquals(SECONDS * outputRate, frames, 2);
+    }
+
+    private static void assertUnityGain(int inputRate, int outputRate) {
+        short[] input = new short[SECONDS * inputRate * CHANNELS];
+        Arrays.fill(input, LEVEL);
+        short[] output = resample(input, inputRate, outputRate);
+
+        // Away from the edges, where the filter overlaps the silence either side
+        int frames = output.length / CHANNELS;
+        for (int i = BLOCK_FRAMES; i < frames - BLOCK_FRAMES; ++i) {
+            assertEquals("Frame " + i, LEVEL, output[i * CHANNELS], LEVEL * 0.001);
+            assertEquals("Frame " + i, LEVEL, output[i * CHANNELS + 1], LEVEL * 0.001);
+        }
+    }
+
+    private static short[] sine(int sampleRate) {
+        int frames = SECONDS * sampleRate;
+        short[] pcm = new short[frames * CHANNELS];
+        for (int i = 0; i < frames; ++i) {
+            short sample = (short) Math.round(LEVEL * Math.sin(2 * Math.PI * FREQUENCY * i / sampleRate));
+            pcm[i * CHANNELS] = sample;
+            pcm[i * CHANNELS + 1] = sample;
+        }
+        return pcm;
+    }
+
+    private static short[] resample(short[] input, int inputRate, int outputRate) {
+        Resampler resampler = new Resampler(CHANNELS, BLOCK_FRAMES);
+        resampler.configure(inputRate, outputRate);
+
+        int inputFrames = input.length / CHANNELS;
+        int capacityFrames = (int) ((long) inputFrames * outputRate / inputRate) + BLOCK_FRAMES;
+        short[] output = new short[capacityFrames * CHANNELS];
+        int written = 0;
+        int read = 0;
+        while (true) {
+            int count = resampler.read(output, read * CHANNELS, Math.min(BLOCK_FRAMES, capacityFrames - read));
+            read += count;
+            if (count == BLOCK_FRAMES) {
+                continue;
+            }
+            if (written < inputFrames) {
+                int frames = Math.min(BLOCK_FRAMES, inputFrames - written);
+                resampler.write(input, written * CHANNELS, frames);
+                written += frames;
+            } else if (!resampler.isEnded()) {
+                resampler.endOfInput();
+            } else {
+                break;
+            }
+        }
+        return Arrays.copyOf(output, read * CHANNELS);
+    }
+
+    /**
+     * @return Frequency of the left channel from its rising zero crossings, away from the ends.
+     */
+    private static double frequency(short[] pcm, int sampleRate) {
+        int frames = pcm.length / CHANNELS;
+        int first = -1;
+        int last = -1;
+        int crossings = 0;
+        for (int i = frames / 10 + 1; i < frames * 9 / 10; ++i) {
+            if (pcm[(i - 1) * CHANNELS] < 0 && pcm[i * CHANNELS] >= 0) {
+                if (first < 0) {
+                    first = i;
+                } else {
+                    ++crossings;
+                }
+                last = i;
+            }
+        }
+        return crossings * (double) sampleRate / (last - first);
+    }
+}
@@ -0,0 +1,119 @@
+package com.bandonleon.audioservice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ResumeIndexTest {
+    private static final int TRACKS = 50000;   // Enough to grow the index several times
+
+    private File mDir;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("resume", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+        mFile = new File(mDir, "resume.idx");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void unknownTracksStartAtZero() {
+        ResumeIndex index = new ResumeIndex(mFile);
+        assertEquals(0, index.getPositionMsec(42));
+        assertEquals(0, index.getLastPlayedMsec(42));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void updatesOverwriteInPlace() {
+        ResumeIndex index = new ResumeIndex(mFile);
+        index.put(42, 1000, 5000L);
+        index.put(42, 2500, 6000L);
+
+        assertEquals(1, index.size());
+        assertEquals(2500, index.getPositionMsec(42));
+        assertEquals(6000L, index.getLastPlayedMsec(42));
+    }
+
+    @Test
+    public void survivesReopeningAcrossGrowth() {
+        ResumeIndex index = new ResumeIndex(mFile);
+        for (int id = 1; id <= TRACKS; ++id) {
+            index.put(id, id * 3, id * 7L);
+        }
+        index.flush();
+
+        ResumeIndex reopened = new ResumeIndex(mFile);
+        assertEquals(TRACKS, reopened.size());
+        for (int id = 1; id <= TRACKS; ++id) {
+            assertEquals(id * 3, reopened.getPositionMsec(id));
+            assertEquals(id * 7L, reopened.getLastPlayedMsec(id));
+        }
+        assertEquals(0, reopened.getPositionMsec(TRACKS + 1));
+        assertFalse(new File(mDir, "resume.idx.grow").exists());
+    }
+
+    @Test
+    public void removeKeepsOtherEntriesReachable() {
+        ResumeIndex index = new ResumeIndex(mFile);
+        int[] ids = new int[700];   // Over two thirds full, so probe runs get long
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = 0x7f050000 + i * 37;
+            index.put(ids[i], i + 1, 0L);
+        }
+        for (int i = 0; i < ids.length; i += 2) {
+            index.remove(ids[i]);
+        }
+
+        assertEquals(ids.length / 2, index.size());
+        for (int i = 0; i < ids.length; ++i) {
+            assertEquals(i % 2 == 0 ? 0 : i + 1, index.getPositionMsec(ids[i]));
+        }
+    }
+
+    @Test
+    public void corruptFileStartsOver() throws IOException {
+        FileOutputStream output = new FileOutputStream(mFile);
+        try {
+            output.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17 });
+        } finally {
+            output.close();
+        }
+
+        ResumeIndex index = new ResumeIndex(mFile);
+        assertEquals(0, index.size());
+        index.put(42, 1000, 5000L);
+        index.flush();
+        assertEquals(1000, new ResumeIndex(mFile).getPositionMsec(42));
+    }
+
+    @Test
+    public void worksWithoutFile() {
+        ResumeIndex index = new ResumeIndex(null);
+        for (int id = 1; id <= TRACKS; ++id) {
+            index.put(id, id, id);
+        }
+        assertEquals(TRACKS, index.size());
+        assertEquals(TRACKS, index.getPositionMsec(TRACKS));
+    }
+}
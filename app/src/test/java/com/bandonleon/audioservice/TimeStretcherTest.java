@@ -0,0 +1,119 @@
+package com.bandonleon.audioservice;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs a sine through TimeStretcher the way AudioEngine does, a block at a time, and checks
+ * that the speed changes while the pitch doesn't.
+ */
+public class TimeStretcherTest {
+    private static final int CHANNELS = 2;
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BLOCK_FRAMES = 1024;
+    private static final int INPUT_FRAMES = SAMPLE_RATE * 2;
+    private static final double FREQUENCY = 440;
+
+    @Test
+    public void halfSpeedDoublesLength() {
+        assertLength(0.5f);
+    }
+
+    @Test
+    public void doubleSpeedHalvesLength() {
+        assertLength(2.0f);
+    }
+
+    @Test
+    public void halfSpeedKeepsPitch() {
+        assertEquals(FREQUENCY, frequency(stretch(sine(), 0.5f)), FREQUENCY * 0.01);
+    }
+
+    @Test
+    public void doubleSpeedKeepsPitch() {
+        assertEquals(FREQUENCY, frequency(stretch(sine(), 2.0f)), FREQUENCY * 0.01);
+    }
+
+    @Test
+    public void latencyCoversBufferedInput() {
+        TimeStretcher stretcher = new TimeStretcher(CHANNELS, BLOCK_FRAMES);
+        stretcher.configure(SAMPLE_RATE);
+        stretcher.setRate(2.0f);
+        assertEquals(0, stretcher.getLatencyFrames());
+
+        // Nothing can come out yet, so all of the block is still ahead of the next write
+        short[] block = Arrays.copyOf(sine(), BLOCK_FRAMES * CHANNELS);
+        stretcher.write(block, 0, BLOCK_FRAMES);
+        assertEquals(BLOCK_FRAMES / 2, stretcher.getLatencyFrames());
+    }
+
+    private static void assertLength(float rate) {
+        int expectedFrames = Math.round(INPUT_FRAMES / rate);
+        int frames = stretch(sine(), rate).length / CHANNELS;
+        // The end of stream padding adds up to a window and a seek range either way
+        assertEquals(expectedFrames, frames, SAMPLE_RATE * 0.05);
+    }
+
+    private static short[] sine() {
+        short[] pcm = new short[INPUT_FRAMES * CHANNELS];
+        for (int i = 0; i < INPUT_FRAMES; ++i) {
+            short sample = (short) Math.round(10000 * Math.sin(2 * Math.PI * FREQUENCY * i / SAMPLE_RATE));
+            pcm[i * CHANNELS] = sample;
+            pcm[i * CHANNELS + 1] = sample;
+        }
+        return pcm;
+    }
+
+    private static short[] stretch(short[] input, float rate) {
+        TimeStretcher stretcher = new TimeStretcher(CHANNELS, BLOCK_FRAMES);
+        stretcher.configure(SAMPLE_RATE);
+        stretcher.setRate(rate);
+
+        short[] output = new short[(int) (INPUT_FRAMES / rate + SAMPLE_RATE) * CHANNELS];
+        short[] block = new short[BLOCK_FRAMES * CHANNELS];
+        int written = 0;
+        int read = 0;
+        while (true) {
+            int count = stretcher.read(block, 0, BLOCK_FRAMES);
+            System.arraycopy(block, 0, output, read * CHANNELS, count * CHANNELS);
+            read += count;
+            if (count == BLOCK_FRAMES) {
+                continue;
+            }
+            if (written < INPUT_FRAMES) {
+                int frames = Math.min(BLOCK_FRAMES, INPUT_FRAMES - written);
+                stretcher.write(input, written * CHANNELS, frames);
+                written += frames;
+            } else if (!stretcher.isEnded()) {
+                stretcher.endOfInput();
+            } else {
+                break;
+            }
+        }
+        return Arrays.copyOf(output, read * CHANNELS);
+    }
+
+    /**
+     * @return Frequency of the left channel from its rising zero crossings, away from the ends.
+     */
+    private static double frequency(short[] pcm) {
+        int frames = pcm.length / CHANNELS;
+        int first = -1;
+        int last = -1;
+        int crossings = 0;
+        for (int i = frames / 10 + 1; i < frames * 9 / 10; ++i) {
+            if (pcm[(i - 1) * CHANNELS] < 0 && pcm[i * CHANNELS] >= 0) {
+                if (first < 0) {
+                    first = i;
+                } else {
+                    ++crossings;
+                }
+                last = i;
+            }
+        }
+        return crossings * (double) SAMPLE_RATE / (last - first);
+    }
+}
@@ -0,0 +1,56 @@
+package com.bandonleon.audioservice;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Listener that sinks every event into a Blackhole so the dispatch can't be optimized away.
+ */
+public class BlackholeListener implements AudioClientReceiver.AudioListener {
+    private final Blackhole mBlackhole;
+
+    public BlackholeListener(Blackhole blackhole) {
+        mBlackhole = blackhole;
+    }
+
+    @Override
+    public void onAudioLoaded(int session, int durationMsec) {
+        mBlackhole.consume(durationMsec);
+    }
+
+    @Override
+    public void onAudioStarted(int session, int durationMsec) {
+        mBlackhole.consume(durationMsec);
+    }
+
+    @Override
+    public void onAudioCompleted(int session) {
+        mBlackhole.consume(this);
+    }
+
+    @Override
+    public void onAudioPaused(int session) {
+        mBlackhole.consume(this);
+    }
+
+    @Override
+    public void onAudioResumed(int session, int positionMsec) {
+        mBlackhole.consume(positionMsec);
+    }
+
+    @Override
+    public void onPositionUpdate(int session, int positionMsec, float playbackRate) {
+        mBlackhole.consume(positionMsec);
+        mBlackhole.consume(playbackRate);
+    }
+
+    @Override
+    public void onStatusUpdate(int session, boolean isLoaded, boolean isPlaying, int durationMsec,
+                               int positionMsec, float playbackRate) {
+        mBlackhole.consume(positionMsec);
+    }
+
+    @Override
+    public void onPinFinished(int audioId, boolean pinned) {
+        mBlackhole.consume(pinned);
+    }
+}
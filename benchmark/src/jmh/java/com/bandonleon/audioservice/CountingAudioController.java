@@ -0,0 +1,104 @@
+package com.bandonleon.audioservice;
+
+/**
+ * AudioController that only counts calls, so dispatch cost is measured on its own.
+ */
+public class CountingAudioController implements AudioController {
+    private int mCallCount;
+    private int mLastSession = DEFAULT_SESSION;
+
+    public int getCallCount() {
+        return mCallCount;
+    }
+
+    @Override
+    public int openSession() {
+        ++mCallCount;
+        return ++mLastSession;
+    }
+
+    @Override
+    public void closeSession(int session) {
+        ++mCallCount;
+    }
+
+    @Override
+    public void loadAudio(int session, int audioResId) {
+        ++mCallCount;
+    }
+
+    @Override
+    public void playAudio(int session, int audioResId) {
+        ++mCallCount;
+    }
+
+    @Override
+    public void applyTransaction(int session, AudioTransaction transaction) {
+        ++mCallCount;
+    }
+
+    @Override
+    public void pinAudio(int audioId, String url, String sha256Hex) {
+        ++mCallCount;
+    }
+
+    @Override
+    public void unpinAudio(int audioId) {
+        ++mCallCount;
+    }
+
+    @Override
+    public void queueNextAudio(int session, int audioResId) {
+        ++mCallCount;
+    }
+
+    @Override
+    public void setCrossfadeDuration(int session, int msec) {
+        ++mCallCount;
+    }
+
+    @Override
+    public void setPlaybackRate(int session, float rate) {
+        ++mCallCount;
+    }
+
+    @Override
+    public void preloadClip(int clipResId) {
+        ++mCallCount;
+    }
+
+    @Override
+    public void playClip(int clipResId) {
+        ++mCallCount;
+    }
+
+    @Override
+    public void resumeAudio(int session) {
+        ++mCallCount;
+    }
+
+    @Override
+    public void pauseAudio(int session) {
+        ++mCallCount;
+    }
+
+    @Override
+    public void seekAudio(int session, int msec) {
+        ++mCallCount;
+    }
+
+    @Override
+    public void rewindAudioFull(int session) {
+        ++mCallCount;
+    }
+
+    @Override
+    public void rewindAudio15Sec(int session) {
+        ++mCallCount;
+    }
+
+    @Override
+    public void requestStatus(int session) {
+        ++mCallCount;
+    }
+}
@@ -0,0 +1,148 @@
+package com.bandonleon.audioservice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a track the way MediaExtractor does, a chunk at a time from the front, through a
+ * {@link MappedTrackCache} mapping (what MappedDataSource serves) against positioned reads on
+ * the file descriptor (what the extractor does when given an fd).
+ *
+ * read* read a whole track per op. open* stand in for time to prepare: open the track and read
+ * the header bytes the extractor sniffs before it can pick a decoder. The extractor's own
+ * parsing costs the same on both paths and isn't included. The file stays in the page cache
+ * throughout, so this measures per-read overhead rather than flash.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MappedReadBenchmark {
+    private static final int TRACK_BYTES = 2 * 1024 * 1024;    // Small enough to pin
+    private static final int PROBE_BYTES = 64 * 1024;
+    private static final String PINNED_KEY = "pinned";
+
+    // Bytes per read
+    @Param({"4096", "65536"})
+    public int readBytes;
+
+    private final MappedTrackCache mCache = new MappedTrackCache();
+    private File mFile;
+    private RandomAccessFile mRaf;
+    private ByteBuffer mRegion;
+    private ByteBuffer mDirect;
+    private byte[] mBuffer;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] data = new byte[TRACK_BYTES];
+        new Random(42).nextBytes(data);
+        mFile = File.createTempFile("track", ".audio");
+        mRaf = new RandomAccessFile(mFile, "rw");
+        mRaf.write(data);
+
+        mRegion = mCache.map(null, mRaf.getChannel(), 0, TRACK_BYTES);
+        // Opened twice, so it's hot from here on
+        mCache.map(PINNED_KEY, mRaf.getChannel(), 0, TRACK_BYTES);
+        mCache.map(PINNED_KEY, mRaf.getChannel(), 0, TRACK_BYTES);
+
+        // The platform reads into native memory, so the fd path gets a direct buffer
+        mDirect = ByteBuffer.allocateDirect(readBytes);
+        mBuffer = new byte[readBytes];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mCache.trimMemory(0);
+        mRaf.close();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long readTrackFd() throws IOException {
+        return readFd(mRaf.getChannel(), TRACK_BYTES);
+    }
+
+    @Benchmark
+    public long readTrackMapped() {
+        return readMapped(mRegion, TRACK_BYTES);
+    }
+
+    @Benchmark
+    public long openFd() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            return readFd(raf.getChannel(), PROBE_BYTES);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Benchmark
+    public long openMapped() throws IOException {
+        return openMapped(null);
+    }
+
+    @Benchmark
+    public long openPinned() throws IOException {
+        return openMapped(PINNED_KEY);
+    }
+
+    private long openMapped(String key) throws IOException {
+        ByteBuffer region;
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            region = mCache.map(key, raf.getChannel(), 0, TRACK_BYTES);
+        } finally {
+            raf.close();
+        }
+        return readMapped(region, PROBE_BYTES);
+    }
+
+    private long readFd(FileChannel channel, int bytes) throws IOException {
+        long total = 0;
+        for (long position = 0; position < bytes; ) {
+            mDirect.clear();
+            int read = channel.read(mDirect, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+            total += mDirect.get(0);
+        }
+        return total;
+    }
+
+    private long readMapped(ByteBuffer region, int bytes) {
+        long total = 0;
+        for (long position = 0; position < bytes; ) {
+            int read = MappedTrackCache.read(region, position, mBuffer, 0, readBytes);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+            total += mBuffer[0];
+        }
+        return total;
+    }
+}
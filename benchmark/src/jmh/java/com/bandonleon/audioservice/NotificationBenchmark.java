@@ -0,0 +1,63 @@
+package com.bandonleon.audioservice;
+
+import android.app.NotificationManager;
+import android.content.Context;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the notification half of a position tick, against a NotificationManager that
+ * only records what it was given.
+ *
+ * The manager is recreated every iteration because its RemoteViews accumulate actions,
+ * as they do on the platform.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NotificationBenchmark {
+
+    private static final int DURATION_MSEC = 5 * 60 * 1000;
+
+    private NotificationManager mFakeNotificationManager;
+    private AudioNotificationManager mNotificationManager;
+    private int mPositionMsec;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        Context context = new Context();
+        mFakeNotificationManager = new NotificationManager();
+        context.putSystemService(Context.NOTIFICATION_SERVICE, mFakeNotificationManager);
+        mNotificationManager = new AudioNotificationManager(context);
+        mNotificationManager.updateContent("Chopin Op.9 no.1");
+    }
+
+    @Benchmark
+    public void updateProgress() {
+        mPositionMsec = (mPositionMsec + 25) % DURATION_MSEC;
+        mNotificationManager.updateProgress(DURATION_MSEC, mPositionMsec);
+    }
+
+    @Benchmark
+    public NotificationManager updateProgressAndSend() {
+        mPositionMsec = (mPositionMsec + 25) % DURATION_MSEC;
+        mNotificationManager.updateProgress(DURATION_MSEC, mPositionMsec);
+        mNotificationManager.sendNotification();
+        return mFakeNotificationManager;
+    }
+}
@@ -0,0 +1,87 @@
+package com.bandonleon.audioservice;
+
+import android.content.Context;
+import android.content.Intent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one 40 Hz position tick on the client side: building the broadcast intent and
+ * fanning it out to every subscribed listener, either at the full rate or rate limited
+ * (in which case most updates are coalesced rather than delivered).
+ *
+ * Every session plays, and each has listenerCount listeners of its own. The tick carries all
+ * the sessions in one batched intent, so a listener is only visited for its own session.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PositionUpdateBenchmark {
+
+    @Param({"1", "4"})
+    public int sessionCount;
+
+    // Per session
+    @Param({"1", "4", "16"})
+    public int listenerCount;
+
+    @Param({"0", "10"})
+    public int maxPositionUpdateHz;
+
+    private Context mContext;
+    private AudioClientReceiver mReceiver;
+    private int[] mSessions;
+    private int[] mPositionsMsec;
+    private float[] mRates;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        mContext = new Context();
+        mReceiver = new AudioClientReceiver();
+        mSessions = new int[sessionCount];
+        mPositionsMsec = new int[sessionCount];
+        mRates = new float[sessionCount];
+        for (int s = 0; s < sessionCount; ++s) {
+            mSessions[s] = AudioController.DEFAULT_SESSION + s;
+            mRates[s] = 1.0f;
+            for (int i = 0; i < listenerCount; ++i) {
+                mReceiver.subscribe(new BlackholeListener(blackhole), mSessions[s],
+                        EnumSet.allOf(AudioClientReceiver.Event.class), maxPositionUpdateHz);
+            }
+        }
+    }
+
+    @Benchmark
+    public Intent buildPositionUpdate() {
+        return buildTick();
+    }
+
+    @Benchmark
+    public void buildAndDispatchPositionUpdate() {
+        mReceiver.onReceive(mContext, buildTick());
+    }
+
+    private Intent buildTick() {
+        for (int s = 0; s < sessionCount; ++s) {
+            ++mPositionsMsec[s];
+        }
+        return AudioClientReceiver.getPositionUpdateIntent(mSessions, mPositionsMsec, mRates, sessionCount);
+    }
+}
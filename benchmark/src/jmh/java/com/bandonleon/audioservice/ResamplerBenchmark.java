@@ -0,0 +1,74 @@
+package com.bandonleon.audioservice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of converting one second of stereo audio to the device rate, fed and read a block at
+ * a time the way the playback thread does. Each op is one second of input, so ops/s is how many
+ * times faster than real time the resampler runs. gc.alloc.rate.norm should be 0.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResamplerBenchmark {
+    private static final int CHANNELS = 2;
+    private static final int BLOCK_FRAMES = 1024;
+
+    // Input rate -> output rate
+    @Param({"44100:48000", "48000:44100", "22050:48000", "44100:96000"})
+    public String conversion;
+
+    private final Resampler mResampler = new Resampler(CHANNELS, BLOCK_FRAMES);
+    private final short[] mOutput = new short[BLOCK_FRAMES * CHANNELS];
+    private short[] mInput;
+    private int mInputRate;
+
+    @Setup
+    public void setUp() {
+        String[] rates = conversion.split(":");
+        mInputRate = Integer.parseInt(rates[0]);
+        int outputRate = Integer.parseInt(rates[1]);
+
+        Random random = new Random(42);
+        mInput = new short[mInputRate * CHANNELS];
+        for (int i = 0; i < mInputRate; ++i) {
+            double t = (double) i / mInputRate;
+            double value = 6000 * Math.sin(2 * Math.PI * 440 * t) + 2000 * Math.sin(2 * Math.PI * 5000 * t)
+                    + 500 * random.nextGaussian();
+            mInput[i * CHANNELS] = (short) value;
+            mInput[i * CHANNELS + 1] = (short) -value;
+        }
+        mResampler.configure(mInputRate, outputRate);
+    }
+
+    @Benchmark
+    public int resampleOneSecond() {
+        int outputFrames = 0;
+        for (int offset = 0; offset < mInputRate; offset += BLOCK_FRAMES) {
+            int frames = Math.min(BLOCK_FRAMES, mInputRate - offset);
+            int read;
+            while ((read = mResampler.read(mOutput, 0, BLOCK_FRAMES)) == BLOCK_FRAMES) {
+                outputFrames += read;
+            }
+            outputFrames += read;
+            mResampler.write(mInput, offset * CHANNELS, frames);
+        }
+        return outputFrames;
+    }
+}
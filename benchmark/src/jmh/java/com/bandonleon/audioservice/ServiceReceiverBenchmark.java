@@ -0,0 +1,62 @@
+package com.bandonleon.audioservice;
+
+import android.content.Context;
+import android.content.Intent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of routing a notification button press through AudioServiceReceiver to the controller.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ServiceReceiverBenchmark {
+
+    private final AudioServiceReceiver.Action[] mActions = AudioServiceReceiver.Action.values();
+
+    private Context mContext;
+    private CountingAudioController mController;
+    private AudioServiceReceiver mReceiver;
+    private Intent[] mIntents;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        mContext = new Context();
+        mController = new CountingAudioController();
+        mReceiver = new AudioServiceReceiver(mController);
+        mIntents = new Intent[mActions.length];
+        for (int i = 0; i < mActions.length; ++i) {
+            mIntents[i] = AudioServiceReceiver.getActionIntent(AudioController.DEFAULT_SESSION, mActions[i]);
+        }
+    }
+
+    @Benchmark
+    public int dispatchPrebuiltIntent() {
+        mReceiver.onReceive(mContext, mIntents[mNext]);
+        mNext = (mNext + 1) % mIntents.length;
+        return mController.getCallCount();
+    }
+
+    @Benchmark
+    public int buildAndDispatchIntent() {
+        mReceiver.onReceive(mContext, AudioServiceReceiver.getActionIntent(AudioController.DEFAULT_SESSION, mActions[mNext]));
+        mNext = (mNext + 1) % mActions.length;
+        return mController.getCallCount();
+    }
+}
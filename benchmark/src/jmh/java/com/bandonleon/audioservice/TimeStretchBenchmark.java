@@ -0,0 +1,72 @@
+package com.bandonleon.audioservice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of stretching one second of 44.1 kHz stereo music-like input, fed and read a block
+ * at a time the way the playback thread does. Each op is one second of input, so ops/s is how
+ * many times faster than real time the stretcher runs. gc.alloc.rate.norm should be 0.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TimeStretchBenchmark {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNELS = 2;
+    private static final int BLOCK_FRAMES = 1024;
+
+    @Param({"0.5", "1.5", "3.0"})
+    public float rate;
+
+    private final TimeStretcher mStretcher = new TimeStretcher(CHANNELS, BLOCK_FRAMES);
+    private final short[] mInput = new short[SAMPLE_RATE * CHANNELS];
+    private final short[] mOutput = new short[BLOCK_FRAMES * CHANNELS];
+
+    @Setup
+    public void setUp() {
+        // A few detuned partials plus noise, so the similarity search has real work to do
+        Random random = new Random(42);
+        for (int i = 0; i < SAMPLE_RATE; ++i) {
+            double t = (double) i / SAMPLE_RATE;
+            double value = 4000 * Math.sin(2 * Math.PI * 220 * t)
+                    + 2500 * Math.sin(2 * Math.PI * 331 * t)
+                    + 1500 * Math.sin(2 * Math.PI * 587 * t)
+                    + 500 * random.nextGaussian();
+            mInput[i * CHANNELS] = (short) value;
+            mInput[i * CHANNELS + 1] = (short) (value * 0.8);
+        }
+        mStretcher.configure(SAMPLE_RATE);
+        mStretcher.setRate(rate);
+    }
+
+    @Benchmark
+    public int stretchOneSecond() {
+        int outputFrames = 0;
+        for (int offset = 0; offset < SAMPLE_RATE; offset += BLOCK_FRAMES) {
+            int frames = Math.min(BLOCK_FRAMES, SAMPLE_RATE - offset);
+            int read;
+            while ((read = mStretcher.read(mOutput, 0, BLOCK_FRAMES)) == BLOCK_FRAMES) {
+                outputFrames += read;
+            }
+            outputFrames += read;
+            mStretcher.write(mInput, offset * CHANNELS, frames);
+        }
+        return outputFrames;
+    }
+}
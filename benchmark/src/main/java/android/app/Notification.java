@@ -0,0 +1,53 @@
+package android.app;
+
+import android.content.Context;
+import android.widget.RemoteViews;
+
+/**
+ * JVM stand-in for the benchmarks.
+ */
+public class Notification {
+    public RemoteViews contentView;
+    public int icon;
+    public PendingIntent contentIntent;
+    public PendingIntent deleteIntent;
+
+    public static class Builder {
+        private RemoteViews mContentView;
+        private int mSmallIcon;
+        private PendingIntent mContentIntent;
+        private PendingIntent mDeleteIntent;
+
+        public Builder(Context context) {
+        }
+
+        public Builder setContent(RemoteViews views) {
+            mContentView = views;
+            return this;
+        }
+
+        public Builder setSmallIcon(int icon) {
+            mSmallIcon = icon;
+            return this;
+        }
+
+        public Builder setContentIntent(PendingIntent intent) {
+            mContentIntent = intent;
+            return this;
+        }
+
+        public Builder setDeleteIntent(PendingIntent intent) {
+            mDeleteIntent = intent;
+            return this;
+        }
+
+        public Notification build() {
+            Notification notification = new Notification();
+            notification.contentView = mContentView;
+            notification.icon = mSmallIcon;
+            notification.contentIntent = mContentIntent;
+            notification.deleteIntent = mDeleteIntent;
+            return notification;
+        }
+    }
+}
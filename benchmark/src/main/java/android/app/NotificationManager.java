@@ -0,0 +1,26 @@
+package android.app;
+
+/**
+ * JVM stand-in for the benchmarks. Remembers the last notification instead of posting it.
+ */
+public class NotificationManager {
+    private int mNotifyCount;
+    private Notification mLastNotification;
+
+    public void notify(int id, Notification notification) {
+        ++mNotifyCount;
+        mLastNotification = notification;
+    }
+
+    public void cancel(int id) {
+        mLastNotification = null;
+    }
+
+    public int getNotifyCount() {
+        return mNotifyCount;
+    }
+
+    public Notification getLastNotification() {
+        return mLastNotification;
+    }
+}
@@ -0,0 +1,8 @@
+package android.content;
+
+/**
+ * JVM stand-in for the benchmarks.
+ */
+public abstract class BroadcastReceiver {
+    public abstract void onReceive(Context context, Intent intent);
+}
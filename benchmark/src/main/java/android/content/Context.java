@@ -0,0 +1,29 @@
+package android.content;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JVM stand-in for the benchmarks. Only what the benchmarked classes call is provided.
+ */
+public class Context {
+    public static final String NOTIFICATION_SERVICE = "notification";
+
+    private final Map<String, Object> mSystemServices = new HashMap<>();
+
+    public void putSystemService(String name, Object service) {
+        mSystemServices.put(name, service);
+    }
+
+    public Object getSystemService(String name) {
+        return mSystemServices.get(name);
+    }
+
+    public String getPackageName() {
+        return "com.bandonleon.audioservice";
+    }
+
+    public CharSequence getText(int resId) {
+        return "text-" + resId;
+    }
+}
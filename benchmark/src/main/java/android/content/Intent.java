@@ -0,0 +1,87 @@
+package android.content;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JVM stand-in for the benchmarks. Extras are boxed into a lazily created map, the same
+ * way the platform's Bundle stores them, so allocation numbers stay representative.
+ */
+public class Intent {
+    private String mAction;
+    private String mComponent;
+    private Map<String, Object> mExtras;
+
+    public Intent() {
+    }
+
+    public Intent(String action) {
+        mAction = action;
+    }
+
+    public Intent(Context context, Class<?> cls) {
+        mComponent = cls.getName();
+    }
+
+    public Intent setAction(String action) {
+        mAction = action;
+        return this;
+    }
+
+    public String getAction() {
+        return mAction;
+    }
+
+    public Intent putExtra(String name, int value) {
+        return putExtraObject(name, value);
+    }
+
+    public Intent putExtra(String name, boolean value) {
+        return putExtraObject(name, value);
+    }
+
+    public Intent putExtra(String name, float value) {
+        return putExtraObject(name, value);
+    }
+
+    public Intent putExtra(String name, int[] value) {
+        return putExtraObject(name, value);
+    }
+
+    public Intent putExtra(String name, float[] value) {
+        return putExtraObject(name, value);
+    }
+
+    public int getIntExtra(String name, int defaultValue) {
+        Object value = mExtras != null ? mExtras.get(name) : null;
+        return value instanceof Integer ? (Integer) value : defaultValue;
+    }
+
+    public boolean getBooleanExtra(String name, boolean defaultValue) {
+        Object value = mExtras != null ? mExtras.get(name) : null;
+        return value instanceof Boolean ? (Boolean) value : defaultValue;
+    }
+
+    public float getFloatExtra(String name, float defaultValue) {
+        Object value = mExtras != null ? mExtras.get(name) : null;
+        return value instanceof Float ? (Float) value : defaultValue;
+    }
+
+    public int[] getIntArrayExtra(String name) {
+        Object value = mExtras != null ? mExtras.get(name) : null;
+        return value instanceof int[] ? (int[]) value : null;
+    }
+
+    public float[] getFloatArrayExtra(String name) {
+        Object value = mExtras != null ? mExtras.get(name) : null;
+        return value instanceof float[] ? (float[]) value : null;
+    }
+
+    private Intent putExtraObject(String name, Object value) {
+        if (mExtras == null) {
+            mExtras = new HashMap<>();
+        }
+        mExtras.put(name, value);
+        return this;
+    }
+}
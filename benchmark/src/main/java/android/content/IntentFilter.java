@@ -0,0 +1,19 @@
+package android.content;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JVM stand-in for the benchmarks.
+ */
+public class IntentFilter {
+    private final List<String> mActions = new ArrayList<>();
+
+    public void addAction(String action) {
+        mActions.add(action);
+    }
+
+    public boolean hasAction(String action) {
+        return mActions.contains(action);
+    }
+}
@@ -0,0 +1,7 @@
+package android.graphics;
+
+/**
+ * JVM stand-in for the benchmarks. Only passed around, never drawn.
+ */
+public class Bitmap {
+}
@@ -0,0 +1,28 @@
+package android.os;
+
+/**
+ * JVM stand-in for the benchmarks. Posted runnables are dropped, benchmarks that care about
+ * deferred work run it themselves.
+ */
+public class Handler {
+    public Handler() {
+    }
+
+    public Handler(Looper looper) {
+    }
+
+    public final boolean post(Runnable r) {
+        return true;
+    }
+
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        return true;
+    }
+
+    public final boolean postAtTime(Runnable r, long uptimeMillis) {
+        return true;
+    }
+
+    public final void removeCallbacks(Runnable r) {
+    }
+}
@@ -0,0 +1,12 @@
+package android.os;
+
+/**
+ * JVM stand-in for the benchmarks. There is a single main looper and it never loops.
+ */
+public class Looper {
+    private static final Looper sMainLooper = new Looper();
+
+    public static Looper getMainLooper() {
+        return sMainLooper;
+    }
+}
@@ -0,0 +1,57 @@
+package android.support.v4.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * JVM stand-in for the benchmarks. Same eviction order and size accounting as the support
+ * library's, without the hit and miss counters.
+ */
+public class LruCache<K, V> {
+    private final LinkedHashMap<K, V> mMap = new LinkedHashMap<>(0, 0.75f, true);
+    private final int mMaxSize;
+    private int mSize;
+
+    public LruCache(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    public final synchronized V get(K key) {
+        return mMap.get(key);
+    }
+
+    public final V put(K key, V value) {
+        V previous;
+        synchronized (this) {
+            mSize += sizeOf(key, value);
+            previous = mMap.put(key, value);
+            if (previous != null) {
+                mSize -= sizeOf(key, previous);
+            }
+        }
+        trimToSize(mMaxSize);
+        return previous;
+    }
+
+    public synchronized void trimToSize(int maxSize) {
+        Iterator<Map.Entry<K, V>> eldest = mMap.entrySet().iterator();
+        while (mSize > maxSize && eldest.hasNext()) {
+            Map.Entry<K, V> entry = eldest.next();
+            mSize -= sizeOf(entry.getKey(), entry.getValue());
+            eldest.remove();
+        }
+    }
+
+    public final synchronized int size() {
+        return mSize;
+    }
+
+    public final synchronized Map<K, V> snapshot() {
+        return new LinkedHashMap<>(mMap);
+    }
+}
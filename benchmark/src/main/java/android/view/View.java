@@ -0,0 +1,9 @@
+package android.view;
+
+/**
+ * JVM stand-in for the benchmarks.
+ */
+public class View {
+    public static final int VISIBLE = 0x00000000;
+    public static final int GONE = 0x00000008;
+}
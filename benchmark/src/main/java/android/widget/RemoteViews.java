@@ -0,0 +1,66 @@
+package android.widget;
+
+import android.app.PendingIntent;
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JVM stand-in for the benchmarks. Like the platform class, every setter appends an action
+ * that is replayed when the views are inflated, so repeated updates grow the action list.
+ */
+public class RemoteViews {
+    private static class Action {
+        final int mViewId;
+        final String mMethodName;
+        final Object mValue;
+
+        Action(int viewId, String methodName, Object value) {
+            mViewId = viewId;
+            mMethodName = methodName;
+            mValue = value;
+        }
+    }
+
+    private final String mPackage;
+    private final int mLayoutId;
+    private final List<Action> mActions = new ArrayList<>();
+
+    public RemoteViews(String packageName, int layoutId) {
+        mPackage = packageName;
+        mLayoutId = layoutId;
+    }
+
+    public void setTextViewText(int viewId, CharSequence text) {
+        mActions.add(new Action(viewId, "setText", text));
+    }
+
+    public void setOnClickPendingIntent(int viewId, PendingIntent pendingIntent) {
+        mActions.add(new Action(viewId, "setOnClickPendingIntent", pendingIntent));
+    }
+
+    public void setViewVisibility(int viewId, int visibility) {
+        mActions.add(new Action(viewId, "setVisibility", visibility));
+    }
+
+    public void setProgressBar(int viewId, int max, int progress, boolean indeterminate) {
+        mActions.add(new Action(viewId, "setIndeterminate", indeterminate));
+        if (!indeterminate) {
+            mActions.add(new Action(viewId, "setMax", max));
+            mActions.add(new Action(viewId, "setProgress", progress));
+        }
+    }
+
+    public void setImageViewBitmap(int viewId, Bitmap bitmap) {
+        mActions.add(new Action(viewId, "setImageBitmap", bitmap));
+    }
+
+    public void setImageViewResource(int viewId, int srcId) {
+        mActions.add(new Action(viewId, "setImageResource", srcId));
+    }
+
+    public int getActionCount() {
+        return mActions.size();
+    }
+}
@@ -0,0 +1,7 @@
+package com.bandonleon.audioservice;
+
+/**
+ * JVM stand-in, AudioNotificationManager only needs the class for its content intent.
+ */
+public class MainActivity {
+}
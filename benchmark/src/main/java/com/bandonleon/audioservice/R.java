@@ -0,0 +1,27 @@
+package com.bandonleon.audioservice;
+
+/**
+ * JVM stand-in for the generated resource ids referenced by the benchmarked classes.
+ */
+public final class R {
+    public static final class drawable {
+        public static final int ic_notification = 0x7f020000;
+    }
+
+    public static final class id {
+        public static final int content = 0x7f0b0000;
+        public static final int notification_artwork = 0x7f0b0005;
+        public static final int pause_btn = 0x7f0b0001;
+        public static final int play_btn = 0x7f0b0002;
+        public static final int progress = 0x7f0b0003;
+        public static final int title = 0x7f0b0004;
+    }
+
+    public static final class layout {
+        public static final int audio_notification = 0x7f040000;
+    }
+
+    public static final class string {
+        public static final int notification_title = 0x7f060000;
+    }
+}